@@ -3,6 +3,7 @@ package binance;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.ConfigurableApplicationContext;
 import org.springframework.context.annotation.ComponentScan;
 
 @SpringBootApplication
@@ -10,7 +11,10 @@ import org.springframework.context.annotation.ComponentScan;
 
 public class Application {
     public static void main(String[] args) {
-        SpringApplication.run(Application.class, args);
-        System.exit(0);
+        ConfigurableApplicationContext context = SpringApplication.run(Application.class, args);
+        // in modalità live il server resta attivo per ricevere i fill
+        if (!context.getEnvironment().getProperty("binance.live.enabled", Boolean.class, false)) {
+            System.exit(0);
+        }
     }
 }
@@ -1,78 +1,439 @@
-package binance.data;import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.URL;
+package binance.data;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.time.*;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-public class BinanceKlineDownloader {
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+
+import binance.job.steps.PlanPriceDemandStepConfig;
+import binance.job.steps.ReadPriceTableStepConfig;
+import binance.prices.PriceArchive;
+import binance.prices.PriceDemand;
+import binance.prices.PriceInterval;
+import binance.prices.PriceTableRecord;
 
-    private static final List<String> symbols = Arrays.asList("BTCEUR", "ETHEUR", "BNBEUR","ATOMEUR", "SOLEUR", "EURUSDC", "EURUSDT");
+/**
+ * Downloads the klines of the symbols into input/, one .prices file per symbol and interval.
+ * Symbols are fetched concurrently through a shared HttpClient, under a common request-weight budget;
+ * every symbol resumes from the last candle already present in its file.
+ * Configuration through system properties (-Dbinance.klines.xxx), see main; with binance.klines.history-dir
+ * the symbols and dates come from the coins and days moved by the history exports in that directory.
+ */
+public class BinanceKlineDownloader {
 
-    private static final LocalDate startDate = LocalDate.of(2022, 1, 1);
-    private static final LocalDate endDate = LocalDate.of(2024, 12, 31);
+    private static final String HEADER = "Symbol,Date,Open,High,Low,Close,Volume";
 
-    private static final long ONE_DAY_MS = 24 * 60 * 60 * 1000L;
-    private static final long MAX_INTERVAL = ONE_DAY_MS * 1000L; // max circa 3 anni
+    private static final int MAX_CANDLES = 1000; // limite di candele per richiesta
+    private static final int KLINES_WEIGHT = 2; // peso di /api/v3/klines con limit=1000
+    private static final int MAX_ATTEMPTS = 5;
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
 
     private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneOffset.UTC);
 
-    public static void main(String[] args) {
-        long startTime = startDate.atStartOfDay().toInstant(ZoneOffset.UTC).toEpochMilli();
-        long endTime = endDate.atStartOfDay().toInstant(ZoneOffset.UTC).toEpochMilli();
-
-        for (String symbol : symbols) {
-            try {
-                System.out.println("Scarico: " + symbol);
-                downloadKlines(symbol, "1d", startTime, endTime);
-                System.out.println("✓ Completato: " + symbol + ".csv");
-            } catch (Exception e) {
-                System.err.println("✗ Errore per " + symbol + ": " + e.getMessage());
-            }
+    private final String baseUrl;
+    private List<String> symbols;
+    private final Map<String, long[]> rangesBySymbol = new HashMap<String, long[]>();
+    private final PriceInterval interval;
+    private final long startTime;
+    private final long endTime;
+    private final Path outputDir;
+    private final int threads;
+    private final RequestWeightLimiter limiter;
+    private final HttpClient httpClient;
+    private Format format = Format.CSV;
+
+    public BinanceKlineDownloader(String baseUrl, List<String> symbols, PriceInterval interval, LocalDate startDate, LocalDate endDate,
+            Path outputDir, int threads, int maxWeightPerMinute) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        this.symbols = List.copyOf(symbols);
+        this.interval = interval;
+        this.startTime = startDate.atStartOfDay().toInstant(ZoneOffset.UTC).toEpochMilli();
+        this.endTime = endDate.atStartOfDay().toInstant(ZoneOffset.UTC).toEpochMilli();
+        this.outputDir = outputDir;
+        this.threads = threads;
+        this.limiter = new RequestWeightLimiter(maxWeightPerMinute);
+        this.httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+    }
+
+    /**
+     * args[0]: interval of the candles (1d, 1h, 1m), default 1d
+     */
+    public static void main(String[] args) throws InterruptedException {
+        PriceInterval interval = args.length > 0 ? PriceInterval.fromBinanceCode(args[0]) : PriceInterval.ONE_DAY;
+        BinanceKlineDownloader downloader = new BinanceKlineDownloader(
+                System.getProperty("binance.klines.base-url", "https://api.binance.com"),
+                Arrays.asList(System.getProperty("binance.klines.symbols", "BTCEUR,ETHEUR,BNBEUR,ATOMEUR,SOLEUR,EURUSDC,EURUSDT").split(",")),
+                interval,
+                LocalDate.parse(System.getProperty("binance.klines.start-date", "2022-01-01")),
+                LocalDate.parse(System.getProperty("binance.klines.end-date", "2024-12-31")),
+                Paths.get(System.getProperty("binance.klines.output-dir", "./input")),
+                Integer.getInteger("binance.klines.threads", 8),
+                Integer.getInteger("binance.klines.max-weight-per-minute", 6000));
+        String historyDir = System.getProperty("binance.klines.history-dir");
+        if (historyDir != null) {
+            downloader.setDemand(planPriceDemand(Paths.get(historyDir)));
+        }
+        // csv: SYMBOL[.interval].csv.prices, archive: SYMBOL[.interval].prices.archive (formato binario di PriceArchive)
+        downloader.setFormat(Format.valueOf(System.getProperty("binance.klines.format", "csv").toUpperCase()));
+        int failed = downloader.downloadAll();
+        if (failed > 0) {
+            System.exit(1);
         }
     }
 
-    private static void downloadKlines(String symbol, String interval, long startTime, long endTime) throws IOException {
-        String filename = "./input/"+symbol + ".csv.prices";
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(filename))) {
-            writer.write("Symbol,Date,Open,High,Low,Close,Volume\n");
+    /**
+     * Coins and days moved by the Binance history exports (*.csv) in the directory
+     */
+    static PriceDemand planPriceDemand(Path historyDir) {
+        File[] historyFiles = historyDir.toFile().listFiles((dir, name) -> name.endsWith(".csv"));
+        if (historyFiles == null) {
+            throw new IllegalStateException("History directory not found: " + historyDir);
+        }
+        Resource[] resources = Arrays.stream(historyFiles).map(FileSystemResource::new).toArray(Resource[]::new);
+        return PlanPriceDemandStepConfig.scanPriceDemand(resources, false);
+    }
 
-            long currentStart = startTime;
-            while (currentStart < endTime) {
-                long currentEnd = Math.min(currentStart + MAX_INTERVAL, endTime);
-                String urlStr = String.format(
-                    "https://api.binance.com/api/v3/klines?symbol=%s&interval=%s&startTime=%d&endTime=%d&limit=1000",
-                    symbol, interval, currentStart, currentEnd
-                );
+    /**
+     * Downloads only the EUR markets of the coins in the demand, each from the first to the last day it is needed
+     * (in place of the configured symbols and dates)
+     */
+    public void setDemand(PriceDemand demand) {
+        List<String> markets = new ArrayList<String>();
+        rangesBySymbol.clear();
+        for (String coin : demand.getCoins()) {
+            String market = PriceDemand.marketOf(coin);
+            markets.add(market);
+            rangesBySymbol.put(market, new long[] {
+                    demand.getFirstDay(coin).atStartOfDay().toInstant(ZoneOffset.UTC).toEpochMilli(),
+                    demand.getLastDay(coin).atStartOfDay().toInstant(ZoneOffset.UTC).toEpochMilli() });
+        }
+        this.symbols = markets;
+    }
 
-                HttpURLConnection conn = (HttpURLConnection) new URL(urlStr).openConnection();
-                conn.setRequestMethod("GET");
+    /**
+     * Downloads every symbol and returns the number of symbols that failed;
+     * what was already written is kept and the next run resumes from there
+     */
+    public int downloadAll() throws InterruptedException {
+        // Java 17: niente virtual thread, un pool limitato basta visto che il limite vero è il peso delle richieste
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, symbols.size())));
+        try {
+            Map<String, Future<Integer>> downloads = new LinkedHashMap<String, Future<Integer>>();
+            for (String symbol : symbols) {
+                downloads.put(symbol, executor.submit(() -> downloadKlines(symbol)));
+            }
+            int failed = 0;
+            for (Map.Entry<String, Future<Integer>> download : downloads.entrySet()) {
+                try {
+                    int candles = download.getValue().get();
+                    System.out.println("✓ Completato: " + interval.toFileName(download.getKey()) + " (+" + candles + " candele)");
+                } catch (ExecutionException e) {
+                    failed++;
+                    System.err.println("✗ Errore per " + download.getKey() + ": " + e.getCause().getMessage());
+                }
+            }
+            return failed;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 
-                if (conn.getResponseCode() != 200) {
-                    throw new IOException("Errore Binance API: HTTP " + conn.getResponseCode());
+    /**
+     * Appends to the file of the symbol the candles after the last one it contains and returns how many were added
+     */
+    int downloadKlines(String symbol) throws IOException, InterruptedException {
+        long intervalMs = interval.getSeconds() * 1000L;
+        long[] range = rangesBySymbol.getOrDefault(symbol, new long[] { startTime, endTime });
+        try (KlineSink sink = format == Format.ARCHIVE ? new ArchiveSink(symbol) : new CsvSink(symbol)) {
+            long currentStart = sink.resumeFrom(range[0], intervalMs);
+            int failures = 0;
+            while (currentStart <= range[1]) { // la candela di endDate è inclusa
+                long currentEnd = Math.min(currentStart + intervalMs * MAX_CANDLES - 1, range[1]);
+                boolean completed = false;
+                try {
+                    fetch(symbol, currentStart, currentEnd, sink);
+                    completed = true;
+                    failures = 0;
+                } catch (IOException e) {
+                    if (++failures >= MAX_ATTEMPTS) throw e;
+                    Thread.sleep(1000L * failures);
+                }
+                // si riparte dopo l'ultima candela ricevuta, anche se la risposta si è interrotta a metà
+                if (sink.getLastOpenTime() >= currentStart) {
+                    currentStart = sink.getLastOpenTime() + intervalMs;
+                } else if (completed) {
+                    currentStart = currentEnd + 1;
                 }
+            }
+            return sink.getCount();
+        }
+    }
+
+    /**
+     * Start of the first missing candle: the one after the last line of the file, or the start date
+     * for a new file. A partial last line (download interrupted while writing) is dropped.
+     */
+    long resumeFrom(Path file, long startTime, long intervalMs) throws IOException {
+        if (!Files.exists(file) || Files.size(file) == 0) {
+            Files.writeString(file, HEADER + System.lineSeparator(), StandardCharsets.UTF_8);
+            return startTime;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            long length = raf.length();
+            int tail = (int) Math.min(length, 4096);
+            byte[] bytes = new byte[tail];
+            raf.seek(length - tail);
+            raf.readFully(bytes);
+            int end = lastIndexOf(bytes, tail - 1, (byte) '\n');
+            if (end == -1) {
+                if (tail < length) {
+                    throw new IllegalStateException("Unexpected line longer than " + tail + " bytes at the end of " + file);
+                }
+                raf.setLength(0);
+                raf.write((HEADER + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+                return startTime;
+            }
+            if (end < tail - 1) {
+                raf.setLength(length - tail + end + 1);
+            }
+            int start = lastIndexOf(bytes, end - 1, (byte) '\n') + 1;
+            if (start == 0 && tail < length) {
+                throw new IllegalStateException("Unexpected line longer than " + tail + " bytes at the end of " + file);
+            }
+            String lastLine = new String(bytes, start, end - start, StandardCharsets.UTF_8).trim();
+            if (lastLine.startsWith("Symbol,")) {
+                return startTime;
+            }
+            String[] fields = lastLine.split(",");
+            long lastOpenTime = LocalDateTime.parse(fields[1], formatter).toInstant(ZoneOffset.UTC).toEpochMilli();
+            return Math.max(startTime, lastOpenTime + intervalMs);
+        }
+    }
 
-                BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-                String json = in.readLine();
-                in.close();
+    private static int lastIndexOf(byte[] bytes, int from, byte b) {
+        for (int i = from; i >= 0; i--) {
+            if (bytes[i] == b) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Streams the klines of the window into the sink
+     */
+    private void fetch(String symbol, long start, long end, KlineSink sink) throws IOException, InterruptedException {
+        URI uri = URI.create(String.format("%s/api/v3/klines?symbol=%s&interval=%s&startTime=%d&endTime=%d&limit=%d",
+                baseUrl, symbol, interval.getBinanceCode(), start, end, MAX_CANDLES));
+        HttpRequest request = HttpRequest.newBuilder(uri).timeout(REQUEST_TIMEOUT).GET().build();
+        limiter.acquire(KLINES_WEIGHT);
+        HttpResponse<InputStream> response = httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        try (InputStream body = response.body()) {
+            int status = response.statusCode();
+            if (status == 200) {
+                new KlineJsonReader(body).readAll(sink);
+                sink.endWindow();
+                return;
+            }
+            String message = new String(body.readAllBytes(), StandardCharsets.UTF_8);
+            if (status == 429 || status == 418) {
+                // limite superato: fermo tutti i thread per il tempo indicato da Binance
+                limiter.pause(response.headers().firstValueAsLong("Retry-After").orElse(60) * 1000L);
+            } else if (status < 500) {
+                throw new IllegalStateException("Errore Binance API: HTTP " + status + " " + message);
+            }
+            throw new IOException("Errore Binance API: HTTP " + status + " " + message);
+        }
+    }
 
-                // Rimuove [ ] esterni
-                json = json.substring(1, json.length() - 1);
-                String[] entries = json.split("\\],\\[");
+    public void setFormat(Format format) {
+        this.format = format;
+    }
 
-                for (String entry : entries) {
-                    String clean = entry.replaceAll("[\\[\\]]", "");
-                    String[] fields = clean.split(",");
+    public enum Format {
+        CSV, ARCHIVE
+    }
 
-                    if (fields.length >= 6) {
-                        long timestamp = Long.parseLong(fields[0]);
-                        String dateStr = formatter.format(Instant.ofEpochMilli(timestamp));
-                        writer.write(String.join(",", symbol.replace("EUR", ""), dateStr, fields[1], fields[2], fields[3], fields[4], fields[5]));
-                        writer.newLine();
-                    }
-                }
+    private interface KlineSink extends KlineJsonReader.KlineHandler, Closeable {
+        /**
+         * Start of the first missing candle
+         */
+        long resumeFrom(long startTime, long intervalMs) throws IOException;
+        void endWindow() throws IOException;
+        long getLastOpenTime();
+        int getCount();
+    }
+
+    /**
+     * Rows appended to SYMBOL[.interval].csv.prices, written straight from the raw JSON fields
+     */
+    private class CsvSink implements KlineSink {
+
+        private final Path file;
+        private final byte[] symbolColumn;
+        private final byte[] lineSeparator = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+        private final byte[] date = new byte[16];
+        private OutputStream out;
+        private long lastOpenTime = -1;
+        private int count;
+
+        CsvSink(String symbol) {
+            this.file = outputDir.resolve(interval.toFileName(symbol));
+            this.symbolColumn = PriceDemand.coinOfMarket(symbol).getBytes(StandardCharsets.US_ASCII);
+        }
+
+        @Override
+        public long resumeFrom(long startTime, long intervalMs) throws IOException {
+            long resume = BinanceKlineDownloader.this.resumeFrom(file, startTime, intervalMs);
+            out = new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.APPEND));
+            return resume;
+        }
+
+        @Override
+        public void accept(KlineJsonReader.Kline kline) throws IOException {
+            long openTime = kline.getOpenTime();
+            out.write(symbolColumn);
+            out.write(',');
+            out.write(formatDate(openTime));
+            for (int field = KlineJsonReader.OPEN; field <= KlineJsonReader.VOLUME; field++) {
+                out.write(',');
+                kline.writeRaw(field, out);
+            }
+            out.write(lineSeparator);
+            lastOpenTime = openTime;
+            count++;
+        }
+
+        /**
+         * yyyy-MM-dd HH:mm
+         */
+        private byte[] formatDate(long epochMilli) {
+            long epochSecond = Math.floorDiv(epochMilli, 1000L);
+            LocalDate day = LocalDate.ofEpochDay(Math.floorDiv(epochSecond, 86400L));
+            int minuteOfDay = (int) (Math.floorMod(epochSecond, 86400L) / 60);
+            digits(day.getYear(), 0, 4);
+            date[4] = '-';
+            digits(day.getMonthValue(), 5, 2);
+            date[7] = '-';
+            digits(day.getDayOfMonth(), 8, 2);
+            date[10] = ' ';
+            digits(minuteOfDay / 60, 11, 2);
+            date[13] = ':';
+            digits(minuteOfDay % 60, 14, 2);
+            return date;
+        }
+
+        private void digits(int value, int offset, int length) {
+            for (int i = offset + length - 1; i >= offset; i--) {
+                date[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+        }
+
+        @Override
+        public void endWindow() throws IOException {
+            // una finestra alla volta su disco, così un'interruzione lascia solo righe complete
+            out.flush();
+        }
+
+        @Override
+        public long getLastOpenTime() {
+            return lastOpenTime;
+        }
+
+        @Override
+        public int getCount() {
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (out != null) out.close();
+        }
+    }
+
+    /**
+     * Closes collected into the binary price archive of the symbol, written when the symbol is done
+     * (or fails, so that the next run resumes from there)
+     */
+    private class ArchiveSink implements KlineSink {
+
+        private final Path file;
+        private final String symbolColumn;
+        private final boolean inverse;
+        private final ReadPriceTableStepConfig processing = new ReadPriceTableStepConfig();
+        private PriceArchive.Builder builder;
+        private long lastOpenTime = -1;
+        private int count;
+
+        ArchiveSink(String symbol) {
+            this.file = outputDir.resolve(PriceArchive.archiveFileName(interval.toFileName(symbol)));
+            this.symbolColumn = PriceDemand.coinOfMarket(symbol);
+            this.inverse = ReadPriceTableStepConfig.isInversePair(symbolColumn);
+        }
+
+        @Override
+        public long resumeFrom(long startTime, long intervalMs) throws IOException {
+            if (!Files.exists(file)) {
+                builder = new PriceArchive.Builder(symbolColumn, interval);
+                return startTime;
+            }
+            builder = PriceArchive.open(file, 1).toBuilder();
+            long lastOpenSecond = builder.getLastOpenSecond();
+            return lastOpenSecond < 0 ? startTime : Math.max(startTime, lastOpenSecond * 1000L + intervalMs);
+        }
+
+        @Override
+        public void accept(KlineJsonReader.Kline kline) {
+            long openTime = kline.getOpenTime();
+            long unscaled = kline.unscaled(KlineJsonReader.CLOSE);
+            int scale = kline.scale(KlineJsonReader.CLOSE);
+            if (inverse) {
+                // stesso calcolo dello step di caricamento
+                PriceTableRecord record = new PriceTableRecord();
+                record.setSymbol(symbolColumn);
+                record.setPriceInEur(BigDecimal.valueOf(unscaled, scale));
+                builder.add(openTime / 1000L, processing.processRecord(record).getPriceInEur());
+            } else {
+                builder.add(openTime / 1000L, unscaled, scale);
+            }
+            lastOpenTime = openTime;
+            count++;
+        }
+
+        @Override
+        public void endWindow() {
+        }
+
+        @Override
+        public long getLastOpenTime() {
+            return lastOpenTime;
+        }
+
+        @Override
+        public int getCount() {
+            return count;
+        }
 
-                currentStart = currentEnd + 1;
+        @Override
+        public void close() {
+            if (builder != null && builder.size() > 0) {
+                builder.write(file);
             }
         }
     }
@@ -0,0 +1,187 @@
+package binance.data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Streaming decoder of the /api/v3/klines response, an array of arrays
+ * [openTime,"open","high","low","close","volume",closeTime,...].
+ * The input is read through a fixed buffer and every kline is handed to the handler as soon as
+ * its closing bracket is read; the fields are kept as raw bytes in a reused Kline, so nothing is
+ * allocated per candle and the full response is never held in memory.
+ */
+public class KlineJsonReader {
+
+    public static final int OPEN_TIME = 0;
+    public static final int OPEN = 1;
+    public static final int HIGH = 2;
+    public static final int LOW = 3;
+    public static final int CLOSE = 4;
+    public static final int VOLUME = 5;
+
+    private static final int MAX_FIELDS = 16;
+    private static final int MAX_FIELD_LENGTH = 64;
+
+    public interface KlineHandler {
+        void accept(Kline kline) throws IOException;
+    }
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[8192];
+    private int position;
+    private int limit;
+    private final Kline kline = new Kline();
+
+    public KlineJsonReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Reads the whole array and returns the number of klines handled
+     */
+    public int readAll(KlineHandler handler) throws IOException {
+        expect('[');
+        int count = 0;
+        int c = skipWhitespace();
+        if (c == ']') return count;
+        while (true) {
+            if (c != '[') throw syntaxError("'['", c);
+            readKline();
+            handler.accept(kline);
+            count++;
+            c = skipWhitespace();
+            if (c == ']') return count;
+            if (c != ',') throw syntaxError("',' or ']'", c);
+            c = skipWhitespace();
+        }
+    }
+
+    private void readKline() throws IOException {
+        kline.fieldCount = 0;
+        int c = skipWhitespace();
+        if (c == ']') throw new IOException("Empty kline at byte " + position);
+        while (true) {
+            if (kline.fieldCount == MAX_FIELDS) throw new IOException("Too many fields in kline");
+            readValue(c, kline.fieldCount++);
+            c = skipWhitespace();
+            if (c == ']') break;
+            if (c != ',') throw syntaxError("',' or ']'", c);
+            c = skipWhitespace();
+        }
+        if (kline.fieldCount <= VOLUME) throw new IOException("Kline with " + kline.fieldCount + " fields");
+    }
+
+    /**
+     * Strings are kept with their quotes (as they end up in the CSV), numbers and literals as they are
+     */
+    private void readValue(int c, int field) throws IOException {
+        byte[] value = kline.fields[field];
+        int length = 0;
+        if (c == '"') {
+            value[length++] = '"';
+            while ((c = read()) != '"') {
+                if (c == -1) throw new IOException("Unterminated string in kline");
+                if (c == '\\') throw new IOException("Unexpected escape in kline string");
+                if (length == MAX_FIELD_LENGTH - 1) throw new IOException("Kline field too long");
+                value[length++] = (byte) c;
+            }
+            value[length++] = '"';
+        } else {
+            while (c != -1 && c != ',' && c != ']' && !isWhitespace(c)) {
+                if (length == MAX_FIELD_LENGTH) throw new IOException("Kline field too long");
+                value[length++] = (byte) c;
+                c = read();
+            }
+            if (length == 0) throw syntaxError("a value", c);
+            if (c != -1) position--; // il separatore viene riletto dal chiamante
+        }
+        kline.lengths[field] = length;
+    }
+
+    private void expect(char expected) throws IOException {
+        int c = skipWhitespace();
+        if (c != expected) throw syntaxError("'" + expected + "'", c);
+    }
+
+    private int skipWhitespace() throws IOException {
+        int c;
+        do {
+            c = read();
+        } while (isWhitespace(c));
+        return c;
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+
+    private int read() throws IOException {
+        if (position == limit) {
+            limit = in.read(buffer, 0, buffer.length);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    private IOException syntaxError(String expected, int found) {
+        return new IOException("Malformed klines: expected " + expected + " but found " + (found == -1 ? "end of stream" : "'" + (char) found + "'"));
+    }
+
+    /**
+     * Raw fields of the kline being handled, valid only during the handler call
+     */
+    public static final class Kline {
+
+        private final byte[][] fields = new byte[MAX_FIELDS][MAX_FIELD_LENGTH];
+        private final int[] lengths = new int[MAX_FIELDS];
+        private int fieldCount;
+
+        public long getOpenTime() {
+            return unscaled(OPEN_TIME);
+        }
+
+        public void writeRaw(int field, OutputStream out) throws IOException {
+            out.write(fields[field], 0, lengths[field]);
+        }
+
+        /**
+         * Digits of the decimal field without the point, i.e. "42051.25000000" -> 4205125000000
+         */
+        public long unscaled(int field) {
+            byte[] value = fields[field];
+            int start = value[0] == '"' ? 1 : 0;
+            int end = value[0] == '"' ? lengths[field] - 1 : lengths[field];
+            boolean negative = start < end && value[start] == '-';
+            if (negative) start++;
+            long unscaled = 0;
+            int digits = 0;
+            for (int i = start; i < end; i++) {
+                byte b = value[i];
+                if (b == '.') continue;
+                if (b < '0' || b > '9' || ++digits > 18) {
+                    throw new IllegalStateException("Unsupported decimal in kline: " + new String(value, 0, lengths[field]));
+                }
+                unscaled = unscaled * 10 + (b - '0');
+            }
+            return negative ? -unscaled : unscaled;
+        }
+
+        public int scale(int field) {
+            byte[] value = fields[field];
+            int end = value[0] == '"' ? lengths[field] - 1 : lengths[field];
+            for (int i = end - 1; i >= 0; i--) {
+                if (value[i] == '.') return end - 1 - i;
+            }
+            return 0;
+        }
+
+        public int getFieldCount() {
+            return fieldCount;
+        }
+    }
+}
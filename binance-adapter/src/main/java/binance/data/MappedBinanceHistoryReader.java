@@ -0,0 +1,369 @@
+package binance.data;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.batch.item.ItemStreamException;
+import org.springframework.batch.item.file.ResourceAwareItemReaderItemStream;
+import org.springframework.core.io.Resource;
+
+import binance.struct.BinanceHistoryRecord;
+import binance.struct.BinanceOperationType;
+
+/**
+ * Reader for the Binance transaction history export that memory-maps the file and decodes the
+ * fixed 7-column layout ("User_ID","UTC_Time","Account","Operation","Coin","Change","Remark")
+ * directly from the byte buffer, without going through a FieldSet; a quoted field may contain
+ * commas and quotes escaped as "".
+ * The low-cardinality values (user, account, operation, coin) are resolved through a small
+ * byte-keyed pool so that no String is allocated for them once seen; the free-text remark is
+ * decoded for each record and never pooled.
+ */
+public class MappedBinanceHistoryReader implements ResourceAwareItemReaderItemStream<BinanceHistoryRecord> {
+
+	private static Logger logger = LogManager.getLogger(MappedBinanceHistoryReader.class);
+
+	private static final int COLUMNS = 7;
+	private static final long MAX_WINDOW = 256L * 1024 * 1024;
+
+	private static final Map<String, BinanceOperationType> OPERATIONS_BY_DISPLAY_NAME = new HashMap<String, BinanceOperationType>();
+	static {
+		for (BinanceOperationType type : BinanceOperationType.values()) {
+			OPERATIONS_BY_DISPLAY_NAME.put(type.getDisplayName(), type);
+		}
+	}
+
+	private Resource resource;
+	private int linesToSkip = 1;
+
+	private FileChannel channel;
+	private long fileSize;
+	private MappedByteBuffer window;
+	private long windowStart;
+	private int position;
+	private long lineNumber;
+
+	private final int[] fieldStart = new int[COLUMNS];
+	private final int[] fieldEnd = new int[COLUMNS];
+	// campo tra virgolette con dentro delle "" da ridurre a "
+	private final boolean[] fieldEscaped = new boolean[COLUMNS];
+	private final AsciiPool pool = new AsciiPool();
+
+	@Override
+	public void setResource(Resource resource) {
+		this.resource = resource;
+	}
+
+	public void setLinesToSkip(int linesToSkip) {
+		this.linesToSkip = linesToSkip;
+	}
+
+	@Override
+	public void open(ExecutionContext executionContext) throws ItemStreamException {
+		try {
+			channel = FileChannel.open(resource.getFile().toPath(), StandardOpenOption.READ);
+			fileSize = channel.size();
+			mapWindow(0);
+			lineNumber = 0;
+			for (int i = 0; i < linesToSkip && nextLine(); i++);
+		} catch (IOException e) {
+			throw new ItemStreamException("Failed to open " + resource, e);
+		}
+	}
+
+	@Override
+	public BinanceHistoryRecord read() throws Exception {
+		while (nextLine()) {
+			if (fieldEnd[0] == -1) continue; // riga vuota
+			return mapRecord();
+		}
+		return null;
+	}
+
+	/**
+	 * Reads the rest of the file decoding only the UTC_Time and Coin columns, for the planning that
+	 * needs to know when every coin moves before the records are read
+	 */
+	public void scanCoinTimes(BiConsumer<String, LocalDateTime> coinAtTime) throws IOException {
+		while (nextLine()) {
+			if (fieldEnd[0] == -1) continue;
+			coinAtTime.accept(pooled(4), parseUtcTime(fieldStart[1], fieldEnd[1]));
+		}
+	}
+
+	@Override
+	public void update(ExecutionContext executionContext) throws ItemStreamException {
+	}
+
+	@Override
+	public void close() throws ItemStreamException {
+		window = null;
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				throw new ItemStreamException("Failed to close " + resource, e);
+			} finally {
+				channel = null;
+			}
+		}
+	}
+
+	private void mapWindow(long start) throws IOException {
+		windowStart = start;
+		window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(MAX_WINDOW, fileSize - start));
+		position = 0;
+	}
+
+	/**
+	 * Splits the next line into the field offsets; fieldEnd[0] is -1 for a blank line.
+	 * Returns false at the end of the file.
+	 */
+	private boolean nextLine() throws IOException {
+		if (windowStart + position >= fileSize) return false;
+		int end = indexOfNewLine(position);
+		if (end == -1 && windowStart + window.limit() < fileSize) {
+			// la riga attraversa la fine della finestra: rimappo a partire dall'inizio della riga
+			mapWindow(windowStart + position);
+			end = indexOfNewLine(position);
+		}
+		if (end == -1) end = window.limit();
+		int lineEnd = end > position && window.get(end - 1) == '\r' ? end - 1 : end;
+		lineNumber++;
+		tokenize(position, lineEnd);
+		position = end + 1;
+		return true;
+	}
+
+	private int indexOfNewLine(int from) {
+		int limit = window.limit();
+		for (int i = from; i < limit; i++) {
+			if (window.get(i) == '\n') return i;
+		}
+		return -1;
+	}
+
+	private void tokenize(int start, int end) {
+		if (start == end) {
+			fieldEnd[0] = -1;
+			return;
+		}
+		int column = 0;
+		int i = start;
+		while (column < COLUMNS) {
+			fieldEscaped[column] = false;
+			if (i < end && window.get(i) == '"') {
+				int closing = i + 1;
+				while (true) {
+					while (closing < end && window.get(closing) != '"') closing++;
+					if (closing + 1 < end && window.get(closing + 1) == '"') {
+						fieldEscaped[column] = true;
+						closing += 2;
+					} else {
+						break;
+					}
+				}
+				if (closing >= end) throw new ItemStreamException("Unterminated quote at line " + lineNumber + " of " + resource);
+				fieldStart[column] = i + 1;
+				fieldEnd[column] = closing;
+				i = closing + 1;
+			} else {
+				int comma = i;
+				while (comma < end && window.get(comma) != ',') comma++;
+				fieldStart[column] = i;
+				fieldEnd[column] = comma;
+				i = comma;
+			}
+			trim(column);
+			column++;
+			if (i < end && window.get(i) == ',') {
+				i++;
+			} else {
+				break;
+			}
+		}
+		if (column != COLUMNS || i != end) {
+			throw new ItemStreamException("Expected " + COLUMNS + " columns at line " + lineNumber + " of " + resource);
+		}
+	}
+
+	private void trim(int column) {
+		while (fieldStart[column] < fieldEnd[column] && window.get(fieldStart[column]) == ' ') fieldStart[column]++;
+		while (fieldEnd[column] > fieldStart[column] && window.get(fieldEnd[column] - 1) == ' ') fieldEnd[column]--;
+	}
+
+	private BinanceHistoryRecord mapRecord() {
+		BinanceHistoryRecord record = new BinanceHistoryRecord();
+		record.setUserId(pooled(0));
+		record.setUtcTime(parseUtcTime(fieldStart[1], fieldEnd[1]));
+		record.setAccount(pooled(2));
+		String operation = pooled(3);
+		BinanceOperationType operationType = OPERATIONS_BY_DISPLAY_NAME.get(operation);
+		record.setOperation(operationType != null ? operationType : BinanceOperationType.fromDisplayName(operation));
+		record.setCoin(pooled(4));
+		record.setChange(parseDecimal(fieldStart[5], fieldEnd[5]));
+		record.setRemark(text(6));
+		logger.trace("mapped line {} to {}", lineNumber, record);
+		return record;
+	}
+
+	private String pooled(int column) {
+		return fieldEscaped[column] ? text(column) : pool.get(window, fieldStart[column], fieldEnd[column]);
+	}
+
+	private String text(int column) {
+		int start = fieldStart[column];
+		int end = fieldEnd[column];
+		if (start == end) return "";
+		byte[] bytes = new byte[end - start];
+		window.get(start, bytes);
+		String value = new String(bytes, StandardCharsets.UTF_8);
+		return fieldEscaped[column] ? value.replace("\"\"", "\"") : value;
+	}
+
+	/**
+	 * yyyy-MM-dd HH:mm:ss
+	 */
+	private LocalDateTime parseUtcTime(int start, int end) {
+		if (end - start != 19) {
+			throw new ItemStreamException("Unexpected UTC_Time format at line " + lineNumber + " of " + resource);
+		}
+		return LocalDateTime.of(
+				digits(start, 4),
+				digits(start + 5, 2),
+				digits(start + 8, 2),
+				digits(start + 11, 2),
+				digits(start + 14, 2),
+				digits(start + 17, 2));
+	}
+
+	private int digits(int start, int length) {
+		int value = 0;
+		for (int i = start; i < start + length; i++) {
+			int digit = window.get(i) - '0';
+			if (digit < 0 || digit > 9) {
+				throw new ItemStreamException("Unexpected digit in UTC_Time at line " + lineNumber + " of " + resource);
+			}
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	/**
+	 * Plain decimals with up to 18 significant digits are decoded into an unscaled long,
+	 * anything else (exponent notation, longer values) goes through BigDecimal(String).
+	 */
+	private BigDecimal parseDecimal(int start, int end) {
+		int i = start;
+		boolean negative = false;
+		if (i < end && (window.get(i) == '-' || window.get(i) == '+')) {
+			negative = window.get(i) == '-';
+			i++;
+		}
+		long unscaled = 0;
+		int scale = 0;
+		int digitCount = 0;
+		boolean afterPoint = false;
+		boolean plain = i < end;
+		for (; i < end; i++) {
+			byte b = window.get(i);
+			if (b >= '0' && b <= '9') {
+				if (++digitCount > 18) {
+					plain = false;
+					break;
+				}
+				unscaled = unscaled * 10 + (b - '0');
+				if (afterPoint) scale++;
+			} else if (b == '.' && !afterPoint) {
+				afterPoint = true;
+			} else {
+				plain = false;
+				break;
+			}
+		}
+		if (plain && digitCount > 0) {
+			return BigDecimal.valueOf(negative ? -unscaled : unscaled, scale);
+		}
+		byte[] bytes = new byte[end - start];
+		window.get(start, bytes);
+		return new BigDecimal(new String(bytes, StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * Open addressing pool of the strings already decoded, keyed by their bytes.
+	 */
+	private static class AsciiPool {
+
+		private static final int MAX_POOLED_LENGTH = 64;
+
+		private byte[][] keys = new byte[256][];
+		private String[] values = new String[256];
+		private int size;
+
+		String get(MappedByteBuffer buffer, int start, int end) {
+			int length = end - start;
+			if (length == 0) return "";
+			if (length > MAX_POOLED_LENGTH) {
+				byte[] bytes = new byte[length];
+				buffer.get(start, bytes);
+				return new String(bytes, StandardCharsets.UTF_8);
+			}
+			int hash = 1;
+			for (int i = start; i < end; i++) {
+				hash = 31 * hash + buffer.get(i);
+			}
+			int mask = keys.length - 1;
+			int slot = mix(hash) & mask;
+			while (keys[slot] != null) {
+				if (matches(keys[slot], buffer, start, length)) return values[slot];
+				slot = (slot + 1) & mask;
+			}
+			byte[] bytes = new byte[length];
+			buffer.get(start, bytes);
+			String value = new String(bytes, StandardCharsets.UTF_8);
+			keys[slot] = bytes;
+			values[slot] = value;
+			if (++size * 2 > keys.length) grow();
+			return value;
+		}
+
+		private static boolean matches(byte[] key, MappedByteBuffer buffer, int start, int length) {
+			if (key.length != length) return false;
+			for (int i = 0; i < length; i++) {
+				if (key[i] != buffer.get(start + i)) return false;
+			}
+			return true;
+		}
+
+		private static int mix(int hash) {
+			return hash ^ (hash >>> 16);
+		}
+
+		private void grow() {
+			byte[][] oldKeys = keys;
+			String[] oldValues = values;
+			keys = new byte[oldKeys.length * 2][];
+			values = new String[oldValues.length * 2];
+			int mask = keys.length - 1;
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] == null) continue;
+				int slot = mix(Arrays.hashCode(oldKeys[i])) & mask;
+				while (keys[slot] != null) slot = (slot + 1) & mask;
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package binance.data;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.batch.item.file.FlatFileItemReader;
+import org.springframework.core.io.FileSystemResource;
+
+import binance.job.steps.ReadPriceTableStepConfig;
+import binance.prices.PriceArchive;
+import binance.prices.PriceInterval;
+import binance.prices.PriceTableRecord;
+
+/**
+ * Converts the Symbol,Date,Open,High,Low,Close,Volume price CSVs into memory-mapped price archives
+ * next to them (i.e. input/BTCEUR.1m.csv.prices -> input/BTCEUR.1m.prices.archive).
+ * Once an archive exists the price loading step maps it instead of reading the CSV.
+ */
+public class PriceArchiveConverter {
+
+    /**
+     * args: the CSV files to convert, default all the input/*.prices files
+     */
+    public static void main(String[] args) throws Exception {
+        List<File> csvFiles = new ArrayList<File>();
+        if (args.length > 0) {
+            for (String arg : args) {
+                csvFiles.add(new File(arg));
+            }
+        } else {
+            File[] inputFiles = new File("./input").listFiles((dir, name) -> name.endsWith(".prices"));
+            if (inputFiles != null) {
+                csvFiles.addAll(List.of(inputFiles));
+            }
+        }
+
+        for (File csvFile : csvFiles) {
+            Path archive = csvFile.toPath().resolveSibling(PriceArchive.archiveFileName(csvFile.getName()));
+            int candles = convert(csvFile, archive);
+            System.out.println("✓ " + csvFile.getName() + " -> " + archive.getFileName() + " (" + candles + " candele)");
+        }
+    }
+
+    /**
+     * Reads the CSV with the same reader and processing of the loading step, so the archive holds
+     * the prices exactly as the step would have loaded them
+     */
+    public static int convert(File csvFile, Path archive) throws Exception {
+        ReadPriceTableStepConfig stepConfig = new ReadPriceTableStepConfig();
+        FlatFileItemReader<PriceTableRecord> reader = stepConfig.csvReader1();
+        reader.setResource(new FileSystemResource(csvFile));
+        List<PriceTableRecord> records = new ArrayList<PriceTableRecord>();
+        reader.open(new ExecutionContext());
+        try {
+            PriceTableRecord record;
+            while ((record = reader.read()) != null) {
+                records.add(stepConfig.processRecord(record));
+            }
+        } finally {
+            reader.close();
+        }
+        if (records.isEmpty()) {
+            throw new IllegalStateException("No prices in " + csvFile);
+        }
+        String symbol = records.get(0).getSymbol();
+        for (PriceTableRecord r : records) {
+            if (!r.getSymbol().equals(symbol)) {
+                throw new IllegalStateException("More than one symbol in " + csvFile + ": " + symbol + ", " + r.getSymbol());
+            }
+        }
+        PriceArchive.write(archive, symbol, PriceInterval.fromFileName(csvFile.getName()), records);
+        return records.size();
+    }
+}
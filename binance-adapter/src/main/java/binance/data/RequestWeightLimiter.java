@@ -0,0 +1,56 @@
+package binance.data;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Keeps the request weight sent to Binance under a per-minute budget (sliding window of 60 seconds)
+ * shared by all the download threads. A 429/418 answer pauses every thread for the Retry-After time.
+ */
+public class RequestWeightLimiter {
+
+    private static final long WINDOW_MS = 60_000L;
+
+    private final int maxWeightPerMinute;
+    private final Deque<long[]> sent = new ArrayDeque<long[]>(); // {timestamp, weight}
+    private int usedWeight;
+    private long pausedUntil;
+
+    public RequestWeightLimiter(int maxWeightPerMinute) {
+        if (maxWeightPerMinute <= 0) {
+            throw new IllegalArgumentException("maxWeightPerMinute must be positive: " + maxWeightPerMinute);
+        }
+        this.maxWeightPerMinute = maxWeightPerMinute;
+    }
+
+    /**
+     * Blocks until the weight of the next request fits in the budget of the last minute
+     */
+    public synchronized void acquire(int weight) throws InterruptedException {
+        int requested = Math.min(weight, maxWeightPerMinute);
+        while (true) {
+            long now = System.currentTimeMillis();
+            while (!sent.isEmpty() && sent.peekFirst()[0] <= now - WINDOW_MS) {
+                usedWeight -= (int) sent.pollFirst()[1];
+            }
+            long waitUntil = pausedUntil;
+            if (now >= waitUntil && usedWeight + requested <= maxWeightPerMinute) {
+                sent.addLast(new long[] { now, requested });
+                usedWeight += requested;
+                return;
+            }
+            if (now >= waitUntil) {
+                waitUntil = sent.peekFirst()[0] + WINDOW_MS;
+            }
+            wait(Math.max(1, waitUntil - now));
+        }
+    }
+
+    public synchronized void pause(long millis) {
+        pausedUntil = Math.max(pausedUntil, System.currentTimeMillis() + millis);
+    }
+
+    public synchronized int getUsedWeight() {
+        return usedWeight;
+    }
+}
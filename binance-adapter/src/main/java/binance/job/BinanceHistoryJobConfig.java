@@ -10,9 +10,11 @@ import java.nio.file.Paths;
 import java.sql.ResultSet;
 import java.text.SimpleDateFormat;
 import java.time.Instant;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.stream.Collectors;
 
@@ -21,7 +23,10 @@ import org.apache.logging.log4j.Logger;
 import org.springframework.batch.core.Job;
 import org.springframework.batch.core.Step;
 import org.springframework.batch.core.StepContribution;
+import org.springframework.batch.core.job.builder.FlowBuilder;
 import org.springframework.batch.core.job.builder.JobBuilder;
+import org.springframework.batch.core.job.flow.Flow;
+import org.springframework.batch.core.job.flow.support.SimpleFlow;
 import org.springframework.batch.core.launch.support.RunIdIncrementer;
 import org.springframework.batch.core.repository.JobRepository;
 import org.springframework.batch.core.scope.context.ChunkContext;
@@ -29,7 +34,10 @@ import org.springframework.batch.core.step.builder.StepBuilder;
 import org.springframework.batch.core.step.tasklet.Tasklet;
 import org.springframework.batch.repeat.RepeatStatus;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.core.task.TaskExecutor;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.PlatformTransactionManager;
 
@@ -37,10 +45,12 @@ import com.opencsv.CSVWriter;
 
 import binance.job.steps.AggregateAssignStepConfig;
 import binance.job.steps.ComputePlusMinusStepConfig;
+import binance.job.steps.PlanPriceDemandStepConfig;
 import binance.job.steps.ReadBinanceHistoryStepConfig;
 import binance.job.steps.ReadPriceTableStepConfig;
 import binance.job.steps.ValidateStepConfig;
 import binance.model.BinanceHistoryRecordList;
+import binance.model.account.EquityCurve;
 import binance.model.account.margin.CrossMarginAccount;
 import binance.model.account.margin.IsolatedMarginAccount;
 import binance.model.account.spot.SpotAccount;
@@ -62,6 +72,7 @@ public class BinanceHistoryJobConfig {
 
 
 	@Autowired private ReadBinanceHistoryStepConfig readStepConfig;
+	@Autowired private PlanPriceDemandStepConfig planPriceDemandStepConfig;
 	@Autowired private ReadPriceTableStepConfig readPriceTableStepConfig;
 	@Autowired private ValidateStepConfig validateStepConfig;
 	@Autowired private AggregateAssignStepConfig aggregateAndAssignToAccountsStepConfig;
@@ -76,19 +87,51 @@ public class BinanceHistoryJobConfig {
 
 
 
+	@Value("${binance.history.pipeline:false}")
+	private boolean pipeline;
+
+	@Value("${binance.output.equity-curve:true}")
+	private boolean equityCurve;
+
+	/**
+	 * The prices are loaded on their own thread while the history is read, validated and aggregated:
+	 * the demand plan comes from a scan of the coin and time columns of the history files, not from
+	 * the records read. Both branches join before COMPUTE_PLUS_MINUS_STEP, the first one reading prices.
+	 */
 	@Bean
 	public Job binanceHistoryJob() {
+		Flow loadFlow = loadFlow(readStepConfig.getReadStepBinanceHistory(), validateStepConfig.getValidateStep(),
+				aggregateAndAssignToAccountsStepConfig.getAggregateAndAssignToAccountStep(),
+				planPriceDemandStepConfig.getPlanPriceDemandStep(), readPriceTableStepConfig.getReadStep());
 		return new JobBuilder("binanceHistoryJob",jobRepository)
 				.incrementer(new RunIdIncrementer()) // Allows re-execution with a new run ID
-				.start(readStepConfig.getReadStepBinanceHistory())
-				.next(readPriceTableStepConfig.getReadStep())
-				.next(validateStepConfig.getValidateStep())
-				.next(aggregateAndAssignToAccountsStepConfig.getAggregateAndAssignToAccountStep())
+				.start(loadFlow)
 				.next(computePlusMinusStepConfig.getComputePlusMinusStep())
 				.next(adaptAndWriteStep())
+				.build()
 				.build();
 	}
 
+	/**
+	 * History and prices side by side; in pipeline mode validation and aggregation already happen
+	 * during the read
+	 */
+	private Flow loadFlow(Step readHistoryStep, Step validateStep, Step aggregateStep, Step planPriceDemandStep, Step readPricesStep) {
+		FlowBuilder<SimpleFlow> historyFlow = new FlowBuilder<SimpleFlow>("HISTORY_FLOW").start(readHistoryStep);
+		if(!pipeline) {
+			historyFlow.next(validateStep);
+		}
+		historyFlow.next(aggregateStep);
+		Flow pricesFlow = new FlowBuilder<SimpleFlow>("PRICES_FLOW").start(planPriceDemandStep).next(readPricesStep).build();
+		return new FlowBuilder<SimpleFlow>("LOAD_FLOW").split(loadTaskExecutor()).add(historyFlow.build(), pricesFlow).build();
+	}
+
+	private TaskExecutor loadTaskExecutor() {
+		SimpleAsyncTaskExecutor taskExecutor = new SimpleAsyncTaskExecutor("load-");
+		taskExecutor.setConcurrencyLimit(2);
+		return taskExecutor;
+	}
+
 
 	@Bean
 	public Step adaptAndWriteStep() {
@@ -135,7 +178,7 @@ public class BinanceHistoryJobConfig {
 							}
 						});
 						//SPOT
-						recordsPerYear = spotAccount.getRecords().stream().collect(Collectors.groupingBy(e -> e.getUtcTime().getYear()));
+						recordsPerYear = spotAccount.getRecordsPerYear();
 						recordsPerYear.entrySet().forEach(entry -> {
 							try {
 								writeFileBinanceComparator(formattedDate,formattedDate+"_SpotTransactions"+entry.getKey()+".csv", entry.getValue(), (BinanceHistoryRecord e1, BinanceHistoryRecord e2)-> {
@@ -197,6 +240,11 @@ public class BinanceHistoryJobConfig {
 								throw new RuntimeException(e1);
 							}
 						});
+						
+						if(equityCurve) {
+							writeEquityCurve(formattedDate, formattedDate+"_EquityCurve.csv",
+									new EquityCurve(Arrays.asList(spotAccount, crossMarginAccount, isolatedMarginAccount), priceTable));
+						}
 						return null;
 					}
 				},platformTransactionManager).build();
@@ -271,6 +319,48 @@ public class BinanceHistoryJobConfig {
 		}
 	}
 
+	/**
+	 * One row per day: the EUR value of every account and their total
+	 */
+	private void writeEquityCurve(String subFolder, String fileName, EquityCurve curve) throws IOException {
+		try {
+			Path outputPath = Paths.get("output/"+subFolder);
+			Files.createDirectories(outputPath); // Ensure directory exists
+
+			File file = new File(outputPath.toFile(), fileName);
+			if (file.exists()) {
+				file.delete();
+			}
+
+			try (CSVWriter writer = new CSVWriter(new FileWriter(file), 
+					CSVWriter.DEFAULT_SEPARATOR, 
+					CSVWriter.DEFAULT_QUOTE_CHARACTER, 
+					CSVWriter.DEFAULT_ESCAPE_CHARACTER, 
+					System.lineSeparator())) {
+				int accounts = curve.getAccounts().size();
+				String[] row = new String[accounts + 2];
+				row[0] = "Date";
+				for (int a = 0; a < accounts; a++) {
+					row[a + 1] = curve.getAccounts().get(a);
+				}
+				row[accounts + 1] = "Total";
+				writer.writeNext(row);
+
+				for (int d = 0; d < curve.getDays(); d++) {
+					row[0] = curve.getFirstDay().plusDays(d).toString();
+					for (int a = 0; a < accounts; a++) {
+						row[a + 1] = String.format(Locale.ROOT, "%.2f", curve.getEquity(a, d));
+					}
+					row[accounts + 1] = String.format(Locale.ROOT, "%.2f", curve.getTotal(d));
+					writer.writeNext(row);
+				}
+			}
+		} catch (IOException e) {
+			logger.error(e.getMessage(), e);
+			throw e;            
+		}
+	}
+
 	private void writeFile2(String subFolder, String fileName, List<BinanceHistoryRecord> binanceRecords) throws IOException {
 		try {
 			Path outputPath = Paths.get("output/"+subFolder);
@@ -1,12 +1,9 @@
 package binance.job.steps;
 
 import java.math.BigDecimal;
-import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
@@ -33,12 +30,13 @@ import org.springframework.stereotype.Component;
 import org.springframework.transaction.PlatformTransactionManager;
 
 import binance.model.BinanceHistoryRecordList;
+import binance.model.HistoryAggregationTable;
+import binance.model.StreamingHistoryAggregator;
 import binance.model.account.AccountType;
 import binance.model.account.margin.CrossMarginAccount;
 import binance.model.account.margin.IsolatedMarginAccount;
 import binance.model.account.spot.SpotAccount;
 import binance.struct.BinanceHistoryRecord;
-import binance.struct.BinanceOperationType;
 import binance.struct.TataxOperationType;
 import jakarta.annotation.PostConstruct;
 
@@ -55,6 +53,20 @@ public class AggregateAssignStepConfig {
 	@Autowired private CrossMarginAccount crossMarginAccount;
 	@Autowired private IsolatedMarginAccount isolatedMarginAccount;
 
+	@Value("${binance.history.pipeline:false}") // records aggregated while they are read
+	private boolean pipeline;
+
+	@Value("${binance.history.reorder-seconds:5}") // pipeline: seconds kept open for out of order records
+	private int reorderSeconds;
+
+	private HistoryAggregationTable aggregationTable;
+	private StreamingHistoryAggregator streamingAggregator;
+
+	@PostConstruct
+	private void init() {
+		aggregationTable = new HistoryAggregationTable();
+		streamingAggregator = new StreamingHistoryAggregator(reorderSeconds, aggregates -> assignToAccounts(aggregates));
+	}
 
 	@Bean
 	public Step getAggregateAndAssignToAccountStep() {
@@ -63,53 +75,7 @@ public class AggregateAssignStepConfig {
 
 					@Override
 					public RepeatStatus execute(StepContribution contribution, ChunkContext chunkContext) throws Exception {
-						Map<String,Map<LocalDateTime,Map<BinanceOperationType,Map<String,List<BinanceHistoryRecord>>>>> aggregateMap = binanceHistoryRecordList.stream().collect(Collectors.groupingBy(r->r.getAccount(),Collectors.groupingBy(r->r.getUtcTime(),Collectors.groupingBy(r -> r.getOperation(),Collectors.groupingBy(r -> r.getCoin())))));
-						List<BinanceHistoryRecord> aggregateList = new ArrayList<BinanceHistoryRecord>();
-						for (Entry<String, Map<LocalDateTime, Map<BinanceOperationType, Map<String, List<BinanceHistoryRecord>>>>> e1 : aggregateMap.entrySet()) {
-							String account = e1.getKey();
-							for (Entry<LocalDateTime, Map<BinanceOperationType, Map<String, List<BinanceHistoryRecord>>>> e2 : e1.getValue().entrySet()) {
-								LocalDateTime utcTime = e2.getKey();
-								for (Entry<BinanceOperationType, Map<String, List<BinanceHistoryRecord>>> e3 : e2.getValue().entrySet()) {
-									BinanceOperationType operation = e3.getKey();
-									for (Entry<String, List<BinanceHistoryRecord>> e4 : e3.getValue().entrySet()) {
-										String coin = e4.getKey();
-										BigDecimal amount = BigDecimal.ZERO;
-										for (BinanceHistoryRecord binanceHistoryRecord : e4.getValue()) {
-											amount = amount.add(binanceHistoryRecord.getChange());
-										}
-										BinanceHistoryRecord aggregateBinanceHistoryRecord = new BinanceHistoryRecord();
-										aggregateBinanceHistoryRecord.setUserId(e4.getValue().stream().findAny().get().getUserId());
-										aggregateBinanceHistoryRecord.setAccount(account);
-										aggregateBinanceHistoryRecord.setChange(amount);
-										aggregateBinanceHistoryRecord.setCoin(coin);
-										aggregateBinanceHistoryRecord.setOperation(operation);
-										aggregateBinanceHistoryRecord.setUtcTime(utcTime);
-										aggregateList.add(aggregateBinanceHistoryRecord);
-									}
-								}
-							}
-						}
-						binanceHistoryRecordList.clear();
-						aggregateList = aggregateList.stream().filter(r -> r.getChange().compareTo(BigDecimal.ZERO)!=0).collect(Collectors.toList());
-						binanceHistoryRecordList.addAll(aggregateList);
-						logger.info("AGGREGATED RECORDS COUNT = {}", aggregateList.size());
-						
-						binanceHistoryRecordList.stream().sorted().forEach(r -> {
-							AccountType accountType = r.getAccountType();
-							switch (accountType) {
-							case SPOT:
-								spotAccount.addRecord(r);
-								break;
-							case CROSS_MARGIN:
-								crossMarginAccount.addRecord(r);
-								break;
-							case ISOLATED_MARGIN:
-								isolatedMarginAccount.addRecord(r);
-								break;
-							default:
-								throw new RuntimeException("failed to identify account for transaction: "+r);
-							}
-						});
+						aggregateAndAssign();
 						spotAccount.verifyTransactionCoherence();
 						crossMarginAccount.verifyTransactionCoherence();
 						isolatedMarginAccount.verifyTransactionCoherence();
@@ -118,4 +84,56 @@ public class AggregateAssignStepConfig {
 				},platformTransactionManager).build();
 	}
 
+	/**
+	 * Aggregates the records read and assigns them to the accounts; in pipeline mode only the seconds
+	 * still open at the end of the read are left
+	 */
+	public void aggregateAndAssign() {
+		if(pipeline) {
+			// i secondi già chiusi sono stati assegnati durante la lettura
+			streamingAggregator.flush();
+		} else {
+			for (BinanceHistoryRecord r : binanceHistoryRecordList) {
+				aggregationTable.add(r);
+			}
+			List<BinanceHistoryRecord> aggregateList = new ArrayList<BinanceHistoryRecord>(aggregationTable.getAggregates());
+			aggregationTable.clear();
+			binanceHistoryRecordList.clear();
+			assignToAccounts(aggregateList);
+		}
+		logger.info("AGGREGATED RECORDS COUNT = {}", binanceHistoryRecordList.size());
+	}
+
+	/**
+	 * Pipeline mode: hands a record coming out of the reader to the streaming aggregation, which
+	 * assigns the aggregates of every second as soon as the reader moves past it
+	 */
+	public void aggregate(BinanceHistoryRecord r) {
+		streamingAggregator.add(r);
+	}
+
+	/**
+	 * Appends the non-zero aggregates to the history and routes them, in time order, to their account
+	 */
+	private void assignToAccounts(List<BinanceHistoryRecord> aggregateList) {
+		aggregateList = aggregateList.stream().filter(r -> r.getChange().compareTo(BigDecimal.ZERO)!=0).collect(Collectors.toList());
+		binanceHistoryRecordList.addAll(aggregateList);
+
+		aggregateList.stream().sorted().forEach(r -> {
+			AccountType accountType = r.getAccountType();
+			switch (accountType) {
+			case SPOT:
+				spotAccount.addRecord(r);
+				break;
+			case CROSS_MARGIN:
+				crossMarginAccount.addRecord(r);
+				break;
+			case ISOLATED_MARGIN:
+				isolatedMarginAccount.addRecord(r);
+				break;
+			default:
+				throw new RuntimeException("failed to identify account for transaction: "+r);
+			}
+		});
+	}
 }
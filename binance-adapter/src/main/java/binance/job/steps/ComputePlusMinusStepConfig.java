@@ -3,8 +3,18 @@ package binance.job.steps;
 import java.math.BigDecimal;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -31,6 +41,7 @@ import org.springframework.transaction.PlatformTransactionManager;
 import binance.model.BinanceHistoryRecordList;
 import binance.model.account.margin.CrossMarginAccount;
 import binance.model.account.margin.IsolatedMarginAccount;
+import binance.model.account.spot.SpotAccount;
 import binance.struct.BinanceHistoryRecord;
 import binance.struct.BinanceOperationType;
 import binance.struct.TataxOperationType;
@@ -48,20 +59,59 @@ public class ComputePlusMinusStepConfig {
 	
 	@Autowired private CrossMarginAccount crossMarginAccount;
 	@Autowired private IsolatedMarginAccount isolatedMarginAccount;
+	@Autowired private SpotAccount spotAccount;
 
 
+	/**
+	 * Cross and isolated margin hold separate state and only read the PriceTable, so they are
+	 * computed on their own threads, together with the grouping of the spot records for the output.
+	 * The first failure cancels the other tasks and fails the step.
+	 */
 	@Bean
 	public Step getComputePlusMinusStep() {
 		return new StepBuilder("COMPUTE_PLUS_MINUS_STEP", jobRepository)
 				.tasklet(new Tasklet() {
 					@Override
 					public RepeatStatus execute(StepContribution contribution, ChunkContext chunkContext) throws Exception {
-						crossMarginAccount.computePlusMinus();
-						isolatedMarginAccount.computePlusMinus();
+						Map<String,Runnable> tasks = new LinkedHashMap<String, Runnable>();
+						tasks.put("CROSS_MARGIN", () -> crossMarginAccount.computePlusMinus());
+						tasks.put("ISOLATED_MARGIN", () -> isolatedMarginAccount.computePlusMinus());
+						tasks.put("SPOT", () -> spotAccount.prepareRecordsPerYear());
+						runConcurrently(tasks);
 						return null;
 					}
 				}, platformTransactionManager)
 				.build();
 	}
 
+	private void runConcurrently(Map<String,Runnable> tasks) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+		try {
+			CompletionService<String> completionService = new ExecutorCompletionService<String>(executor);
+			List<Future<String>> futures = new ArrayList<Future<String>>();
+			for (Entry<String, Runnable> task : tasks.entrySet()) {
+				futures.add(completionService.submit(() -> {
+					long start = System.nanoTime();
+					task.getValue().run();
+					logger.info("{} computed in {} ms", task.getKey(), (System.nanoTime() - start) / 1_000_000);
+					return task.getKey();
+				}));
+			}
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					completionService.take().get();
+				} catch (ExecutionException e) {
+					futures.forEach(f -> f.cancel(true));
+					Throwable cause = e.getCause();
+					if(cause instanceof Exception) {
+						throw (Exception) cause;
+					}
+					throw e;
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
 }
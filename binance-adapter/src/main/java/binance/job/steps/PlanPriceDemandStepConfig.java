@@ -0,0 +1,114 @@
+package binance.job.steps;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.batch.core.Step;
+import org.springframework.batch.core.StepContribution;
+import org.springframework.batch.core.repository.JobRepository;
+import org.springframework.batch.core.scope.context.ChunkContext;
+import org.springframework.batch.core.step.builder.StepBuilder;
+import org.springframework.batch.core.step.tasklet.Tasklet;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.batch.repeat.RepeatStatus;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import binance.data.MappedBinanceHistoryReader;
+import binance.prices.PriceDemand;
+import binance.prices.PriceTable;
+
+/**
+ * Collects from the history files the (coin, day) pairs whose price can be asked by the margin
+ * computations and the P&amp;L totals, so that the price step loads only those. Only the coin and
+ * time columns are scanned, so the prices can be loaded while the history is read.
+ */
+@Component
+public class PlanPriceDemandStepConfig {
+
+	private Logger logger = LogManager.getLogger(PlanPriceDemandStepConfig.class);
+
+	@Autowired private JobRepository jobRepository;
+	@Autowired private PlatformTransactionManager platformTransactionManager;
+	@Autowired private PriceTable priceTable;
+
+	@Value("file:input/*.csv")
+	private Resource[] inputFiles;
+
+	@Value("${binance.prices.demand-driven:true}")
+	private boolean demandDriven;
+
+	@Value("${binance.output.equity-curve:true}") // the equity curve needs the close of every day a coin can be held
+	private boolean equityCurve;
+
+	@Bean
+	public Step getPlanPriceDemandStep() {
+		return new StepBuilder("PLAN_PRICE_DEMAND_STEP", jobRepository)
+				.tasklet(new Tasklet() {
+					@Override
+					public RepeatStatus execute(StepContribution contribution, ChunkContext chunkContext) throws Exception {
+						if(!demandDriven) {
+							priceTable.setPriceDemand(null);
+							return null;
+						}
+						PriceDemand demand = scanPriceDemand(inputFiles, equityCurve);
+						priceTable.setPriceDemand(demand);
+						logger.info("Prices needed for {} coins, {} coin-days: {}", demand.getCoins().size(), demand.getCoinDays(), demand.getCoins());
+						return null;
+					}
+				}, platformTransactionManager)
+				.build();
+	}
+
+	/**
+	 * Every row of the history files is a coin moved at a time; EUR needs no price.
+	 * The rows are seen before the processing, which moves a loan 1 second earlier and a repayment 1
+	 * second later, so each row asks from 1 second before to 1 second after its time; the rows the
+	 * processing drops only add a few days. With the equity curve, every day from the first row of
+	 * each coin to the last row of the history.
+	 */
+	public static PriceDemand scanPriceDemand(Resource[] inputFiles, boolean equityCurve) {
+		PriceDemand demand = new PriceDemand();
+		Map<String,LocalDate> firstDayByCoin = new HashMap<String, LocalDate>();
+		LocalDate[] lastDay = new LocalDate[1];
+		for (Resource inputFile : inputFiles) {
+			MappedBinanceHistoryReader reader = new MappedBinanceHistoryReader();
+			reader.setResource(inputFile);
+			reader.open(new ExecutionContext());
+			try {
+				reader.scanCoinTimes((coin, time) -> {
+					LocalDateTime earliest = time.minusSeconds(1);
+					LocalDateTime latest = time.plusSeconds(1);
+					if(!coin.equals("EUR")) {
+						demand.add(coin, earliest);
+						demand.add(coin, latest);
+						firstDayByCoin.merge(coin, earliest.toLocalDate(), (d1, d2) -> d1.isBefore(d2) ? d1 : d2);
+					}
+					if(lastDay[0] == null || latest.toLocalDate().isAfter(lastDay[0])) {
+						lastDay[0] = latest.toLocalDate();
+					}
+				});
+			} catch (IOException e) {
+				throw new IllegalStateException("Failed to scan " + inputFile, e);
+			} finally {
+				reader.close();
+			}
+		}
+		if(equityCurve) {
+			for (Entry<String, LocalDate> entry : firstDayByCoin.entrySet()) {
+				demand.addRange(entry.getKey(), entry.getValue(), lastDay[0]);
+			}
+		}
+		return demand;
+	}
+}
@@ -3,27 +3,43 @@ package binance.job.steps;
 import java.math.BigDecimal;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.batch.core.Step;
+import org.springframework.batch.core.StepContribution;
+import org.springframework.batch.core.job.builder.FlowBuilder;
+import org.springframework.batch.core.job.flow.Flow;
+import org.springframework.batch.core.partition.support.Partitioner;
 import org.springframework.batch.core.repository.JobRepository;
+import org.springframework.batch.core.scope.context.ChunkContext;
 import org.springframework.batch.core.step.builder.StepBuilder;
+import org.springframework.batch.core.step.tasklet.Tasklet;
+import org.springframework.batch.item.ExecutionContext;
 import org.springframework.batch.item.file.FlatFileItemReader;
 import org.springframework.batch.item.file.MultiResourceItemReader;
+import org.springframework.batch.item.file.ResourceAwareItemReaderItemStream;
 import org.springframework.batch.item.file.mapping.DefaultLineMapper;
 import org.springframework.batch.item.file.mapping.FieldSetMapper;
 import org.springframework.batch.item.file.transform.DelimitedLineTokenizer;
 import org.springframework.batch.item.file.transform.FieldSet;
+import org.springframework.batch.repeat.RepeatStatus;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.core.io.Resource;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.PlatformTransactionManager;
 
+import binance.data.MappedBinanceHistoryReader;
 import binance.model.BinanceHistoryRecordList;
 import binance.struct.BinanceHistoryRecord;
 import binance.struct.BinanceOperationType;
@@ -39,28 +55,172 @@ public class ReadBinanceHistoryStepConfig {
 	@Autowired private JobRepository jobRepository;
 	@Autowired private PlatformTransactionManager platformTransactionManager;
 	@Autowired private BinanceHistoryRecordList binanceHistoryRecordList;
+	@Autowired private ValidateStepConfig validateStepConfig;
+	@Autowired private AggregateAssignStepConfig aggregateAssignStepConfig;
 
 	@Value("file:input/*.csv") // Reads all CSV files from the "input" directory
 	private Resource[] inputFiles;
 
+	@Value("${binance.history.reader:mapped}") // mapped | flatfile
+	private String historyReader;
+
+	@Value("${binance.history.partitioned:false}") // one worker thread per input file
+	private boolean partitioned;
+
+	@Value("${binance.history.pipeline:false}") // validate and aggregate the records as they are read
+	private boolean pipeline;
+
+	@Value("${binance.history.partition-threads:0}") // 0 = one thread per input file
+	private int partitionThreads;
+
+	private static final String PARTITION_INDEX = "partitionIndex";
+	private static final DateTimeFormatter UTC_TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
 	private Map<String,BigDecimal> realTimeAprAdjuster;
 
+	private Map<Integer,List<BinanceHistoryRecord>> recordsByPartition;
+
 	@PostConstruct
 	private void init() {
 		realTimeAprAdjuster = new ConcurrentHashMap<String, BigDecimal>();
+		recordsByPartition = new ConcurrentHashMap<Integer, List<BinanceHistoryRecord>>();
 	}
 
 	//STEP1
 	@Bean
 	public Step getReadStepBinanceHistory() {
-		return new StepBuilder("READ_STEP", jobRepository)
+		if(partitioned) {
+			return getPartitionedReadStepBinanceHistory();
+		}
+		return new StepBuilder("READ_HISTORY_STEP", jobRepository)
 				.<BinanceHistoryRecord, BinanceHistoryRecord>chunk(10,platformTransactionManager) // Process 10 records at a time
 				.reader(multiFileReader())
 				.processor(this::processRecord)
-				.writer(chunk -> chunk.forEach(e -> binanceHistoryRecordList.add(e)))
+				.writer(chunk -> chunk.forEach(e -> collect(e)))
+				.build();
+	}
+
+	/**
+	 * Partitioned read: every input file is parsed on its own thread by READ_PARTITION_STEP, then
+	 * READ_MERGE_STEP appends the partitions to binanceHistoryRecordList in the same file order used by
+	 * the MultiResourceItemReader.
+	 * The Simple Earn subscription/redemption records are the only ones depending on the previous files:
+	 * the partitions keep them in place unresolved and the merge step replays them through
+	 * processSimpleEarnRecord in file order, so the result is identical to the sequential read.
+	 */
+	private Step getPartitionedReadStepBinanceHistory() {
+		Resource[] sortedInputFiles = sortedInputFiles();
+		Partitioner partitioner = gridSize -> {
+			Map<String, ExecutionContext> partitions = new LinkedHashMap<String, ExecutionContext>();
+			for (int i = 0; i < sortedInputFiles.length; i++) {
+				ExecutionContext context = new ExecutionContext();
+				context.putInt(PARTITION_INDEX, i);
+				partitions.put("partition" + i, context);
+			}
+			return partitions;
+		};
+
+		SimpleAsyncTaskExecutor taskExecutor = new SimpleAsyncTaskExecutor("history-partition-");
+		taskExecutor.setConcurrencyLimit(partitionThreads > 0 ? partitionThreads : Math.max(1, sortedInputFiles.length));
+
+		Step partitionStep = new StepBuilder("READ_PARTITION_MANAGER_STEP", jobRepository)
+				.partitioner("READ_PARTITION_STEP", partitioner)
+				.step(getReadPartitionStep(sortedInputFiles))
+				.gridSize(sortedInputFiles.length)
+				.taskExecutor(taskExecutor)
+				.build();
+
+		Step mergeStep = new StepBuilder("READ_MERGE_STEP", jobRepository)
+				.tasklet(new Tasklet() {
+					@Override
+					public RepeatStatus execute(StepContribution contribution, ChunkContext chunkContext) throws Exception {
+						int recordCount = 0;
+						for (int i = 0; i < sortedInputFiles.length; i++) {
+							List<BinanceHistoryRecord> partitionRecords = recordsByPartition.remove(i);
+							if(partitionRecords == null) {
+								throw new IllegalStateException("Missing partition for " + sortedInputFiles[i]);
+							}
+							for (BinanceHistoryRecord record : partitionRecords) {
+								if(isSimpleEarnStateRecord(record)) {
+									record = processSimpleEarnRecord(record);
+								}
+								if(record != null) {
+									collect(record);
+									recordCount++;
+								}
+							}
+						}
+						logger.info("MERGED {} PARTITIONS - RECORDS COUNT = {}", sortedInputFiles.length, recordCount);
+						return RepeatStatus.FINISHED;
+					}
+				}, platformTransactionManager)
+				.build();
+
+		Flow readFlow = new FlowBuilder<Flow>("READ_FLOW")
+				.start(partitionStep)
+				.next(mergeStep)
+				.build();
+		return new StepBuilder("READ_HISTORY_STEP", jobRepository)
+				.flow(readFlow)
+				.build();
+	}
+
+	private Step getReadPartitionStep(Resource[] sortedInputFiles) {
+		return new StepBuilder("READ_PARTITION_STEP", jobRepository)
+				.tasklet(new Tasklet() {
+					@Override
+					public RepeatStatus execute(StepContribution contribution, ChunkContext chunkContext) throws Exception {
+						ExecutionContext partitionContext = chunkContext.getStepContext().getStepExecution().getExecutionContext();
+						int partitionIndex = partitionContext.getInt(PARTITION_INDEX);
+						Resource resource = sortedInputFiles[partitionIndex];
+
+						ResourceAwareItemReaderItemStream<BinanceHistoryRecord> reader = "flatfile".equals(historyReader) ? csvReader() : mappedCsvReader();
+						reader.setResource(resource);
+						List<BinanceHistoryRecord> partitionRecords = new ArrayList<BinanceHistoryRecord>();
+						reader.open(partitionContext);
+						try {
+							BinanceHistoryRecord record;
+							while ((record = reader.read()) != null) {
+								record = processRecordWithoutState(record);
+								if(record != null) {
+									partitionRecords.add(record);
+								}
+								contribution.incrementReadCount();
+							}
+						} finally {
+							reader.close();
+						}
+						contribution.incrementWriteCount(partitionRecords.size());
+						recordsByPartition.put(partitionIndex, partitionRecords);
+						logger.info("PARTITION {} - {} RECORDS READ FROM {}", partitionIndex, partitionRecords.size(), resource.getFilename());
+						return RepeatStatus.FINISHED;
+					}
+				}, platformTransactionManager)
 				.build();
 	}
 
+	/**
+	 * In pipeline mode the record is validated and added to its aggregate right away, so the raw
+	 * history is never kept in memory
+	 */
+	private void collect(BinanceHistoryRecord record) {
+		if(pipeline) {
+			validateStepConfig.validate(record);
+			aggregateAssignStepConfig.aggregate(record);
+		} else {
+			binanceHistoryRecordList.add(record);
+		}
+	}
+
+	/**
+	 * Same order applied by MultiResourceItemReader to its resources
+	 */
+	private Resource[] sortedInputFiles() {
+		Resource[] sorted = Arrays.copyOf(inputFiles, inputFiles.length);
+		Arrays.sort(sorted, Comparator.comparing(Resource::getFilename));
+		return sorted;
+	}
+
 	/**
 	 * Multi-file reader to read all Binance history CSV files in order
 	 */
@@ -68,7 +228,11 @@ public class ReadBinanceHistoryStepConfig {
 	public MultiResourceItemReader<BinanceHistoryRecord> multiFileReader() {
 		MultiResourceItemReader<BinanceHistoryRecord> multiReader = new MultiResourceItemReader<>();
 		multiReader.setResources(inputFiles);
-		multiReader.setDelegate(csvReader());
+		if("flatfile".equals(historyReader)) {
+			multiReader.setDelegate(csvReader());
+		} else {
+			multiReader.setDelegate(mappedCsvReader());
+		}
 		return multiReader;
 	}
 
@@ -76,7 +240,20 @@ public class ReadBinanceHistoryStepConfig {
 	 * Processor - modify records if needed (e.g., clean data, apply transformations)
 	 */
 	public BinanceHistoryRecord processRecord(BinanceHistoryRecord record) {
+		record = processRecordWithoutState(record);
+		if(record != null && isSimpleEarnStateRecord(record)) {
+			return processSimpleEarnRecord(record);
+		}
+		return record;
+	}
+
+	/**
+	 * Part of the processing that only depends on the record itself: Simple Earn subscriptions and
+	 * redemptions are returned unchanged, they must go through processSimpleEarnRecord in file order
+	 */
+	private BinanceHistoryRecord processRecordWithoutState(BinanceHistoryRecord record) {
 		logger.debug("processing {}",record);
+		alignOperationWithChange(record);
 		if(record.getCoin().equals("LDBTC"))return null;
 
 		switch (record.getOperation()) {
@@ -86,6 +263,31 @@ public class ReadBinanceHistoryStepConfig {
 		case ISOLATED_MARGIN_REPAYMENT, MARGIN_REPAYMENT:
 			record.setUtcTime(record.getUtcTime().plusSeconds(1l));
 		break;
+		case SIMPLE_EARN_FLEXIBLE_SUBSCRIPTION, SIMPLE_EARN_LOCKED_SUBSCRIPTION, SIMPLE_EARN_FLEXIBLE_REDEMPTION:
+			return record;
+		default:
+			break;
+		}
+
+		if(record.getOperation().getTataxMapping().equals(TataxOperationType.IGNORE))return null;
+		return record;
+	}
+
+	private boolean isSimpleEarnStateRecord(BinanceHistoryRecord record) {
+		switch (record.getOperation()) {
+		case SIMPLE_EARN_FLEXIBLE_SUBSCRIPTION, SIMPLE_EARN_LOCKED_SUBSCRIPTION, SIMPLE_EARN_FLEXIBLE_REDEMPTION:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Keeps track of the subscribed amount per coin and turns the exceeding part of a redemption into
+	 * a SIMPLE_EARN_FLEXIBLE_INTEREST record
+	 */
+	private BinanceHistoryRecord processSimpleEarnRecord(BinanceHistoryRecord record) {
+		switch (record.getOperation()) {
 		case SIMPLE_EARN_FLEXIBLE_SUBSCRIPTION, SIMPLE_EARN_LOCKED_SUBSCRIPTION:
 			if(record.getChange().compareTo(BigDecimal.ZERO)>=0) {
 				throw new RuntimeException("change is greater than 0 in a subscription");
@@ -117,14 +319,34 @@ public class ReadBinanceHistoryStepConfig {
 				realTimeAprAdjuster.put(record.getCoin(), startingValue.add(record.getChange().negate()));
 				return null;
 			}
-
 		default:
-			break;
+			throw new IllegalArgumentException("Not a Simple Earn subscription/redemption: " + record);
 		}
+	}
 
-		if(record.getOperation().getTataxMapping().equals(TataxOperationType.IGNORE))return null;
-		return record;
+	/**
+	 * Validazione alcune volte l'operation type non corrisponde alla direzione del movimento
+	 */
+	private void alignOperationWithChange(BinanceHistoryRecord record) {
+		BigDecimal change = record.getChange();
+		if(record.getOperation().equals(BinanceOperationType.TRANSACTION_SOLD) && change.compareTo(BigDecimal.ZERO)>0) {
+			logger.warn("BinanceOperationType changed from {} to {} due to inchoerence between type and change - original record {}",BinanceOperationType.TRANSACTION_SOLD, BinanceOperationType.TRANSACTION_BUY,record);
+			record.setOperation(BinanceOperationType.TRANSACTION_BUY);
+		}
+		if(record.getOperation().equals(BinanceOperationType.TRANSACTION_BUY) && change.compareTo(BigDecimal.ZERO)<0) {
+			logger.warn("BinanceOperationType changed from {} to {} due to inchoerence between type and change - original record {}",BinanceOperationType.TRANSACTION_BUY, BinanceOperationType.TRANSACTION_SOLD,record);
+			record.setOperation(BinanceOperationType.TRANSACTION_SOLD);
+		}
+		if(record.getOperation().equals(BinanceOperationType.TRANSACTION_SPEND) && change.compareTo(BigDecimal.ZERO)>0) {
+			logger.warn("BinanceOperationType changed from {} to {} due to inchoerence between type and change - original record {}",BinanceOperationType.TRANSACTION_SPEND, BinanceOperationType.TRANSACTION_REVENUE,record);
+			record.setOperation(BinanceOperationType.TRANSACTION_REVENUE);
+		}
+		if(record.getOperation().equals(BinanceOperationType.TRANSACTION_REVENUE) && change.compareTo(BigDecimal.ZERO)<0) {
+			logger.warn("BinanceOperationType changed from {} to {} due to inchoerence between type and change - original record {}",BinanceOperationType.TRANSACTION_REVENUE, BinanceOperationType.TRANSACTION_SPEND,record);
+			record.setOperation(BinanceOperationType.TRANSACTION_SPEND);
+		}
 	}
+
 	/**
 	 * CSV Reader for Binance history files
 	 */
@@ -148,8 +370,7 @@ public class ReadBinanceHistoryStepConfig {
 				record.setUserId(fieldSet.readString("userId"));
 				// Custom parsing for LocalDateTime (using DateTimeFormatter)
 				String utcTimeString = fieldSet.readString("utcTime");
-				DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");  // Adjust the format as per your data
-				record.setUtcTime(LocalDateTime.parse(utcTimeString, formatter));
+				record.setUtcTime(LocalDateTime.parse(utcTimeString, UTC_TIME_FORMATTER));
 				record.setAccount(fieldSet.readString("account"));
 				record.setOperation(BinanceOperationType.fromDisplayName(fieldSet.readString("operation")));
 				record.setCoin(fieldSet.readString("coin"));
@@ -160,24 +381,6 @@ public class ReadBinanceHistoryStepConfig {
 				// Setting the BigDecimal value on the record
 				record.setChange(change);
 				record.setRemark(fieldSet.readString("remark"));
-				
-				//Validazione alcune volte l'operation type non corrisponde alla direzione del movimento
-				if(record.getOperation().equals(BinanceOperationType.TRANSACTION_SOLD) && change.compareTo(BigDecimal.ZERO)>0) {
-					logger.warn("BinanceOperationType changed from {} to {} due to inchoerence between type and change - original record {}",BinanceOperationType.TRANSACTION_SOLD, BinanceOperationType.TRANSACTION_BUY,record);
-					record.setOperation(BinanceOperationType.TRANSACTION_BUY);
-				}
-				if(record.getOperation().equals(BinanceOperationType.TRANSACTION_BUY) && change.compareTo(BigDecimal.ZERO)<0) {
-					logger.warn("BinanceOperationType changed from {} to {} due to inchoerence between type and change - original record {}",BinanceOperationType.TRANSACTION_BUY, BinanceOperationType.TRANSACTION_SOLD,record);
-					record.setOperation(BinanceOperationType.TRANSACTION_SOLD);
-				}
-				if(record.getOperation().equals(BinanceOperationType.TRANSACTION_SPEND) && change.compareTo(BigDecimal.ZERO)>0) {
-					logger.warn("BinanceOperationType changed from {} to {} due to inchoerence between type and change - original record {}",BinanceOperationType.TRANSACTION_SPEND, BinanceOperationType.TRANSACTION_REVENUE,record);
-					record.setOperation(BinanceOperationType.TRANSACTION_REVENUE);
-				}
-				if(record.getOperation().equals(BinanceOperationType.TRANSACTION_REVENUE) && change.compareTo(BigDecimal.ZERO)<0) {
-					logger.warn("BinanceOperationType changed from {} to {} due to inchoerence between type and change - original record {}",BinanceOperationType.TRANSACTION_REVENUE, BinanceOperationType.TRANSACTION_SPEND,record);
-					record.setOperation(BinanceOperationType.TRANSACTION_SPEND);
-				}
 				return record;
 			}
 		};
@@ -189,4 +392,14 @@ public class ReadBinanceHistoryStepConfig {
 		reader.setLineMapper(lineMapper);
 		return reader;
 	}
+
+	/**
+	 * Memory-mapped reader for Binance history files, decodes the columns straight from the file bytes
+	 */
+	@Bean
+	public MappedBinanceHistoryReader mappedCsvReader() {
+		MappedBinanceHistoryReader reader = new MappedBinanceHistoryReader();
+		reader.setLinesToSkip(1); // Skip header
+		return reader;
+	}
 }
@@ -1,15 +1,23 @@
 package binance.job.steps;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.springframework.batch.core.ExitStatus;
 import org.springframework.batch.core.Step;
+import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.core.StepExecutionListener;
 import org.springframework.batch.core.repository.JobRepository;
 import org.springframework.batch.core.step.builder.StepBuilder;
 import org.springframework.batch.item.file.FlatFileItemReader;
@@ -25,6 +33,8 @@ import org.springframework.core.io.Resource;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.PlatformTransactionManager;
 
+import binance.prices.PriceArchive;
+import binance.prices.PriceDemand;
 import binance.prices.PriceTable;
 import binance.prices.PriceTableRecord;
 import binance.struct.BinanceHistoryRecord;
@@ -45,15 +55,46 @@ public class ReadPriceTableStepConfig {
 	@Value("file:input/*.prices") 
 	private Resource[] inputFile;
 
+	@Value("file:input/*.prices.archive")
+	private Resource[] archiveFiles;
+
+	@Value("${binance.prices.archive.cache-pages:64}")
+	private int archiveCachePages;
+
 
 	//STEP1
 	@Bean
 	public Step getReadStep() {
-		return new StepBuilder("READ_STEP", jobRepository)
+		MultiResourceItemReader<PriceTableRecord> reader = fileReader1();
+		return new StepBuilder("READ_PRICES_STEP", jobRepository)
 				.<PriceTableRecord, PriceTableRecord>chunk(10,platformTransactionManager) // Process 10 records at a time
-				.reader(fileReader1())
-				.processor(this::processRecord)
+				.reader(reader)
+				.processor(record -> isNeeded(record) ? processRecord(record) : null)
 				.writer(chunk -> chunk.forEach(e -> priceTable.addPriceTableRecord(e)))
+				.listener(new StepExecutionListener() {
+					@Override
+					public void beforeStep(StepExecution stepExecution) {
+						// il piano dei prezzi necessari è noto solo dopo la lettura dello storico
+						reader.setResources(Arrays.stream(csvFilesWithoutArchive()).filter(r -> isNeeded(r)).toArray(Resource[]::new));
+						for (Resource archiveFile : archiveFiles) {
+							if(!isNeeded(archiveFile)) continue;
+							try {
+								priceTable.addPriceArchive(PriceArchive.open(archiveFile.getFile().toPath(), archiveCachePages));
+							} catch (IOException e) {
+								throw new UncheckedIOException(e);
+							}
+						}
+					}
+					@Override
+					public ExitStatus afterStep(StepExecution stepExecution) {
+						if(priceTable.getPriceDemand() != null) {
+							logger.info("Loaded {} prices, {} skipped as not needed by the history", stepExecution.getWriteCount(), stepExecution.getFilterCount());
+						}
+						// readers only see the prices once the whole table is loaded
+						priceTable.publishSnapshot();
+						return stepExecution.getExitStatus();
+					}
+				})
 				.build();
 	}
 
@@ -63,20 +104,59 @@ public class ReadPriceTableStepConfig {
 	@Bean
 	public MultiResourceItemReader<PriceTableRecord> fileReader1() {
 		MultiResourceItemReader<PriceTableRecord> multiReader = new MultiResourceItemReader<>();
-		multiReader.setResources(inputFile);
+		multiReader.setResources(csvFilesWithoutArchive());
 		multiReader.setDelegate(csvReader1());
 		return multiReader;
 	}
 
+	/**
+	 * The CSV price files for which a converted archive exists are not read: the archive is mapped instead
+	 */
+	private Resource[] csvFilesWithoutArchive() {
+		Set<String> archived = Arrays.stream(archiveFiles).map(Resource::getFilename).collect(Collectors.toSet());
+		return Arrays.stream(inputFile)
+				.filter(r -> {
+					boolean skip = archived.contains(PriceArchive.archiveFileName(r.getFilename()));
+					if(skip) logger.info("Using the price archive in place of {}", r.getFilename());
+					return !skip;
+				})
+				.toArray(Resource[]::new);
+	}
+
+	/**
+	 * Price files of coins that the history never moves are not read at all
+	 */
+	private boolean isNeeded(Resource priceFile) {
+		PriceDemand demand = priceTable.getPriceDemand();
+		boolean needed = demand == null || demand.needsCoin(PriceDemand.coinOfFile(priceFile.getFilename()));
+		if(!needed) logger.info("Skipping {}: coin not in the history", priceFile.getFilename());
+		return needed;
+	}
+
+	/**
+	 * A close is kept if it can answer one of the needed days, directly or through the fallback
+	 */
+	private boolean isNeeded(PriceTableRecord record) {
+		PriceDemand demand = priceTable.getPriceDemand();
+		return demand == null || demand.needs(record.getSymbol(), record.getTime().toLocalDate().toEpochDay(), priceTable.getMaxFallbackDays());
+	}
+
 	/**
 	 * Processor - modify records if needed (e.g., clean data, apply transformations)
 	 */
 	public PriceTableRecord processRecord(PriceTableRecord record) {
-		if(record.getSymbol().equals("USDT")||record.getSymbol().equals("USDC")) {
+		if(isInversePair(record.getSymbol())) {
 			record.setPriceInEur(BigDecimal.ONE.divide(record.getPriceInEur(),16,RoundingMode.HALF_UP));
 		}
 		return record;
 	}
+
+	/**
+	 * Stablecoins are downloaded as EURUSDT/EURUSDC: the close is the price of one EUR and has to be inverted
+	 */
+	public static boolean isInversePair(String symbol) {
+		return PriceDemand.marketOf(symbol).equals("EUR" + symbol);
+	}
 	/**
 	 * CSV Reader for Binance history files
 	 */
@@ -51,30 +51,35 @@ public class ValidateStepConfig {
 				.tasklet(new Tasklet() {
 					@Override
 					public RepeatStatus execute(StepContribution contribution, ChunkContext chunkContext) throws Exception {
-						binanceHistoryRecordList.stream().forEach(r -> {
-							switch (r.getOperation().getTataxMapping()) {
-							case WITHDRAWAL, DEBIT,  EXCHANGE_FEE:
-								if(r.getChange().compareTo(BigDecimal.ZERO)>=0) {
-									logger.error("Expected less than zero change for: {}",r);
-									throw new RuntimeException();
-								}
-							break;
-							case AIRDROP,CREDIT,DEPOSIT,EARN :
-								if(r.getChange().compareTo(BigDecimal.ZERO)<0) {
-									logger.error("Expected more than or equal to zero change for: {}",r);
-									throw new RuntimeException();
-								}
-							break;
-							case DECIDE_BASED_ON_AMOUNT :
-								break;
-							default:
-								throw new IllegalArgumentException("Unexpected value: " + r.getOperation().getTataxMapping());
-							}
-						});
+						binanceHistoryRecordList.stream().forEach(r -> validate(r));
 						return null;
 					}
 				}, platformTransactionManager)
 				.build();
 	}
 
+	/**
+	 * The sign of the change has to agree with the tatax mapping of the operation
+	 */
+	public void validate(BinanceHistoryRecord r) {
+		switch (r.getOperation().getTataxMapping()) {
+		case WITHDRAWAL, DEBIT,  EXCHANGE_FEE:
+			if(r.getChange().compareTo(BigDecimal.ZERO)>=0) {
+				logger.error("Expected less than zero change for: {}",r);
+				throw new RuntimeException();
+			}
+		break;
+		case AIRDROP,CREDIT,DEPOSIT,EARN :
+			if(r.getChange().compareTo(BigDecimal.ZERO)<0) {
+				logger.error("Expected more than or equal to zero change for: {}",r);
+				throw new RuntimeException();
+			}
+		break;
+		case DECIDE_BASED_ON_AMOUNT :
+			break;
+		default:
+			throw new IllegalArgumentException("Unexpected value: " + r.getOperation().getTataxMapping());
+		}
+	}
+
 }
@@ -0,0 +1,60 @@
+package binance.live;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import binance.struct.BinanceHistoryRecord;
+
+/**
+ * Live mode endpoints: the events have the fields of a history record, i.e.
+ * {"utcTime":"2024-03-01T10:15:30","account":"Cross Margin","operation":"TRANSACTION_BUY","coin":"BTC","change":0.1}
+ */
+@RestController
+@RequestMapping("/live")
+@ConditionalOnProperty(name = "binance.live.enabled", havingValue = "true")
+public class LivePnLController {
+
+	@Autowired private LivePnLService liveService;
+
+	@PostMapping("/events")
+	public LivePnLSnapshot addEvent(@RequestBody BinanceHistoryRecord event) {
+		return liveService.accept(Collections.singletonList(event));
+	}
+
+	@PostMapping("/events/batch")
+	public LivePnLSnapshot addEvents(@RequestBody List<BinanceHistoryRecord> events) {
+		return liveService.accept(events);
+	}
+
+	@PostMapping("/flush")
+	public LivePnLSnapshot flush() {
+		return liveService.flush();
+	}
+
+	@GetMapping("/positions")
+	public LivePnLSnapshot getPositions() {
+		return liveService.getSnapshot();
+	}
+
+	@GetMapping("/positions/{asset}/{quote}")
+	public ResponseEntity<LivePnLSnapshot.AssetPnL> getPosition(@PathVariable("asset") String asset, @PathVariable("quote") String quote) {
+		LivePnLSnapshot.AssetPnL position = liveService.getSnapshot().getPositions().get(asset + "/" + quote);
+		return position == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(position);
+	}
+
+	@ExceptionHandler(IllegalArgumentException.class)
+	public ResponseEntity<String> rejectEvents(IllegalArgumentException e) {
+		return ResponseEntity.badRequest().body(e.getMessage());
+	}
+}
@@ -0,0 +1,190 @@
+package binance.live;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import binance.model.StreamingHistoryAggregator;
+import binance.model.account.margin.PortforlioTracker;
+import binance.model.account.margin.PositionTracker;
+import binance.model.account.margin.TradeReconstructor;
+import binance.model.costbasis.CostBasisMethod;
+import binance.struct.BinanceHistoryRecord;
+import binance.struct.BinanceOperationType;
+import binance.struct.Operation;
+import binance.struct.UtcTimedRecordWithMovement;
+
+/**
+ * Realized P&amp;L of the fills received while the application runs, kept up to date event by event.
+ * The events go through the same per-second aggregation and trade reconstruction as the batch job:
+ * a second is joined into trades once it falls out of the reorder buffer and the next one is closed
+ * too, as a leg may pair with one in the adjacent second (or on flush), and every trade updates the
+ * fixed-point tracker of its asset and quote coin, so a sell only matches the lots bought with the
+ * coin it is sold for and every P&amp;L is in one currency. The legs that cannot be paired are left
+ * out and counted. The writers are serialized, the readers get the immutable snapshot published
+ * after each batch without locking.
+ */
+@Component
+@ConditionalOnProperty(name = "binance.live.enabled", havingValue = "true")
+public class LivePnLService {
+
+	private static Logger logger = LogManager.getLogger(LivePnLService.class);
+
+	/**
+	 * The only operations changing the P&amp;L, the other events are counted and only move the clock
+	 */
+	private static final Set<BinanceOperationType> TRADE_OPERATIONS = EnumSet.of(BinanceOperationType.TRANSACTION_SPEND,
+			BinanceOperationType.TRANSACTION_BUY, BinanceOperationType.TRANSACTION_SOLD, BinanceOperationType.TRANSACTION_REVENUE,
+			BinanceOperationType.TRANSACTION_FEE, BinanceOperationType.CROSS_MARGIN_LIQUIDATION_SMALL_ASSET_TAKEOVER);
+
+	/**
+	 * Largest change the tracker holds in fixed point, at 8 decimals in a long
+	 */
+	private static final BigDecimal MAX_CHANGE = BigDecimal.valueOf(Long.MAX_VALUE).movePointLeft(8);
+
+	private final int reorderSeconds;
+	private final StreamingHistoryAggregator aggregator;
+	private final PortforlioTracker portfolio;
+	private final TradeReconstructor reconstructor = new TradeReconstructor(true);
+	private final Set<String> changedAssets = new HashSet<String>();
+
+	// ultimo secondo chiuso: resta valido anche dopo un flush, che azzera l'aggregatore
+	private LocalDateTime lastClosed;
+	private LocalDateTime latest;
+	private long events;
+	private long trades;
+	private long unmatchedLegs;
+
+	private volatile LivePnLSnapshot snapshot = LivePnLSnapshot.EMPTY;
+
+	@Autowired
+	public LivePnLService(@Value("${binance.live.reorder-seconds}") int reorderSeconds, @Value("${binance.margin.cost-basis}") CostBasisMethod costBasisMethod) {
+		this.reorderSeconds = reorderSeconds;
+		this.aggregator = new StreamingHistoryAggregator(reorderSeconds, this::closeSecond);
+		this.portfolio = new PortforlioTracker(costBasisMethod);
+	}
+
+	/**
+	 * Adds a batch of events, in any order within the reorder buffer; a batch with an event older
+	 * than that is rejected as a whole
+	 */
+	public synchronized LivePnLSnapshot accept(List<BinanceHistoryRecord> records) {
+		for (BinanceHistoryRecord record : records) {
+			validate(record);
+		}
+		List<BinanceHistoryRecord> sorted = new ArrayList<BinanceHistoryRecord>(records);
+		sorted.sort(Comparator.comparing(BinanceHistoryRecord::getUtcTime));
+		for (BinanceHistoryRecord record : sorted) {
+			events++;
+			if(latest == null || record.getUtcTime().isAfter(latest)) {
+				latest = record.getUtcTime();
+			}
+			aggregator.add(record);
+		}
+		// i secondi prima di latest - reorderSeconds sono chiusi: l'ultimo di essi può ancora unirsi al successivo
+		if(latest != null) {
+			apply(reconstructor.advance(latest.minusSeconds(reorderSeconds + 1)));
+		}
+		publish();
+		return snapshot;
+	}
+
+	/**
+	 * Closes the seconds still in the reorder buffer: later events must be after the latest one
+	 */
+	public synchronized LivePnLSnapshot flush() {
+		aggregator.flush();
+		apply(reconstructor.finish());
+		if(latest != null) {
+			lastClosed = latest;
+		}
+		publish();
+		return snapshot;
+	}
+
+	public LivePnLSnapshot getSnapshot() {
+		return snapshot;
+	}
+
+	private void validate(BinanceHistoryRecord record) {
+		if(record == null || record.getUtcTime() == null || record.getAccount() == null || record.getOperation() == null
+				|| record.getCoin() == null || record.getChange() == null) {
+			throw new IllegalArgumentException("Incomplete event: " + record);
+		}
+		if(lastClosed != null && !record.getUtcTime().isAfter(lastClosed)) {
+			throw new IllegalArgumentException("Event older than the reorder buffer of " + reorderSeconds + "s (last closed second " + lastClosed + "), raise binance.live.reorder-seconds: " + record);
+		}
+		if(record.getChange().abs().compareTo(MAX_CHANGE) > 0) {
+			throw new IllegalArgumentException("Change out of the fixed-point range of " + MAX_CHANGE + ": " + record);
+		}
+	}
+
+	private void closeSecond(List<BinanceHistoryRecord> aggregates) {
+		lastClosed = aggregates.get(0).getUtcTime();
+		aggregates.removeIf(record -> !TRADE_OPERATIONS.contains(record.getOperation()));
+		apply(reconstructor.add(aggregates));
+	}
+
+	private void apply(List<UtcTimedRecordWithMovement> movements) {
+		for (UtcTimedRecordWithMovement movement : movements) {
+			if(movement instanceof Operation) {
+				apply((Operation) movement);
+			}
+		}
+		trades = reconstructor.getTrades();
+		unmatchedLegs = reconstructor.getUnmatchedLegs().size();
+	}
+
+	/**
+	 * A long trade buys the coin bought with the coin sold, a short one sells the coin sold for the
+	 * coin bought
+	 */
+	private void apply(Operation operation) {
+		boolean buy = operation.isLongOperation();
+		String pair = buy ? operation.getCoinBought() + "/" + operation.getCoinSold() : operation.getCoinSold() + "/" + operation.getCoinBought();
+		long quantity = toFixed(buy ? operation.getAmountBought() : operation.getAmountSold());
+		long amount = toFixed(buy ? operation.getAmountSold() : operation.getAmountBought());
+		if(quantity == 0) {
+			logger.warn("Trade without quantity ignored: {}", operation);
+			return;
+		}
+		long price = PositionTracker.mulDiv(amount, PositionTracker.SCALE, quantity);
+		if(buy) {
+			portfolio.buy(pair, quantity, price, 0, operation.getCoinSold());
+		} else {
+			portfolio.sell(pair, quantity, price, 0);
+		}
+		changedAssets.add(pair);
+	}
+
+	private static long toFixed(BigDecimal amount) {
+		return amount.abs().movePointRight(8).setScale(0, RoundingMode.HALF_UP).longValueExact();
+	}
+
+	/**
+	 * Copies the previous snapshot replacing only the assets traded since
+	 */
+	private void publish() {
+		Map<String, LivePnLSnapshot.AssetPnL> positions = new TreeMap<String, LivePnLSnapshot.AssetPnL>(snapshot.getPositions());
+		for (String asset : changedAssets) {
+			positions.put(asset, new LivePnLSnapshot.AssetPnL(portfolio.getPosition(asset)));
+		}
+		changedAssets.clear();
+		snapshot = new LivePnLSnapshot(lastClosed, events, trades, unmatchedLegs, positions);
+	}
+}
@@ -0,0 +1,96 @@
+package binance.live;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.Map;
+
+import binance.model.account.margin.PositionTracker;
+
+/**
+ * Immutable view of the live positions, replaced as a whole after every batch of events:
+ * readers just take the current reference, never a lock.
+ */
+public class LivePnLSnapshot {
+
+	public static final LivePnLSnapshot EMPTY = new LivePnLSnapshot(null, 0, 0, 0, Collections.emptyMap());
+
+	/**
+	 * Realized P&amp;L and open lots of one asset traded with one quote coin, the amounts in that coin
+	 */
+	public static class AssetPnL {
+		private final BigDecimal realizedPnL;
+		private final BigDecimal openQuantity;
+		private final BigDecimal openCost;
+		private final int openLots;
+		private final BigDecimal unmatchedQuantity;
+
+		AssetPnL(PositionTracker position) {
+			this.realizedPnL = amount(position.getRealizedPnLFixed());
+			this.openQuantity = amount(position.getOpenQuantity());
+			this.openCost = amount(position.getOpenCost());
+			this.openLots = position.getOpenLots();
+			this.unmatchedQuantity = amount(position.getUnmatchedQuantity());
+		}
+
+		private static BigDecimal amount(long fixed) {
+			BigDecimal amount = BigDecimal.valueOf(fixed, 8).stripTrailingZeros();
+			return amount.scale() < 0 ? amount.setScale(0) : amount;
+		}
+
+		public BigDecimal getRealizedPnL() {
+			return realizedPnL;
+		}
+		public BigDecimal getOpenQuantity() {
+			return openQuantity;
+		}
+		public BigDecimal getOpenCost() {
+			return openCost;
+		}
+		public int getOpenLots() {
+			return openLots;
+		}
+		/**
+		 * Quantity sold with no open lot to match
+		 */
+		public BigDecimal getUnmatchedQuantity() {
+			return unmatchedQuantity;
+		}
+	}
+
+	private final LocalDateTime asOf;
+	private final long events;
+	private final long trades;
+	private final long unmatchedLegs;
+	private final Map<String, AssetPnL> positions;
+
+	LivePnLSnapshot(LocalDateTime asOf, long events, long trades, long unmatchedLegs, Map<String, AssetPnL> positions) {
+		this.asOf = asOf;
+		this.events = events;
+		this.trades = trades;
+		this.unmatchedLegs = unmatchedLegs;
+		this.positions = Collections.unmodifiableMap(positions);
+	}
+
+	/**
+	 * Last second whose events are included, null before the first one is closed
+	 */
+	public LocalDateTime getAsOf() {
+		return asOf;
+	}
+	public long getEvents() {
+		return events;
+	}
+	public long getTrades() {
+		return trades;
+	}
+	public long getUnmatchedLegs() {
+		return unmatchedLegs;
+	}
+	/**
+	 * Positions by asset/quote coin, i.e. BTC/USDT
+	 */
+	public Map<String, AssetPnL> getPositions() {
+		return positions;
+	}
+}
@@ -3,30 +3,118 @@ package binance.model;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.time.LocalDateTime;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Comparator;
+import java.util.Iterator;
 
 import binance.CommonDef;
+import binance.model.costbasis.CostBasisMethod;
+import binance.model.costbasis.LotInventory;
+import binance.model.costbasis.LotType;
 
 public class CoinBalance {
 
 	
 	private String coin;
-	private List<CoinBalanceEntry> balanceHistory;
+	private LotInventory<CoinBalanceEntry> balanceHistory;
+	// totale dei lotti aperti, tenuto aggiornato da addCoinBalanceEntry e take
+	private BigDecimal amount = BigDecimal.ZERO;
 	
 	public CoinBalance(String coin) {
+		this(coin, CostBasisMethod.LIFO);
+	}
+
+	public CoinBalance(String coin, CostBasisMethod costBasisMethod) {
 		this.coin=coin;
-		this.balanceHistory = new ArrayList<CoinBalance.CoinBalanceEntry>();
+		this.balanceHistory = costBasisMethod.newInventory(CoinBalanceEntry.LOT_TYPE);
 	}
 	
 	
 	public void addCoinBalanceEntry(LocalDateTime time, String coin, BigDecimal amount, String counterValueCoin, BigDecimal counterValueAmount) {
 
-		balanceHistory.add(0,new CoinBalanceEntry(time, coin, amount, counterValueCoin, counterValueAmount));
-		
+		balanceHistory.push(new CoinBalanceEntry(time, coin, amount, counterValueCoin, counterValueAmount));
+		this.amount = this.amount.add(amount);
 	}	
+
+	/**
+	 * Lot whose unit cost is also kept in EUR, from the price of the counter value coin when it was
+	 * bought (null if unknown): HIFO compares the lots paid with different coins on it
+	 */
+	public void addCoinBalanceEntry(LocalDateTime time, String coin, BigDecimal amount, String counterValueCoin, BigDecimal counterValueAmount, BigDecimal counterValueCoinPriceInEur) {
+		CoinBalanceEntry lot = new CoinBalanceEntry(time, coin, amount, counterValueCoin, counterValueAmount);
+		if(counterValueCoinPriceInEur != null && amount.signum() > 0) {
+			lot.unitCostInEur = lot.getPriceOfIncomeCoin().multiply(counterValueCoinPriceInEur);
+		}
+		balanceHistory.push(lot);
+		this.amount = this.amount.add(amount);
+	}
+
+	/**
+	 * Puts back a lot saved from the inventory: restoring them in reverse consumption order rebuilds
+	 * the same inventory for any cost-basis method
+	 */
+	public void restoreCoinBalanceEntry(CoinBalanceEntry lot) {
+		balanceHistory.restore(lot);
+		this.amount = this.amount.add(lot.getAmount());
+	}
+
+	/**
+	 * Takes the given amount from the lot the iterator is on: the lot is removed when it is used up,
+	 * otherwise it stays in the inventory with the rest
+	 */
+	public void take(Iterator<CoinBalanceEntry> lots, CoinBalanceEntry lot, BigDecimal used) {
+		if(used.compareTo(lot.getAmount())<0) {
+			lot.consume(used);
+		} else {
+			lots.remove();
+		}
+		this.amount = this.amount.subtract(used);
+	}
+
+	/**
+	 * Total of the open lots, O(1)
+	 */
+	public BigDecimal getAmount() {
+		return amount;
+	}
+
+	/**
+	 * Full sweep of the lots against the running total
+	 */
+	public void checkAmount() {
+		BigDecimal sum = balanceHistory.stream().map(CoinBalanceEntry::getAmount).reduce(BigDecimal.ZERO, BigDecimal::add);
+		if(sum.compareTo(amount)!=0) {
+			throw new IllegalStateException("Lots of " + coin + " sum to " + sum + " but the running total is " + amount);
+		}
+	}
 	
 	public static class CoinBalanceEntry {
+
+		/**
+		 * Unit cost = EUR paid per unit when the lot was bought, so that lots paid with different coins
+		 * compare; the lots with no EUR cost come below all the others, ordered by the price of the
+		 * income coin within each counter value coin. Averaged per counter value coin
+		 */
+		public static final LotType<CoinBalanceEntry> LOT_TYPE = new LotType<CoinBalanceEntry>() {
+			@Override
+			public Comparator<CoinBalanceEntry> unitCostOrder() {
+				return Comparator.comparing((CoinBalanceEntry lot) -> lot.getUnitCostInEur() != null)
+						.thenComparing(CoinBalanceEntry::getUnitCostInEur, Comparator.nullsFirst(Comparator.<BigDecimal>naturalOrder()))
+						.thenComparing(CoinBalanceEntry::getCounterValueCoin)
+						.thenComparing(CoinBalanceEntry::getPriceOfIncomeCoin);
+			}
+
+			@Override
+			public Object poolKey(CoinBalanceEntry lot) {
+				return lot.getCounterValueCoin();
+			}
+
+			@Override
+			public CoinBalanceEntry merge(CoinBalanceEntry pooled, CoinBalanceEntry lot) {
+				return new CoinBalanceEntry(pooled.getUtcTime(), pooled.getCoin(), pooled.getAmount().add(lot.getAmount()),
+						pooled.getCounterValueCoin(), pooled.getCounterValueAmount().add(lot.getCounterValueAmount()));
+			}
+		};
+
 		private final LocalDateTime utcTime;
 		private final String coin;
 		private BigDecimal amount;
@@ -34,6 +122,7 @@ public class CoinBalance {
 		private BigDecimal counterValueAmount;
 		
 		private BigDecimal priceOfCoin;
+		private BigDecimal unitCostInEur;
 		public CoinBalanceEntry(LocalDateTime time, String coin, BigDecimal amount, String counterValueCoin, BigDecimal counterValueAmount) {
 			this.utcTime=time;
 			this.coin=coin;
@@ -45,6 +134,22 @@ public class CoinBalance {
 			}
 		}
 
+		/**
+		 * A lot partially consumed, keeping the unit price it was bought at
+		 */
+		public CoinBalanceEntry(LocalDateTime time, String coin, BigDecimal amount, String counterValueCoin, BigDecimal counterValueAmount, BigDecimal priceOfCoin) {
+			this(time, coin, amount, counterValueCoin, counterValueAmount);
+			this.priceOfCoin = priceOfCoin;
+		}
+
+		/**
+		 * A lot saved with its unit price and its unit cost in EUR
+		 */
+		public CoinBalanceEntry(LocalDateTime time, String coin, BigDecimal amount, String counterValueCoin, BigDecimal counterValueAmount, BigDecimal priceOfCoin, BigDecimal unitCostInEur) {
+			this(time, coin, amount, counterValueCoin, counterValueAmount, priceOfCoin);
+			this.unitCostInEur = unitCostInEur;
+		}
+
 		public String getCoin() {
 			return coin;
 		}
@@ -61,18 +166,34 @@ public class CoinBalance {
 			return counterValueAmount;
 		}
 
+		/**
+		 * Unit price of the lot, computed once: a partial consumption keeps the counter value at
+		 * amount * price
+		 */
 		public BigDecimal getPriceOfIncomeCoin() {
-			BigDecimal price = counterValueAmount.divide(amount,CommonDef.BIG_DECIMAL_DIVISION_SCALE, RoundingMode.HALF_UP);
 			if(priceOfCoin==null) {
-				priceOfCoin = price;
-			}else {
-				if(priceOfCoin.subtract(price).abs().compareTo(CommonDef.acceptedError)>0) {
-					throw new RuntimeException();
-				}
+				priceOfCoin = counterValueAmount.divide(amount,CommonDef.BIG_DECIMAL_DIVISION_SCALE, RoundingMode.HALF_UP);
 			}
 			return priceOfCoin;
 		}
 
+		/**
+		 * EUR paid per unit when the lot was bought, null if the price of the counter value coin was not
+		 * known; unchanged by a partial consumption
+		 */
+		public BigDecimal getUnitCostInEur() {
+			return unitCostInEur;
+		}
+
+		/**
+		 * Takes the given amount from the lot, which stays in the inventory with the rest
+		 */
+		public void consume(BigDecimal used) {
+			BigDecimal price = getPriceOfIncomeCoin();
+			this.amount = amount.subtract(used);
+			this.counterValueAmount = amount.multiply(price);
+		}
+
 		public void setAmount(BigDecimal amount) {
 			this.amount = amount;
 		}
@@ -98,12 +219,12 @@ public class CoinBalance {
 
 
 
-	public List<CoinBalanceEntry> getBalanceHistory() {
+	public LotInventory<CoinBalanceEntry> getBalanceHistory() {
 		return balanceHistory;
 	}
 
 
-	public void setBalanceHistory(List<CoinBalanceEntry> balanceHistory) {
+	public void setBalanceHistory(LotInventory<CoinBalanceEntry> balanceHistory) {
 		this.balanceHistory = balanceHistory;
 	}
 
@@ -0,0 +1,153 @@
+package binance.model;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import binance.model.account.AccountType;
+import binance.struct.BinanceHistoryRecord;
+import binance.struct.BinanceOperationType;
+
+/**
+ * Sums the changes of the records with the same account, time, operation and coin.
+ * The four fields are packed in a long (account id | epoch second | operation ordinal | coin id)
+ * and looked up in an open-addressing table with linear probing, so adding a record costs one
+ * probe sequence and one BigDecimal addition, without a map per timestamp or a list per group.
+ * The aggregates are kept in the order their first record was added.
+ */
+public class HistoryAggregationTable {
+
+	private static final int COIN_BITS = 16;
+	private static final int OPERATION_BITS = 7;
+	private static final int SECOND_BITS = 36;
+	private static final int ACCOUNT_BITS = 4;
+
+	private static final int OPERATION_SHIFT = COIN_BITS;
+	private static final int SECOND_SHIFT = OPERATION_SHIFT + OPERATION_BITS;
+	private static final int ACCOUNT_SHIFT = SECOND_SHIFT + SECOND_BITS;
+
+	private final Map<String,Integer> accountIds = new HashMap<String, Integer>();
+	private final Map<String,Integer> coinIds = new HashMap<String, Integer>();
+
+	private long[] keys;
+	private int[] slots; // indice dell'aggregato + 1, 0 = slot libero
+	private final List<BinanceHistoryRecord> aggregates = new ArrayList<BinanceHistoryRecord>();
+	private BigDecimal[] sums;
+
+	public HistoryAggregationTable() {
+		this(1024);
+	}
+
+	public HistoryAggregationTable(int expectedAggregates) {
+		int capacity = Integer.highestOneBit(Math.max(16, expectedAggregates) * 2 - 1) << 1;
+		keys = new long[capacity];
+		slots = new int[capacity];
+		sums = new BigDecimal[capacity / 2];
+		// gli account noti hanno come id il loro ordinal
+		for (AccountType accountType : AccountType.values()) {
+			accountIds.put(accountType.getTransactionCrossReference(), accountType.ordinal());
+		}
+	}
+
+	public void add(BinanceHistoryRecord r) {
+		long key = packKey(r);
+		int mask = keys.length - 1;
+		int slot = (int) mix(key) & mask;
+		while (slots[slot] != 0) {
+			if (keys[slot] == key) {
+				int index = slots[slot] - 1;
+				sums[index] = sums[index].add(r.getChange());
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		int index = aggregates.size();
+		keys[slot] = key;
+		slots[slot] = index + 1;
+		sums[index] = r.getChange();
+		BinanceHistoryRecord aggregate = new BinanceHistoryRecord();
+		aggregate.setUserId(r.getUserId());
+		aggregate.setAccount(r.getAccount());
+		aggregate.setCoin(r.getCoin());
+		aggregate.setOperation(r.getOperation());
+		aggregate.setUtcTime(r.getUtcTime());
+		aggregates.add(aggregate);
+		if (aggregates.size() == sums.length) {
+			grow();
+		}
+	}
+
+	/**
+	 * Aggregates with their summed change, in first-seen order
+	 */
+	public List<BinanceHistoryRecord> getAggregates() {
+		for (int i = 0; i < aggregates.size(); i++) {
+			aggregates.get(i).setChange(sums[i]);
+		}
+		return aggregates;
+	}
+
+	public int size() {
+		return aggregates.size();
+	}
+
+	public void clear() {
+		Arrays.fill(slots, 0);
+		Arrays.fill(sums, null);
+		aggregates.clear();
+	}
+
+	private long packKey(BinanceHistoryRecord r) {
+		LocalDateTime utcTime = r.getUtcTime();
+		if (utcTime.getNano() != 0) {
+			throw new IllegalStateException("Sub-second time not supported in aggregation: " + r);
+		}
+		long epochSecond = utcTime.toEpochSecond(ZoneOffset.UTC);
+		if (epochSecond < 0 || epochSecond >>> SECOND_BITS != 0) {
+			throw new IllegalStateException("Time out of range for aggregation: " + r);
+		}
+		int account = accountIds.computeIfAbsent(r.getAccount(), a -> accountIds.size());
+		int coin = coinIds.computeIfAbsent(r.getCoin(), c -> coinIds.size());
+		BinanceOperationType operation = r.getOperation();
+		if (account >>> ACCOUNT_BITS != 0 || coin >>> COIN_BITS != 0 || operation.ordinal() >>> OPERATION_BITS != 0) {
+			throw new IllegalStateException("Too many distinct accounts, coins or operations to aggregate: " + r);
+		}
+		return (long) account << ACCOUNT_SHIFT | epochSecond << SECOND_SHIFT | (long) operation.ordinal() << OPERATION_SHIFT | coin;
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		int[] oldSlots = slots;
+		keys = new long[oldKeys.length * 2];
+		slots = new int[oldSlots.length * 2];
+		sums = Arrays.copyOf(sums, sums.length * 2);
+		int mask = keys.length - 1;
+		for (int i = 0; i < oldSlots.length; i++) {
+			if (oldSlots[i] != 0) {
+				int slot = (int) mix(oldKeys[i]) & mask;
+				while (slots[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = oldKeys[i];
+				slots[slot] = oldSlots[i];
+			}
+		}
+	}
+
+	/**
+	 * Finalizer of MurmurHash3: the low bits of the packed key (the coin) would cluster otherwise
+	 */
+	private static long mix(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb93e87344b53L;
+		key ^= key >>> 33;
+		return key;
+	}
+}
@@ -0,0 +1,101 @@
+package binance.model;
+
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import binance.struct.BinanceHistoryRecord;
+
+/**
+ * Aggregates a history read in time order, as the Binance exports are, keeping open only the
+ * seconds that can still receive records: with ordered input just the current one, whose
+ * aggregates are handed to the sink as soon as a later second is read.
+ * If the input is slightly out of order the last reorderSeconds seconds behind the latest one
+ * stay open as a reorder buffer; a record older than that can no longer be merged and fails.
+ * Memory is proportional to the largest burst of records in the open seconds, not to the history.
+ */
+public class StreamingHistoryAggregator {
+
+	private Logger logger = LogManager.getLogger(StreamingHistoryAggregator.class);
+
+	private final int reorderSeconds;
+	private final Consumer<List<BinanceHistoryRecord>> sink;
+
+	private final TreeMap<LocalDateTime,HistoryAggregationTable> openSeconds = new TreeMap<LocalDateTime, HistoryAggregationTable>();
+	private final Deque<HistoryAggregationTable> freeTables = new ArrayDeque<HistoryAggregationTable>();
+	private LocalDateTime latest;
+	private LocalDateTime lastClosed;
+	private long lateRecords;
+	private int maxOpenAggregates;
+
+	/**
+	 * @param sink receives the aggregates of every closed second, in time order
+	 */
+	public StreamingHistoryAggregator(int reorderSeconds, Consumer<List<BinanceHistoryRecord>> sink) {
+		if(reorderSeconds < 0) {
+			throw new IllegalArgumentException("reorderSeconds must not be negative: " + reorderSeconds);
+		}
+		this.reorderSeconds = reorderSeconds;
+		this.sink = sink;
+	}
+
+	public void add(BinanceHistoryRecord r) {
+		LocalDateTime utcTime = r.getUtcTime();
+		if(lastClosed != null && !utcTime.isAfter(lastClosed)) {
+			throw new IllegalStateException("History record older than the reorder buffer of " + reorderSeconds + "s (last closed second " + lastClosed + "), raise binance.history.reorder-seconds: " + r);
+		}
+		if(latest == null || utcTime.isAfter(latest)) {
+			latest = utcTime;
+		} else if(utcTime.isBefore(latest) && lateRecords++ == 0) {
+			logger.warn("History not in time order, using the reorder buffer: {} read after {}", utcTime, latest);
+		}
+		HistoryAggregationTable table = openSeconds.get(utcTime);
+		if(table == null) {
+			table = freeTables.isEmpty() ? new HistoryAggregationTable(16) : freeTables.pop();
+			openSeconds.put(utcTime, table);
+		}
+		table.add(r);
+		closeUpTo(latest.minusSeconds(reorderSeconds));
+	}
+
+	/**
+	 * Closes every open second, to be called at the end of the input
+	 */
+	public void flush() {
+		closeUpTo(null);
+		latest = null;
+		lastClosed = null;
+		if(lateRecords > 0) {
+			logger.info("{} history records read out of time order", lateRecords);
+		}
+		logger.info("Streaming aggregation: at most {} aggregates open at once", maxOpenAggregates);
+		lateRecords = 0;
+		maxOpenAggregates = 0;
+	}
+
+	/**
+	 * Hands to the sink the seconds before the given time (all if null)
+	 */
+	private void closeUpTo(LocalDateTime time) {
+		int openAggregates = 0;
+		for (HistoryAggregationTable table : openSeconds.values()) {
+			openAggregates += table.size();
+		}
+		maxOpenAggregates = Math.max(maxOpenAggregates, openAggregates);
+		while(!openSeconds.isEmpty() && (time == null || openSeconds.firstKey().isBefore(time))) {
+			Entry<LocalDateTime, HistoryAggregationTable> closed = openSeconds.pollFirstEntry();
+			sink.accept(new ArrayList<BinanceHistoryRecord>(closed.getValue().getAggregates()));
+			closed.getValue().clear();
+			freeTables.push(closed.getValue());
+			lastClosed = closed.getKey();
+		}
+	}
+}
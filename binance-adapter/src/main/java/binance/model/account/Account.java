@@ -68,6 +68,10 @@ public class Account {
 	public List<BinanceHistoryRecord> getRecords() {
 		return records;
 	}
+
+	public AccountType getAccountType() {
+		return accountType;
+	}
 	
 	
 	
@@ -0,0 +1,175 @@
+package binance.model.account;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import binance.prices.PriceTable;
+import binance.struct.BinanceHistoryRecord;
+
+/**
+ * Daily mark-to-market value in EUR of the accounts, from the first to the last day of their records:
+ * every coin held at the end of the day, less the margin loans still open, at the close of the day.
+ * The records of an account are summed into a coins x days matrix of daily changes, turned into the
+ * end-of-day balances by a prefix sum along each coin row, and the closes are read once per coin as
+ * a dense row, so the valuation is a sweep over primitive arrays with no price lookup per record.
+ * A coin held on a day without a close is valued 0 and reported by getUnpricedCoins.
+ */
+public class EquityCurve {
+
+	private static Logger logger = LogManager.getLogger(EquityCurve.class);
+
+	/** Balances below this are rounding residues of the double sums, not holdings */
+	private static final double DUST = 1e-8;
+
+	private final List<String> accounts = new ArrayList<String>();
+	private final Set<String> unpricedCoins = new TreeSet<String>();
+	private final LocalDate firstDay;
+	private final int days;
+	// equity per conto: riga a = giorni a*days ... a*days+days-1
+	private final double[] equity;
+	private final double[] total;
+
+	public EquityCurve(List<? extends Account> accounts, PriceTable priceTable) {
+		long start = System.nanoTime();
+		Map<String,Integer> coinIndex = new HashMap<String, Integer>();
+		List<String> coins = new ArrayList<String>();
+		// moneta e giorno di ogni record, letti una volta sola
+		int[][] coinOfRecord = new int[accounts.size()][];
+		int[][] epochDayOfRecord = new int[accounts.size()][];
+		int firstEpochDay = Integer.MAX_VALUE;
+		int lastEpochDay = Integer.MIN_VALUE;
+		for (int a = 0; a < accounts.size(); a++) {
+			Account account = accounts.get(a);
+			this.accounts.add(account.getAccountType().getTransactionCrossReference());
+			List<BinanceHistoryRecord> records = account.getRecords();
+			coinOfRecord[a] = new int[records.size()];
+			epochDayOfRecord[a] = new int[records.size()];
+			for (int i = 0; i < records.size(); i++) {
+				BinanceHistoryRecord r = records.get(i);
+				Integer coin = coinIndex.get(r.getCoin());
+				if(coin == null) {
+					coin = coins.size();
+					coinIndex.put(r.getCoin(), coin);
+					coins.add(r.getCoin());
+				}
+				int epochDay = (int) r.getUtcTime().toLocalDate().toEpochDay();
+				coinOfRecord[a][i] = coin;
+				epochDayOfRecord[a][i] = epochDay;
+				firstEpochDay = Math.min(firstEpochDay, epochDay);
+				lastEpochDay = Math.max(lastEpochDay, epochDay);
+			}
+		}
+		if(coins.isEmpty()) {
+			firstDay = null;
+			days = 0;
+			equity = new double[0];
+			total = new double[0];
+			return;
+		}
+		firstDay = LocalDate.ofEpochDay(firstEpochDay);
+		days = lastEpochDay - firstEpochDay + 1;
+
+		double[] closes = new double[coins.size() * days];
+		for (int c = 0; c < coins.size(); c++) {
+			if(coins.get(c).equals("EUR")) {
+				Arrays.fill(closes, c * days, (c + 1) * days, 1.0);
+			} else {
+				System.arraycopy(priceTable.getDailyCloses(coins.get(c), firstDay, days), 0, closes, c * days, days);
+			}
+		}
+
+		equity = new double[accounts.size() * days];
+		total = new double[days];
+		double[] changes = new double[coins.size() * days];
+		double[] loanChanges = new double[coins.size() * days];
+		boolean[] unpriced = new boolean[coins.size()];
+		for (int a = 0; a < accounts.size(); a++) {
+			Arrays.fill(changes, 0);
+			Arrays.fill(loanChanges, 0);
+			List<BinanceHistoryRecord> records = accounts.get(a).getRecords();
+			for (int i = 0; i < records.size(); i++) {
+				BinanceHistoryRecord r = records.get(i);
+				int cell = coinOfRecord[a][i] * days + epochDayOfRecord[a][i] - firstEpochDay;
+				double change = r.getChange().doubleValue();
+				changes[cell] += change;
+				if(r.isLoanOperation() || r.getOperation().isRepayment()) {
+					loanChanges[cell] += change;
+				}
+			}
+			int row = a * days;
+			for (int c = 0; c < coins.size(); c++) {
+				int cells = c * days;
+				double balance = 0;
+				double loan = 0;
+				for (int d = 0; d < days; d++) {
+					balance += changes[cells + d];
+					// il rimborso comprende gli interessi: il debito non scende sotto zero
+					loan = Math.max(0, loan + loanChanges[cells + d]);
+					double held = balance - loan;
+					if(Math.abs(held) > DUST) {
+						double close = closes[cells + d];
+						if(Double.isNaN(close)) {
+							unpriced[c] = true;
+						} else {
+							equity[row + d] += held * close;
+						}
+					}
+				}
+			}
+			for (int d = 0; d < days; d++) {
+				total[d] += equity[row + d];
+			}
+		}
+		for (int c = 0; c < coins.size(); c++) {
+			if(unpriced[c]) {
+				unpricedCoins.add(coins.get(c));
+			}
+		}
+		if(!unpricedCoins.isEmpty()) {
+			logger.warn("Equity curve: coins held on days without a close, valued 0 on those days: {}", unpricedCoins);
+		}
+		logger.info("Equity curve of {} accounts, {} coins and {} days computed in {} ms", accounts.size(), coins.size(), days, (System.nanoTime() - start) / 1_000_000);
+	}
+
+	/**
+	 * First day of the curve, null if the accounts have no records
+	 */
+	public LocalDate getFirstDay() {
+		return firstDay;
+	}
+
+	public int getDays() {
+		return days;
+	}
+
+	/**
+	 * Names of the accounts, in the order they were given
+	 */
+	public List<String> getAccounts() {
+		return accounts;
+	}
+
+	/**
+	 * Value in EUR of the account at the end of the day (0 = first day)
+	 */
+	public double getEquity(int account, int day) {
+		return equity[account * days + day];
+	}
+
+	public double getTotal(int day) {
+		return total[day];
+	}
+
+	public Set<String> getUnpricedCoins() {
+		return unpricedCoins;
+	}
+}
@@ -3,6 +3,7 @@ package binance.model.account.margin;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import binance.model.account.AccountType;
@@ -15,6 +16,9 @@ public class IsolatedMarginAccount extends MarginAccount {
 	private static Logger logger = LogManager.getLogger(IsolatedMarginAccount.class);
 	@Autowired private PriceTable priceTable;
 
+	@Value("${binance.margin.isolated.pair-threads:0}") // 0 = all the pairs in one sequential pass
+	private int pairThreads;
+
 	
 	public IsolatedMarginAccount() {
 		super(AccountType.ISOLATED_MARGIN, logger);
@@ -26,6 +30,14 @@ public class IsolatedMarginAccount extends MarginAccount {
 		return priceTable;
 	}
 
+	/**
+	 * Isolated margin pairs don't share balances, so they can be computed in parallel
+	 */
+	@Override
+	protected int getPairParallelism() {
+		return pairThreads;
+	}
+
 	
 		
 }
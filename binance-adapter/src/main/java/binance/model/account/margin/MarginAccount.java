@@ -2,24 +2,39 @@ package binance.model.account.margin;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
 
 import binance.CommonDef;
 import binance.model.CoinBalance;
 import binance.model.CoinBalance.CoinBalanceEntry;
+import binance.model.costbasis.CostBasisMethod;
 import binance.model.account.Account;
 import binance.model.account.AccountType;
 import binance.prices.PriceTable;
 import binance.struct.BinanceHistoryRecord;
 import binance.struct.Operation;
+import binance.struct.Position;
+import binance.struct.Position.ADD_OPERATION_RESULT;
+import binance.struct.PositionRegistry;
 import binance.struct.TataxOperationType;
 import binance.struct.TataxRecord;
 import binance.struct.UtcTimedRecordWithMovement;
@@ -28,6 +43,12 @@ public abstract class MarginAccount extends Account {
 
 	protected List<TataxRecord> recordsForTatax;
 
+	/**
+	 * The debits of a repayment paid with my coins are stamped this many seconds after it; the
+	 * latest of the records derived from a movement, PriceDemand plans the prices up to it
+	 */
+	public static final int REPAYMENT_DEBIT_DELAY_SECONDS = 3;
+
 	protected Map<String,BigDecimal> balanceAvailableLoans;
 
 
@@ -39,6 +60,18 @@ public abstract class MarginAccount extends Account {
 	Map<String,BigDecimal> balance = new HashMap<String, BigDecimal>();
 
 	private boolean addPAndLToTataxRecords = true;
+
+	@Value("${binance.margin.coalesce-window-seconds:0}") // 0 = every swap is a trade
+	private int coalesceWindowSeconds;
+
+	@Value("${binance.margin.paranoid-checks:false}") // true = full sweep of the balances after every movement
+	private boolean paranoidChecks;
+
+	@Value("${binance.margin.checkpoints:false}") // true = save the state at every year boundary and restart from the last valid one
+	private boolean checkpoints;
+
+	@Value("${binance.margin.cost-basis:LIFO}") // order in which the lots bought are matched: FIFO | LIFO | HIFO | AVERAGE
+	private CostBasisMethod costBasisMethod = CostBasisMethod.LIFO;
 	
 	public MarginAccount(AccountType accountType, Logger logger) {
 		super(accountType, logger);
@@ -50,100 +83,223 @@ public abstract class MarginAccount extends Account {
 
 
 	public void computePlusMinus() {
-		List<BinanceHistoryRecord> wrkBinanceHistoryRecords = this.records.stream().sorted().collect(Collectors.toList());
+		for (BinanceHistoryRecord binanceHistoryRecord : records) {
+			String coin = binanceHistoryRecord.getCoin();
+			balanceAvailableLoans.putIfAbsent(coin, BigDecimal.ZERO);
+			pricedCoinBalancesByCoinBoughtForProfitAndLoss.putIfAbsent(coin, new CoinBalance(coin, costBasisMethod));
+		}
+		movements.addAll(new TradeReconstructor().reconstruct(records));
+		if(coalesceWindowSeconds > 0) {
+			coalescePartialFills();
+		}
+		if(getPairParallelism() > 0) {
+			computePLPerPair(getPairParallelism());
+		} else {
+			computePL();
+		}
+	}
 
-		Map<String,List<BinanceHistoryRecord>> transfersInByCoin = new HashMap<String,List<BinanceHistoryRecord>>();
-		Map<String,List<BinanceHistoryRecord>> transfersOutByCoin = new HashMap<String,List<BinanceHistoryRecord>>();
-		Map<String,List<BinanceHistoryRecord>> loansByCoin = new HashMap<String,List<BinanceHistoryRecord>>();
-		List<Operation> operations = new ArrayList<Operation>();
-		Map<String,List<BinanceHistoryRecord>> repaysByCoin = new HashMap<String,List<BinanceHistoryRecord>>();
+	/**
+	 * Threads used to compute the independent groups of pairs, 0 = one sequential pass
+	 */
+	protected int getPairParallelism() {
+		return 0;
+	}
 
+	/**
+	 * Where the year-boundary checkpoints of the sequential pass are kept, null = no checkpoints
+	 */
+	protected Path getCheckpointDirectory() {
+		return checkpoints ? Paths.get("output", "checkpoints") : null;
+	}
 
-		Operation op = null;
-		Operation prevOp = null;
-		Operation liquidationOp = null;
-		for (BinanceHistoryRecord binanceHistoryRecord : wrkBinanceHistoryRecords) {
-			logger.info(binanceHistoryRecord);
-			String coin = binanceHistoryRecord.getCoin();
-			BigDecimal change = binanceHistoryRecord.getChange();
-			balanceAvailableLoans.putIfAbsent(coin, BigDecimal.ZERO);
-			pricedCoinBalancesByCoinBoughtForProfitAndLoss.putIfAbsent(coin, new CoinBalance(coin));
-			switch (binanceHistoryRecord.getOperation()) {
-			case TRANSFER_ACCOUNT:
-				if(change.compareTo(BigDecimal.ZERO)>=0) {
-					addElementToMappedList(transfersInByCoin, coin, binanceHistoryRecord);
-				}else {
-					addElementToMappedList(transfersOutByCoin, coin, binanceHistoryRecord);
+	/**
+	 * Isolated balances are kept per pair, so the movements split by the isolated pair they belong to
+	 * and every pair is computed by computePL on its own worker in a fork-join pool, with its own
+	 * balances, loans and lots of every coin: a USDT shared by BTC/USDT and ETH/USDT does not join the
+	 * two pairs. Then the balances of the workers are summed back and their tatax and P&amp;L records are
+	 * merged in timestamp order (the order within a pair is kept).
+	 */
+	private void computePLPerPair(int parallelism) {
+		Map<String,List<UtcTimedRecordWithMovement>> movementsByPair = groupByIsolatedPair();
+		logger.info("Computing {} movements in {} independent groups of pairs: {}", movements.size(), movementsByPair.size(), movementsByPair.keySet());
+
+		List<MarginAccount> workers = new ArrayList<MarginAccount>();
+		for (List<UtcTimedRecordWithMovement> pairMovements : movementsByPair.values()) {
+			MarginAccount worker = new MarginAccount(accountType, logger) {
+				@Override
+				public PriceTable getPriceTable() {
+					return MarginAccount.this.getPriceTable();
 				}
-				movements.add(binanceHistoryRecord);
-				break;
-			case ISOLATED_MARGIN_LOAN, 
-			MARGIN_LOAN:
-				addElementToMappedList(loansByCoin, coin, binanceHistoryRecord);
-			movements.add(binanceHistoryRecord);
-			break;
-			case TRANSACTION_SOLD, 
-			TRANSACTION_SPEND:
-				op = new Operation(binanceHistoryRecord);
-			prevOp = op;
-			op.setUtcTime(binanceHistoryRecord.getUtcTime());
-			op.setAmountSold(binanceHistoryRecord.getChange());
-			op.setCoinSold(binanceHistoryRecord.getCoin());
-			break;
-			case TRANSACTION_FEE:
-				if(binanceHistoryRecord.isMarginAccount()) {
-					String feeCoin = binanceHistoryRecord.getCoin();
-					if(feeCoin.equals(prevOp.getCoinBought())) {
-						prevOp.setAmountBought(prevOp.getAmountBought().subtract(change.negate()));
-					}else {
-						if(feeCoin.equals(prevOp.getCoinSold())) {
-							prevOp.setAmountSold(prevOp.getAmountSold().add(change));
-						}else {
-							movements.add(binanceHistoryRecord);
-						}
-					}
+			};
+			worker.addPAndLToTataxRecords = addPAndLToTataxRecords;
+			worker.paranoidChecks = paranoidChecks;
+			worker.costBasisMethod = costBasisMethod;
+			worker.movements = pairMovements;
+			for (UtcTimedRecordWithMovement movement : pairMovements) {
+				for (String coin : movement.isSwap() ? List.of(movement.getInCoin(), movement.getOutCoin()) : List.of(((BinanceHistoryRecord) movement).getCoin())) {
+					worker.balanceAvailableLoans.putIfAbsent(coin, BigDecimal.ZERO);
+					worker.pricedCoinBalancesByCoinBoughtForProfitAndLoss.putIfAbsent(coin, new CoinBalance(coin, costBasisMethod));
+				}
+			}
+			workers.add(worker);
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(Math.min(parallelism, workers.size()));
+		try {
+			List<Future<MarginAccount>> results = pool.invokeAll(workers.stream().map(worker -> (Callable<MarginAccount>) () -> {
+				worker.computePL();
+				return worker;
+			}).collect(Collectors.toList()));
+			for (Future<MarginAccount> result : results) {
+				result.get();
+			}
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} finally {
+			pool.shutdown();
+		}
 
+		List<List<TataxRecord>> tataxRecordsByGroup = new ArrayList<List<TataxRecord>>();
+		List<List<TataxRecord>> profitAndLossesByGroup = new ArrayList<List<TataxRecord>>();
+		for (MarginAccount worker : workers) {
+			worker.balance.forEach((coin, amount) -> balance.merge(coin, amount, BigDecimal::add));
+			worker.balanceAvailableLoans.forEach((coin, amount) -> balanceAvailableLoans.merge(coin, amount, BigDecimal::add));
+			tataxRecordsByGroup.add(worker.recordsForTatax);
+			profitAndLossesByGroup.add(worker.profitAndLosses);
+		}
+		recordsForTatax.addAll(mergeByTimeStamp(tataxRecordsByGroup));
+		profitAndLosses.addAll(mergeByTimeStamp(profitAndLossesByGroup));
+	}
+
+	/**
+	 * A swap goes to the open position of its pair, looked up in a PositionRegistry when it is not
+	 * the one of the previous swap; a loan, repayment, transfer or fee goes to the only pair trading its coin.
+	 * A coin traded in several pairs follows the movements of the same second whose pair is known
+	 * (i.e. the collateral transferred with the loan of the base coin), otherwise a swap of the coin:
+	 * the next one for a loan or a transfer in, the previous one for the rest (repayments, transfers
+	 * out, fees of the trades done). A coin never swapped is a group of its own.
+	 */
+	private Map<String,List<UtcTimedRecordWithMovement>> groupByIsolatedPair() {
+		PositionRegistry positions = new PositionRegistry();
+		Position position = null;
+		Map<String,Set<String>> pairsByCoin = new HashMap<String, Set<String>>();
+		Map<String,List<Integer>> swapsByCoin = new HashMap<String, List<Integer>>();
+		String[] pairByMovement = new String[movements.size()];
+		for (int i = 0; i < movements.size(); i++) {
+			UtcTimedRecordWithMovement movement = movements.get(i);
+			if(movement.isSwap()) {
+				Operation operation = (Operation) movement;
+				if(position == null || position.addOperation(operation, false) == ADD_OPERATION_RESULT.LOOK_FOR_COMPATIBLE_POSITION) {
+					position = positions.findCompatible(operation);
+					if(position == null) {
+						position = new Position(operation);
+						positions.register(position);
+					} else {
+						// un takeover letto al contrario resta fuori dagli swap della posizione ma ne prende la coppia
+						position.addOperation(operation, true);
+					}
 				}
-				break;
-			case TRANSACTION_BUY,
-			TRANSACTION_REVENUE:
-				op.setAmountBought(binanceHistoryRecord.getChange());
-			op.setCoinBought(binanceHistoryRecord.getCoin());
-			operations.add(op);
-			movements.add(op);
-			op = null;
-
-			break;
-			case CROSS_MARGIN_LIQUIDATION_SMALL_ASSET_TAKEOVER:
-				if(binanceHistoryRecord.getChange().compareTo(BigDecimal.ZERO)<0) {
-					liquidationOp = new Operation(binanceHistoryRecord);
-					liquidationOp.setUtcTime(binanceHistoryRecord.getUtcTime());
-					liquidationOp.setAmountSold(binanceHistoryRecord.getChange());
-					liquidationOp.setCoinSold(binanceHistoryRecord.getCoin());
-				}else {
-					liquidationOp.setAmountBought(binanceHistoryRecord.getChange());
-					liquidationOp.setCoinBought(binanceHistoryRecord.getCoin());
-					operations.add(liquidationOp);
-					movements.add(liquidationOp);
-					liquidationOp=null;
+				String pair = position.getPair();
+				pairByMovement[i] = pair;
+				for (String coin : List.of(operation.getCoinBought(), operation.getCoinSold())) {
+					pairsByCoin.computeIfAbsent(coin, c -> new HashSet<String>()).add(pair);
+					addElementToMappedList(swapsByCoin, coin, i);
 				}
-				break;
-			case ISOLATED_MARGIN_REPAYMENT, 
-			MARGIN_REPAYMENT:
-				addElementToMappedList(repaysByCoin, coin, binanceHistoryRecord);
-			movements.add(binanceHistoryRecord);
-			break;
-			case BNB_FEE_DEDUCTION:
-				movements.add(binanceHistoryRecord);
-				break;
-			case ISOLATED_MARGIN_LIQUIDATION_FEE:
-				movements.add(binanceHistoryRecord);
-				break;
-			default:
-				throw new RuntimeException("Unmanaged Case " + binanceHistoryRecord.getOperation());
 			}
 		}
-		computePL();
+		for (int i = 0; i < movements.size(); i++) {
+			String coin = movements.get(i).isSwap() ? null : ((BinanceHistoryRecord) movements.get(i)).getCoin();
+			Set<String> pairs = coin == null ? null : pairsByCoin.get(coin);
+			if(coin != null && (pairs == null || pairs.size() == 1)) {
+				pairByMovement[i] = pairs == null ? coin : pairs.iterator().next();
+			}
+		}
+		for (int i = 0; i < movements.size(); i++) {
+			if(pairByMovement[i] == null) {
+				pairByMovement[i] = sharedCoinPair(i, pairByMovement, pairsByCoin, swapsByCoin);
+			}
+		}
+		Map<String,List<UtcTimedRecordWithMovement>> movementsByPair = new LinkedHashMap<String, List<UtcTimedRecordWithMovement>>();
+		for (int i = 0; i < movements.size(); i++) {
+			addElementToMappedList(movementsByPair, pairByMovement[i], movements.get(i));
+		}
+		return movementsByPair;
+	}
+
+	private String sharedCoinPair(int index, String[] pairByMovement, Map<String,Set<String>> pairsByCoin, Map<String,List<Integer>> swapsByCoin) {
+		BinanceHistoryRecord record = (BinanceHistoryRecord) movements.get(index);
+		Set<String> pairs = pairsByCoin.get(record.getCoin());
+		for (int i = index - 1; i >= 0 && movements.get(i).getUtcTime().equals(record.getUtcTime()); i--) {
+			if(!movements.get(i).isSwap() && pairs.contains(pairByMovement[i])) {
+				return pairByMovement[i];
+			}
+		}
+		for (int i = index + 1; i < movements.size() && movements.get(i).getUtcTime().equals(record.getUtcTime()); i++) {
+			if(!movements.get(i).isSwap() && pairs.contains(pairByMovement[i])) {
+				return pairByMovement[i];
+			}
+		}
+		List<Integer> swaps = swapsByCoin.get(record.getCoin());
+		int next = -Collections.binarySearch(swaps, index) - 1;
+		boolean incoming = record.isLoanOperation() || record.isTransferAccountOperation() && record.getChange().compareTo(BigDecimal.ZERO) > 0;
+		int swap = incoming && next < swaps.size() || next == 0 ? swaps.get(next) : swaps.get(next - 1);
+		return pairByMovement[swap];
+	}
+
+	/**
+	 * k-way merge of lists each in its own order: the next record is the earliest head, the first group winning ties
+	 */
+	private static List<TataxRecord> mergeByTimeStamp(List<List<TataxRecord>> lists) {
+		List<TataxRecord> merged = new ArrayList<TataxRecord>();
+		int[] positions = new int[lists.size()];
+		while(true) {
+			int next = -1;
+			for (int i = 0; i < lists.size(); i++) {
+				if(positions[i] < lists.get(i).size() && (next == -1
+						|| lists.get(i).get(positions[i]).getTimeStamp().isBefore(lists.get(next).get(positions[next]).getTimeStamp()))) {
+					next = i;
+				}
+			}
+			if(next == -1) {
+				return merged;
+			}
+			merged.add(lists.get(next).get(positions[next]++));
+		}
+	}
+
+	/**
+	 * Merges the consecutive swaps of the same pair and direction within coalesceWindowSeconds from
+	 * the first one into a single trade, keeping the swaps as its legs.
+	 * Only adjacent movements are merged, so no transfer, loan or repayment changes place with a swap.
+	 */
+	private void coalescePartialFills() {
+		List<UtcTimedRecordWithMovement> coalesced = new ArrayList<UtcTimedRecordWithMovement>(movements.size());
+		Operation trade = null;
+		int swaps = 0;
+		for (UtcTimedRecordWithMovement movement : movements) {
+			if(!movement.isSwap()) {
+				coalesced.add(movement);
+				trade = null;
+				continue;
+			}
+			Operation swap = (Operation) movement;
+			swaps++;
+			if(trade != null && trade.canCoalesce(swap, coalesceWindowSeconds)) {
+				trade.addLeg(swap);
+			} else {
+				trade = new Operation(swap);
+				coalesced.add(trade);
+			}
+		}
+		logger.info("Coalesced {} swaps in {} movements ({} before)", swaps, coalesced.size(), movements.size());
+		movements = coalesced;
 	}
 
 	private void addRecordForTatax(TataxRecord tataxRecord, String reason, boolean doCheckBalance, boolean doGenerateCreditFromPrevSwaps) {
@@ -153,22 +309,17 @@ public abstract class MarginAccount extends Account {
 		if(doCheckBalance && !doGenerateCreditFromPrevSwaps && amount.compareTo(BigDecimal.ZERO)<0) {
 			if(balance.get(coin).add(amount).compareTo(BigDecimal.ZERO)<0) {
 				BigDecimal reducedAmount = amount.negate();
-				List<CoinBalanceEntry> coinBalanceHistory = pricedCoinBalancesByCoinBoughtForProfitAndLoss.get(coin).getBalanceHistory();
-				Iterator<CoinBalanceEntry> coinBalanceHistoryIterator = coinBalanceHistory.iterator();
+				CoinBalance coinBalance = pricedCoinBalancesByCoinBoughtForProfitAndLoss.get(coin);
+				Iterator<CoinBalanceEntry> coinBalanceHistoryIterator = coinBalance.getBalanceHistory().iterator();
 				while(coinBalanceHistoryIterator.hasNext()) { 
 					if(reducedAmount.compareTo(BigDecimal.ZERO)==0) break;
 					CoinBalanceEntry coinBalanceEntry = coinBalanceHistoryIterator.next();
-					BigDecimal availableFromPrevSwaps = coinBalanceEntry.getAmount();
 					BigDecimal availableFromPrevSwapsToUse = coinBalanceEntry.getAmount();
-					BigDecimal previousTradePrice = coinBalanceEntry.getPriceOfIncomeCoin(); //Quanti USDC per 1 BTC
 
 					if(availableFromPrevSwapsToUse.compareTo(reducedAmount)>0) { //E' troppo
 						availableFromPrevSwapsToUse = reducedAmount;
-						coinBalanceEntry.setAmount(availableFromPrevSwaps.subtract(availableFromPrevSwapsToUse));
-						coinBalanceEntry.setCounterValueAmount(coinBalanceEntry.getAmount().multiply(previousTradePrice));
-					} else {
-						coinBalanceHistoryIterator.remove(); //Lo esaurirò tutto						
 					}
+					coinBalance.take(coinBalanceHistoryIterator, coinBalanceEntry, availableFromPrevSwapsToUse);
 					reducedAmount = reducedAmount.subtract(availableFromPrevSwapsToUse);
 				}
 				tataxRecord= new TataxRecord(tataxRecord.getTimeStamp(),tataxRecord.getSymbol(),reducedAmount,tataxRecord.getMovementType());
@@ -188,26 +339,21 @@ public abstract class MarginAccount extends Account {
 	private void checkBalance(String coin, LocalDateTime time) {
 		logger.debug("Balance: {} {}",coin,balance.get(coin));
 		if(pricedCoinBalancesByCoinBoughtForProfitAndLoss.containsKey(coin)) {
-			logger.debug("Adjusted Balance {} {}",coin,balance.get(coin).doubleValue() + (this.pricedCoinBalancesByCoinBoughtForProfitAndLoss.get(coin).getBalanceHistory().stream().mapToDouble(e -> e.getAmount().doubleValue()).sum()));
+			logger.debug("Adjusted Balance {} {}",coin,balance.get(coin).add(pricedCoinBalancesByCoinBoughtForProfitAndLoss.get(coin).getAmount()));
 		}
 		if(balance.get(coin).compareTo(BigDecimal.ZERO)<0) {
 			BigDecimal amountToExhaust = balance.get(coin).negate();
-			List<CoinBalanceEntry> coinBalanceHistory = pricedCoinBalancesByCoinBoughtForProfitAndLoss.get(coin).getBalanceHistory();
-			Iterator<CoinBalanceEntry> coinBalanceHistoryIterator = coinBalanceHistory.iterator();
+			CoinBalance coinBalance = pricedCoinBalancesByCoinBoughtForProfitAndLoss.get(coin);
+			Iterator<CoinBalanceEntry> coinBalanceHistoryIterator = coinBalance.getBalanceHistory().iterator();
 			while(coinBalanceHistoryIterator.hasNext()) { 
 				if(amountToExhaust.compareTo(BigDecimal.ZERO)==0) break;
 				CoinBalanceEntry coinBalanceEntry = coinBalanceHistoryIterator.next();
-				BigDecimal availableFromPrevSwaps = coinBalanceEntry.getAmount();
 				BigDecimal availableFromPrevSwapsToUse = coinBalanceEntry.getAmount();
-				BigDecimal previousTradePrice = coinBalanceEntry.getPriceOfIncomeCoin(); //Quanti USDC per 1 BTC
 
 				if(availableFromPrevSwapsToUse.compareTo(amountToExhaust)>0) { //E' troppo
 					availableFromPrevSwapsToUse = amountToExhaust;
-					coinBalanceEntry.setAmount(availableFromPrevSwaps.subtract(availableFromPrevSwapsToUse));
-					coinBalanceEntry.setCounterValueAmount(coinBalanceEntry.getAmount().multiply(previousTradePrice));
-				} else {
-					coinBalanceHistoryIterator.remove(); //Lo esaurirò tutto						
 				}
+				coinBalance.take(coinBalanceHistoryIterator, coinBalanceEntry, availableFromPrevSwapsToUse);
 				TataxRecord credit = new TataxRecord(coinBalanceEntry.getUtcTime(),coin,availableFromPrevSwapsToUse,TataxOperationType.CREDIT, getPriceTable().getPrice(coin, time).multiply(availableFromPrevSwapsToUse),"EUR");
 				addRecordForTatax(credit, "... credit from prev swap for fix",false, true);
 				amountToExhaust = amountToExhaust.subtract(availableFromPrevSwapsToUse);
@@ -221,8 +367,16 @@ public abstract class MarginAccount extends Account {
 	}
 
 	public void computePL() {
-
-		for (int i = 0; i < movements.size(); i++) {
+		MarginCheckpoints yearCheckpoints = null;
+		int first = 0;
+		if(getCheckpointDirectory() != null) {
+			yearCheckpoints = new MarginCheckpoints(this, getCheckpointDirectory(), accountType.name(), costBasisMethod, addPAndLToTataxRecords);
+			first = yearCheckpoints.restore();
+		}
+		for (int i = first; i < movements.size(); i++) {
+			if(yearCheckpoints != null && i > first) {
+				yearCheckpoints.beforeMovement(i);
+			}
 			UtcTimedRecordWithMovement movement = movements.get(i);
 			logger.info("Movimento corrente: {}",movement.toReadableString());
 			if(!movement.isSwap()) {
@@ -249,8 +403,7 @@ public abstract class MarginAccount extends Account {
 					}
 				break;
 				case ISOLATED_MARGIN_LOAN, MARGIN_LOAN:
-					balanceAvailableLoans.put(coin, change.add(balanceAvailableLoans.get(coin)));
-				if(balanceAvailableLoans.get(coin).compareTo(BigDecimal.ZERO)<0) throw new RuntimeException();
+					putAvailableLoans(coin, change.add(balanceAvailableLoans.get(coin)));
 
 				break;
 				case ISOLATED_MARGIN_REPAYMENT, 
@@ -263,13 +416,12 @@ public abstract class MarginAccount extends Account {
 				if(usedAvailableFromNotUsedLoans.compareTo(amountToExhaust)>0) { //E' troppo
 					usedAvailableFromNotUsedLoans = amountToExhaust;
 				}
-				balanceAvailableLoans.put(coin, balanceAvailableLoans.get(coin).subtract(usedAvailableFromNotUsedLoans));
-				if(balanceAvailableLoans.get(coin).compareTo(BigDecimal.ZERO)<0) throw new RuntimeException();
+				putAvailableLoans(coin, balanceAvailableLoans.get(coin).subtract(usedAvailableFromNotUsedLoans));
 				amountToExhaust = amountToExhaust.subtract(usedAvailableFromNotUsedLoans);
 				if(amountToExhaust.compareTo(BigDecimal.ZERO)<0) throw new RuntimeException();
 				if(amountToExhaust.compareTo(BigDecimal.ZERO)>0) {
 					//ed in secondo luogo dalle mie monete aggiungendo il tatax debit
-					TataxRecord repaymentMyCoins = new TataxRecord(movement.getUtcTime().plusSeconds(3), coin, amountToExhaust, TataxOperationType.DEBIT);
+					TataxRecord repaymentMyCoins = new TataxRecord(movement.getUtcTime().plusSeconds(REPAYMENT_DEBIT_DELAY_SECONDS), coin, amountToExhaust, TataxOperationType.DEBIT);
 					addRecordForTatax(repaymentMyCoins, "... repayment", true,false);		
 				}
 				break;
@@ -297,23 +449,22 @@ public abstract class MarginAccount extends Account {
 					logger.info("... sto utilizzando {} dal denaro preso in prestito per la vendita", usedFromLoans);
 					amountToExaust = amountToExaust.subtract(usedFromLoans);
 					residualAmountBought = residualAmountBought.subtract(usedFromLoans.multiply(soldCoinPrice));
-					balanceAvailableLoans.put(coinSold, balanceAvailableLoans.get(coinSold).subtract(usedFromLoans));
+					putAvailableLoans(coinSold, balanceAvailableLoans.get(coinSold).subtract(usedFromLoans));
 
 					BigDecimal actualAmountBoughtUsingLoans = usedFromLoans.multiply(soldCoinPrice);
-					pricedCoinBalancesByCoinBoughtForProfitAndLoss.get(coinBought).addCoinBalanceEntry(operation.getUtcTime(), coinBought, actualAmountBoughtUsingLoans, coinSold, usedFromLoans);
-					if(balanceAvailableLoans.get(coinSold).compareTo(BigDecimal.ZERO)<0) throw new RuntimeException();
+					pricedCoinBalancesByCoinBoughtForProfitAndLoss.get(coinBought).addCoinBalanceEntry(operation.getUtcTime(), coinBought, actualAmountBoughtUsingLoans, coinSold, usedFromLoans, lotCostPriceInEur(coinSold, operation.getUtcTime()));
 				}
 				BigDecimal remaining = amountSold.negate();
 				if(usedFromLoans!=null)
 					remaining = remaining.subtract(usedFromLoans);
 				if(remaining.compareTo(BigDecimal.ZERO)>0) {
-					pricedCoinBalancesByCoinBoughtForProfitAndLoss.get(coinBought).addCoinBalanceEntry(operation.getUtcTime(), coinBought, remaining.multiply(soldCoinPrice), coinSold, remaining);
+					pricedCoinBalancesByCoinBoughtForProfitAndLoss.get(coinBought).addCoinBalanceEntry(operation.getUtcTime(), coinBought, remaining.multiply(soldCoinPrice), coinSold, remaining, lotCostPriceInEur(coinSold, operation.getUtcTime()));
 				}
 
 				if(amountToExaust.compareTo(BigDecimal.ZERO)>0) {
 					List<TataxRecord> profitAndLossesWrk = new ArrayList<TataxRecord>();
-					List<CoinBalanceEntry> coinBalanceHistory = pricedCoinBalancesByCoinBoughtForProfitAndLoss.get(coinSold).getBalanceHistory();
-					Iterator<CoinBalanceEntry> coinBalanceHistoryIterator = coinBalanceHistory.iterator();
+					CoinBalance coinBalance = pricedCoinBalancesByCoinBoughtForProfitAndLoss.get(coinSold);
+					Iterator<CoinBalanceEntry> coinBalanceHistoryIterator = coinBalance.getBalanceHistory().iterator();
 					while(coinBalanceHistoryIterator.hasNext()) { //Per P&L
 						if(amountToExaust.compareTo(BigDecimal.ZERO)==0)break; 
 						CoinBalanceEntry coinBalanceEntry = coinBalanceHistoryIterator.next();
@@ -327,12 +478,9 @@ public abstract class MarginAccount extends Account {
 							BigDecimal correspondingPreviouslySoldAmountPortion = previouslySoldAmount;
 							if(previouslyBoughtAmount.compareTo(amountToExaust)>0) { //Allora sto prendendo troppo da actualSoldAmountFromPricedCoinBalances
 								usedPreviouslyBoughtAmount = amountToExaust;
-								coinBalanceEntry.setAmount(previouslyBoughtAmount.subtract(usedPreviouslyBoughtAmount));
-								coinBalanceEntry.setCounterValueAmount(coinBalanceEntry.getAmount().multiply(previousTradePrice));
 								correspondingPreviouslySoldAmountPortion = usedPreviouslyBoughtAmount.multiply(previousTradePrice);
-							} else {
-								coinBalanceHistoryIterator.remove(); //Lo scambierò tutto
 							}
+							coinBalance.take(coinBalanceHistoryIterator, coinBalanceEntry, usedPreviouslyBoughtAmount);
 							amountToExaust = amountToExaust.subtract(usedPreviouslyBoughtAmount);
 							residualAmountBought = residualAmountBought.subtract(usedPreviouslyBoughtAmount.multiply(soldCoinPrice));
 
@@ -389,38 +537,35 @@ public abstract class MarginAccount extends Account {
 					
 					addRecordForTatax(creditRecordForTatax, "... credit", true, true);
 
-					List<CoinBalanceEntry> coinBalanceHistory = pricedCoinBalancesByCoinBoughtForProfitAndLoss.get(creditRecordForTatax.getSymbol()).getBalanceHistory();
-					Iterator<CoinBalanceEntry> coinBalanceHistoryIterator = coinBalanceHistory.iterator();
+					CoinBalance coinBalance = pricedCoinBalancesByCoinBoughtForProfitAndLoss.get(creditRecordForTatax.getSymbol());
+					Iterator<CoinBalanceEntry> coinBalanceHistoryIterator = coinBalance.getBalanceHistory().iterator();
 					BigDecimal amountToExhaust = creditRecordForTatax.getQuantity();
 
 					while(coinBalanceHistoryIterator.hasNext()) { 
 						if(amountToExhaust.compareTo(BigDecimal.ZERO)==0) break;
 						CoinBalanceEntry coinBalanceEntry = coinBalanceHistoryIterator.next();
-						BigDecimal availableFromPrevSwaps = coinBalanceEntry.getAmount();
 						BigDecimal availableFromPrevSwapsToUse = coinBalanceEntry.getAmount();
-						BigDecimal previousTradePrice = coinBalanceEntry.getPriceOfIncomeCoin(); //Quanti USDC per 1 BTC
 
 						if(availableFromPrevSwapsToUse.compareTo(amountToExhaust)>0) { //E' troppo
 							availableFromPrevSwapsToUse = amountToExhaust;
-							coinBalanceEntry.setAmount(availableFromPrevSwaps.subtract(availableFromPrevSwapsToUse));
-							coinBalanceEntry.setCounterValueAmount(coinBalanceEntry.getAmount().multiply(previousTradePrice));
-						} else {
-							coinBalanceHistoryIterator.remove(); //Lo esaurirò tutto						
 						}
+						coinBalance.take(coinBalanceHistoryIterator, coinBalanceEntry, availableFromPrevSwapsToUse);
 						amountToExhaust = amountToExhaust.subtract(availableFromPrevSwapsToUse);
 					}
 					addRecordForTatax(debitRecordForTatax, "... debit", true, true);
 
 				}
 			}
-			//CoherenceChecks
-			checkBalances();
+			//CoherenceChecks: i saldi toccati sono già verificati a ogni scrittura
+			if(paranoidChecks) {
+				checkBalances();
+			}
 		}
 		balanceAvailableLoans.entrySet().stream().forEach(e -> {
 			logger.info("Final availableLoans: {} {}",e.getKey(), e.getValue());
 		});
 		pricedCoinBalancesByCoinBoughtForProfitAndLoss.entrySet().forEach(e -> {
-			logger.info("Final priced: {} {}",e.getKey(),e.getValue().getBalanceHistory().stream().mapToDouble(e1 -> e1.getAmount().doubleValue()).sum());
+			logger.info("Final priced: {} {}",e.getKey(),e.getValue().getAmount().doubleValue());
 		});
 		balance.entrySet().stream().forEach(e -> {
 			logger.info("Final balance: {} {}",e.getKey(), e.getValue());
@@ -428,6 +573,17 @@ public abstract class MarginAccount extends Account {
 		logger.info("END");
 	}
 
+	/**
+	 * Price in EUR of the coin a lot was paid with, only needed by HIFO to compare lots paid with
+	 * different coins; null for the other methods or when the price is missing
+	 */
+	private BigDecimal lotCostPriceInEur(String counterValueCoin, LocalDateTime time) {
+		if(costBasisMethod != CostBasisMethod.HIFO) {
+			return null;
+		}
+		return counterValueCoin.equals("EUR") ? BigDecimal.ONE : getPriceTable().findPrice(counterValueCoin, time);
+	}
+
 	private void specialDebit(BinanceHistoryRecord bhr) {
 		String coin = bhr.getCoin();
 		TataxRecord debit =new TataxRecord(bhr.getUtcTime(),coin,bhr.getChange().negate(),TataxOperationType.DEBIT);
@@ -442,6 +598,19 @@ public abstract class MarginAccount extends Account {
 	}
 
 
+	/**
+	 * Writes the loans still available for the coin, checking them as they change
+	 */
+	private void putAvailableLoans(String coin, BigDecimal available) {
+		balanceAvailableLoans.put(coin, available);
+		if(available.compareTo(BigDecimal.ZERO)<0) {
+			throw new RuntimeException("Balance for coin " + coin + " is " + available +" - error LESS than ZERO balanceAvailableLoans");
+		}
+	}
+
+	/**
+	 * Full sweep of the available loans and of the lot totals, only in paranoid mode
+	 */
 	private void checkBalances() {
 		balanceAvailableLoans.entrySet().stream().forEach(e -> {
 			logger.debug("balanceAvailableLoans for {}: {}",e.getKey(), e.getValue());
@@ -449,6 +618,7 @@ public abstract class MarginAccount extends Account {
 				throw new RuntimeException("Balance for coin " + e.getKey() + " is " +e.getValue() +" - error LESS than ZERO balanceAvailableLoans");
 			}
 		});
+		pricedCoinBalancesByCoinBoughtForProfitAndLoss.values().forEach(CoinBalance::checkAmount);
 	}
 
 	protected <T> void addElementToMappedList(Map<String, List<T>> map, String key, T value) {
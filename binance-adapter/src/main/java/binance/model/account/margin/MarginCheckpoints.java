@@ -0,0 +1,278 @@
+package binance.model.account.margin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import binance.model.CoinBalance;
+import binance.model.CoinBalance.CoinBalanceEntry;
+import binance.model.costbasis.CostBasisMethod;
+import binance.struct.BinanceHistoryRecord;
+import binance.struct.Operation;
+import binance.struct.TataxOperationType;
+import binance.struct.TataxRecord;
+import binance.struct.UtcTimedRecordWithMovement;
+
+/**
+ * State of a margin account at the year boundaries, one binary file per account and year under the
+ * checkpoint directory: the balances, the loans still available, the open lots of every coin and the
+ * tatax and P&amp;L records produced so far. Every file carries the SHA-256 of the movements computed
+ * before the boundary (and of the prices and settings that change the result), so a run restores the
+ * latest checkpoint whose prior movements and prices are unchanged and computes only the movements
+ * after it.
+ */
+class MarginCheckpoints {
+
+	private static Logger logger = LogManager.getLogger(MarginCheckpoints.class);
+	private static final int VERSION = 2;
+
+	private final MarginAccount account;
+	private final Path directory;
+	private final String name;
+	private final CostBasisMethod costBasisMethod;
+	// hash dei movimenti precedenti per indice del primo movimento di ogni anno
+	private final Map<Integer, byte[]> hashByBoundary = new HashMap<Integer, byte[]>();
+
+	MarginCheckpoints(MarginAccount account, Path directory, String name, CostBasisMethod costBasisMethod, boolean addPAndLToTataxRecords) {
+		this.account = account;
+		this.directory = directory;
+		this.name = name;
+		this.costBasisMethod = costBasisMethod;
+		MessageDigest digest = newDigest();
+		// i record tatax salvati hanno già i controvalori in EUR
+		update(digest, costBasisMethod.name() + "|" + addPAndLToTataxRecords + "|" + account.getPriceTable().getPricesFingerprint());
+		List<UtcTimedRecordWithMovement> movements = account.movements;
+		for (int i = 0; i < movements.size(); i++) {
+			if(i > 0 && year(i) != year(i - 1)) {
+				hashByBoundary.put(i, copy(digest).digest());
+			}
+			update(digest, movements.get(i));
+		}
+	}
+
+	/**
+	 * Restores the latest valid checkpoint and returns the index of the first movement still to
+	 * compute, 0 when there is none
+	 */
+	int restore() {
+		for (int i = account.movements.size() - 1; i > 0; i--) {
+			byte[] hash = hashByBoundary.get(i);
+			Path file = file(year(i - 1));
+			if(hash == null || !Files.exists(file)) {
+				continue;
+			}
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+				if(in.readInt() != VERSION || in.readInt() != i || !Arrays.equals(hash, in.readNBytes(hash.length))) {
+					logger.info("Checkpoint {} is stale, the movements before it or the prices have changed", file);
+					continue;
+				}
+				read(in);
+				logger.info("Restored {}: computing {} of {} movements", file, account.movements.size() - i, account.movements.size());
+				return i;
+			} catch (IOException e) {
+				throw new RuntimeException("Unable to read checkpoint " + file, e);
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Before computing the movement at the given index: on the first movement of a year writes the
+	 * state reached at the end of the previous one
+	 */
+	void beforeMovement(int index) {
+		byte[] hash = hashByBoundary.get(index);
+		if(hash == null) {
+			return;
+		}
+		Path file = file(year(index - 1));
+		try {
+			Files.createDirectories(directory);
+			Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+				out.writeInt(VERSION);
+				out.writeInt(index);
+				out.write(hash);
+				write(out);
+			}
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			logger.info("Checkpoint {} written after {} movements", file, index);
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to write checkpoint " + file, e);
+		}
+	}
+
+	private void write(DataOutputStream out) throws IOException {
+		writeAmounts(out, account.balance);
+		writeAmounts(out, account.balanceAvailableLoans);
+		out.writeInt(account.pricedCoinBalancesByCoinBoughtForProfitAndLoss.size());
+		for (Map.Entry<String, CoinBalance> entry : account.pricedCoinBalancesByCoinBoughtForProfitAndLoss.entrySet()) {
+			out.writeUTF(entry.getKey());
+			out.writeInt(entry.getValue().getBalanceHistory().size());
+			for (CoinBalanceEntry lot : entry.getValue().getBalanceHistory()) {
+				writeTime(out, lot.getUtcTime());
+				out.writeUTF(lot.getCoin());
+				writeDecimal(out, lot.getAmount());
+				out.writeUTF(lot.getCounterValueCoin());
+				writeDecimal(out, lot.getCounterValueAmount());
+				writeDecimal(out, lot.getAmount().signum() == 0 ? null : lot.getPriceOfIncomeCoin());
+				writeDecimal(out, lot.getUnitCostInEur());
+			}
+		}
+		writeRecords(out, account.recordsForTatax);
+		writeRecords(out, account.profitAndLosses);
+	}
+
+	private void read(DataInputStream in) throws IOException {
+		account.balance.clear();
+		account.balance.putAll(readAmounts(in));
+		account.balanceAvailableLoans.putAll(readAmounts(in));
+		int coins = in.readInt();
+		for (int c = 0; c < coins; c++) {
+			String coin = in.readUTF();
+			List<CoinBalanceEntry> lots = new ArrayList<CoinBalanceEntry>();
+			for (int l = in.readInt(); l > 0; l--) {
+				lots.add(new CoinBalanceEntry(readTime(in), in.readUTF(), readDecimal(in), in.readUTF(), readDecimal(in), readDecimal(in), readDecimal(in)));
+			}
+			CoinBalance coinBalance = new CoinBalance(coin, costBasisMethod);
+			for (int l = lots.size() - 1; l >= 0; l--) {
+				coinBalance.restoreCoinBalanceEntry(lots.get(l));
+			}
+			account.pricedCoinBalancesByCoinBoughtForProfitAndLoss.put(coin, coinBalance);
+		}
+		account.recordsForTatax.clear();
+		account.recordsForTatax.addAll(readRecords(in));
+		account.profitAndLosses.clear();
+		account.profitAndLosses.addAll(readRecords(in));
+	}
+
+	private Path file(int year) {
+		return directory.resolve(name + "-" + year + ".bin");
+	}
+
+	private int year(int index) {
+		return account.movements.get(index).getUtcTime().getYear();
+	}
+
+	private static void writeAmounts(DataOutputStream out, Map<String, BigDecimal> amounts) throws IOException {
+		out.writeInt(amounts.size());
+		for (Map.Entry<String, BigDecimal> entry : amounts.entrySet()) {
+			out.writeUTF(entry.getKey());
+			writeDecimal(out, entry.getValue());
+		}
+	}
+
+	private static Map<String, BigDecimal> readAmounts(DataInputStream in) throws IOException {
+		Map<String, BigDecimal> amounts = new HashMap<String, BigDecimal>();
+		for (int i = in.readInt(); i > 0; i--) {
+			amounts.put(in.readUTF(), readDecimal(in));
+		}
+		return amounts;
+	}
+
+	private static void writeRecords(DataOutputStream out, List<TataxRecord> records) throws IOException {
+		out.writeInt(records.size());
+		for (TataxRecord record : records) {
+			writeTime(out, record.getTimeStamp());
+			out.writeUTF(record.getSymbol());
+			writeDecimal(out, record.getQuantity());
+			out.writeUTF(record.getMovementType().name());
+			writeDecimal(out, record.getSourceCountervalue());
+			out.writeUTF(record.getSourceSymbolCountervalue());
+		}
+	}
+
+	private static List<TataxRecord> readRecords(DataInputStream in) throws IOException {
+		List<TataxRecord> records = new ArrayList<TataxRecord>();
+		for (int i = in.readInt(); i > 0; i--) {
+			records.add(new TataxRecord(readTime(in), in.readUTF(), readDecimal(in), TataxOperationType.valueOf(in.readUTF()), readDecimal(in), in.readUTF()));
+		}
+		return records;
+	}
+
+	private static void writeTime(DataOutputStream out, LocalDateTime time) throws IOException {
+		out.writeLong(time.toEpochSecond(ZoneOffset.UTC));
+		out.writeInt(time.getNano());
+	}
+
+	private static LocalDateTime readTime(DataInputStream in) throws IOException {
+		return LocalDateTime.ofEpochSecond(in.readLong(), in.readInt(), ZoneOffset.UTC);
+	}
+
+	/**
+	 * Scale and unscaled value, a negative length for null
+	 */
+	private static void writeDecimal(DataOutputStream out, BigDecimal value) throws IOException {
+		if(value == null) {
+			out.writeShort(-1);
+			return;
+		}
+		byte[] unscaled = value.unscaledValue().toByteArray();
+		out.writeShort(unscaled.length);
+		out.write(unscaled);
+		out.writeInt(value.scale());
+	}
+
+	private static BigDecimal readDecimal(DataInputStream in) throws IOException {
+		int length = in.readShort();
+		if(length < 0) {
+			return null;
+		}
+		BigInteger unscaled = new BigInteger(in.readNBytes(length));
+		return new BigDecimal(unscaled, in.readInt());
+	}
+
+	private static void update(MessageDigest digest, UtcTimedRecordWithMovement movement) {
+		if(movement.isSwap()) {
+			Operation operation = (Operation) movement;
+			update(digest, operation.getUtcTime() + "|" + operation.getAmountSold() + "|" + operation.getCoinSold()
+					+ "|" + operation.getAmountBought() + "|" + operation.getCoinBought()
+					+ "|" + (operation.getLegs() == null ? 1 : operation.getLegs().size()));
+		} else {
+			BinanceHistoryRecord record = (BinanceHistoryRecord) movement;
+			update(digest, record.getUtcTime() + "|" + record.getAccount() + "|" + record.getOperation()
+					+ "|" + record.getCoin() + "|" + record.getChange());
+		}
+	}
+
+	private static void update(MessageDigest digest, String value) {
+		digest.update(value.getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) '\n');
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static MessageDigest copy(MessageDigest digest) {
+		try {
+			return (MessageDigest) digest.clone();
+		} catch (CloneNotSupportedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -1,17 +1,72 @@
 package binance.model.account.margin;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
+import binance.model.costbasis.CostBasisMethod;
+
+/**
+ * One PositionTracker per asset: the fixed-point buy and sell methods take live fills without
+ * allocating once the asset has been seen, process converts a MarginTransaction.
+ */
 public class PortforlioTracker {
     private final Map<String, PositionTracker> positions = new HashMap<>();
+    private final CostBasisMethod costBasisMethod;
+    private final PositionTracker.MatchListener listener;
+
+    public PortforlioTracker() {
+        this(CostBasisMethod.LIFO);
+    }
+
+    public PortforlioTracker(CostBasisMethod costBasisMethod) {
+        this(costBasisMethod, null);
+    }
+
+    public PortforlioTracker(CostBasisMethod costBasisMethod, PositionTracker.MatchListener listener) {
+        this.costBasisMethod = costBasisMethod;
+        this.listener = listener;
+    }
 
     public void process(MarginTransaction tx) {
-        positions.computeIfAbsent(tx.getAsset(), PositionTracker::new)
-                 .process(tx);
+        position(tx.getAsset()).process(tx);
+    }
+
+    public void buy(String asset, long quantity, long price, long fee, String currency) {
+        position(asset).buy(quantity, price, fee, currency);
+    }
+
+    public void sell(String asset, long quantity, long price, long fee) {
+        position(asset).sell(quantity, price, fee);
     }
 
     public double getRealizedPnL(String asset) {
-        return positions.getOrDefault(asset, new PositionTracker(asset)).getRealizedPnL();
+        PositionTracker position = positions.get(asset);
+        return position == null ? 0.0 : position.getRealizedPnL();
+    }
+
+    public long getRealizedPnLFixed(String asset) {
+        PositionTracker position = positions.get(asset);
+        return position == null ? 0 : position.getRealizedPnLFixed();
+    }
+
+    /**
+     * Trackers by asset, read-only
+     */
+    public Map<String, PositionTracker> getPositions() {
+        return Collections.unmodifiableMap(positions);
+    }
+
+    public PositionTracker getPosition(String asset) {
+        return positions.get(asset);
+    }
+
+    private PositionTracker position(String asset) {
+        PositionTracker position = positions.get(asset);
+        if (position == null) {
+            position = new PositionTracker(asset, costBasisMethod, listener);
+            positions.put(asset, position);
+        }
+        return position;
     }
 }
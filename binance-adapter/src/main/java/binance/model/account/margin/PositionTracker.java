@@ -1,71 +1,344 @@
 package binance.model.account.margin;
 
-import java.util.ArrayDeque;
-import java.util.Deque;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
+import binance.model.costbasis.CostBasisMethod;
+
+/**
+ * Realized P&amp;L of one asset, matching every sell against the open buy lots in the order of the
+ * cost-basis method. Quantities, prices and amounts are fixed-point longs with 8 decimals (SCALE)
+ * and the open lots live in parallel primitive arrays, so a fill is matched exactly and without
+ * allocating: the P&amp;L is accumulated and, when a listener is given, reported match by match.
+ * FIFO and LIFO take the lots from the ends of a ring, HIFO from the top of a binary heap on the
+ * unit price, AVERAGE keeps one pool per currency and takes them in the order they were opened.
+ */
 public class PositionTracker {
 
+    private static final Logger logger = LogManager.getLogger(PositionTracker.class);
+
+    /** Fixed-point scale: 1 = 0.00000001 */
+    public static final long SCALE = 100_000_000L;
+
+    /**
+     * Receives every match: quantity of the asset, P&amp;L and fees in the currency, all fixed-point
+     */
+    public interface MatchListener {
+        void onMatch(String asset, long quantity, long pnl, long fees);
+    }
+
     private final String asset;
-    private final Deque<MarginTransaction> buyStack = new ArrayDeque<>();
-    private double realizedPnL = 0.0;
+    private final CostBasisMethod costBasisMethod;
+    private final MatchListener listener;
+
+    // lotti aperti: quantità, costo e fee residui, prezzo unitario (ordine HIFO), valuta (pool AVERAGE)
+    private long[] quantities = new long[16];
+    private long[] costs = new long[16];
+    private long[] fees = new long[16];
+    private long[] prices = new long[16];
+    private long[] sequences = new long[16];
+    private String[] currencies = new String[16];
+    private int head;
+    private int size;
+    private long nextSequence;
+
+    private long realizedPnL;
+    private long unmatchedQuantity;
+    private long openQuantity;
+    private long openCost;
 
     public PositionTracker(String asset) {
+        this(asset, CostBasisMethod.LIFO, null);
+    }
+
+    public PositionTracker(String asset, CostBasisMethod costBasisMethod) {
+        this(asset, costBasisMethod, null);
+    }
+
+    public PositionTracker(String asset, CostBasisMethod costBasisMethod, MatchListener listener) {
         this.asset = asset;
+        this.costBasisMethod = costBasisMethod;
+        this.listener = listener;
     }
 
     public void process(MarginTransaction tx) {
         switch (tx.getType()) {
-            case BUY -> buyStack.push(tx);
-            case SELL -> matchSell(tx);
-		default -> throw new IllegalArgumentException("Unexpected value: " + tx.getType());
+            case BUY -> buy(toFixed(tx.getQuantity()), toFixed(tx.getPrice()), toFixed(tx.getFeeAmount()), tx.getCurrency());
+            case SELL -> sell(toFixed(tx.getQuantity()), toFixed(tx.getPrice()), toFixed(tx.getFeeAmount()));
+            default -> throw new IllegalArgumentException("Unexpected value: " + tx.getType());
         }
     }
 
-    private void matchSell(MarginTransaction sellTx) {
-        double qtyToSell = sellTx.getQuantity();
-        double sellPrice = sellTx.getPrice();
-        double sellFee = sellTx.getFeeAmount();
-
-        while (qtyToSell > 0 && !buyStack.isEmpty()) {
-            MarginTransaction lastBuy = buyStack.pop();
-            double buyQty = lastBuy.getQuantity();
-            double matchedQty = Math.min(qtyToSell, buyQty);
-
-            double buyCost = lastBuy.getPrice() * matchedQty;
-            double buyFeePerUnit = lastBuy.getFeeAmount() / lastBuy.getQuantity();
-            double totalBuyFee = matchedQty * buyFeePerUnit;
+    public void buy(long quantity, long price, long fee, String currency) {
+        long cost = mulDiv(quantity, price, SCALE);
+        openQuantity += quantity;
+        openCost += cost;
+        if (costBasisMethod == CostBasisMethod.AVERAGE) {
+            for (int i = 0; i < size; i++) {
+                int pool = slot(i);
+                if (currencies[pool].equals(currency)) {
+                    quantities[pool] += quantity;
+                    costs[pool] += cost;
+                    fees[pool] += fee;
+                    return;
+                }
+            }
+        }
+        if (size == quantities.length) {
+            grow();
+        }
+        int lot = slot(size);
+        quantities[lot] = quantity;
+        costs[lot] = cost;
+        fees[lot] = fee;
+        prices[lot] = price;
+        sequences[lot] = nextSequence++;
+        currencies[lot] = currency;
+        size++;
+        if (costBasisMethod == CostBasisMethod.HIFO) {
+            siftUp(size - 1);
+        }
+    }
 
-            double sellRevenue = sellPrice * matchedQty;
-            double sellFeeProRata = sellFee * (matchedQty / sellTx.getQuantity());
+    public void sell(long quantity, long price, long fee) {
+        long qtyToSell = quantity;
+        long sellFee = fee;
+        while (qtyToSell > 0 && size > 0) {
+            int lot = nextLot();
+            long lotQuantity = quantities[lot];
+            long matchedQty = Math.min(qtyToSell, lotQuantity);
+            boolean wholeLot = matchedQty == lotQuantity;
 
-            double pnl = (sellRevenue - sellFeeProRata) - (buyCost + totalBuyFee);
+            long buyCost = wholeLot ? costs[lot] : mulDiv(costs[lot], matchedQty, lotQuantity);
+            long buyFee = wholeLot ? fees[lot] : mulDiv(fees[lot], matchedQty, lotQuantity);
+            long sellFeeProRata = matchedQty == qtyToSell ? sellFee : mulDiv(sellFee, matchedQty, qtyToSell);
+            long pnl = mulDiv(matchedQty, price, SCALE) - sellFeeProRata - buyCost - buyFee;
             realizedPnL += pnl;
-
-            System.out.printf("[LIFO] PnL %.4f %s: %.2f (fee %.2f)\n",
-                    matchedQty, asset, pnl, totalBuyFee + sellFeeProRata);
+            if (listener != null) {
+                listener.onMatch(asset, matchedQty, pnl, buyFee + sellFeeProRata);
+            }
 
             qtyToSell -= matchedQty;
-
-            if (buyQty > matchedQty) {
-                buyStack.push(new MarginTransaction(
-                        MarginTransactionType.BUY,
-                        lastBuy.getTimestamp(),
-                        buyQty - matchedQty,
-                        lastBuy.getPrice(),
-                        lastBuy.getFeeAmount() * ((buyQty - matchedQty) / buyQty),
-                        lastBuy.getAsset(),
-                        lastBuy.getCurrency()
-                ));
+            sellFee -= sellFeeProRata;
+            openQuantity -= matchedQty;
+            openCost -= buyCost;
+            if (wholeLot) {
+                removeNextLot();
+            } else {
+                quantities[lot] -= matchedQty;
+                costs[lot] -= buyCost;
+                fees[lot] -= buyFee;
             }
         }
-
         if (qtyToSell > 0) {
-            System.out.printf("Warning: sold %.4f %s without enough buys.\n",
-                    qtyToSell, asset);
+            unmatchedQuantity += qtyToSell;
+            logger.warn("Sold {} {} without enough buys", (double) qtyToSell / SCALE, asset);
         }
     }
 
     public double getRealizedPnL() {
+        return (double) realizedPnL / SCALE;
+    }
+
+    public long getRealizedPnLFixed() {
         return realizedPnL;
     }
+
+    /**
+     * Quantity sold with no open lot to match, fixed-point
+     */
+    public long getUnmatchedQuantity() {
+        return unmatchedQuantity;
+    }
+
+    public int getOpenLots() {
+        return size;
+    }
+
+    /**
+     * Quantity still held in the open lots, fixed-point
+     */
+    public long getOpenQuantity() {
+        return openQuantity;
+    }
+
+    /**
+     * Cost of the open lots without their fees, in the currencies they were bought with, fixed-point
+     */
+    public long getOpenCost() {
+        return openCost;
+    }
+
+    public static long toFixed(double value) {
+        return Math.round(value * SCALE);
+    }
+
+    /**
+     * a * b / c rounded half up, exact on the 128-bit product (a, b &gt;= 0, c &gt; 0)
+     */
+    public static long mulDiv(long a, long b, long c) {
+        long high = Math.multiplyHigh(a, b);
+        long low = a * b;
+        long quotient;
+        if (high == 0 && low >= 0) {
+            quotient = low / c;
+        } else {
+            if (high >= c) {
+                throw new ArithmeticException("Fixed-point overflow: " + a + " * " + b + " / " + c);
+            }
+            quotient = divide128(high, low, c);
+            if (quotient < 0) {
+                throw new ArithmeticException("Fixed-point overflow: " + a + " * " + b + " / " + c);
+            }
+        }
+        // il resto sta nei 64 bit bassi, essendo minore di c
+        long remainder = low - quotient * c;
+        return remainder >= c - remainder ? quotient + 1 : quotient;
+    }
+
+    /**
+     * Unsigned 128 by 64 bit division in two 32-bit digits (Hacker's Delight, divlu), high &lt; divisor
+     */
+    private static long divide128(long high, long low, long divisor) {
+        final long base = 1L << 32;
+        final long mask = base - 1;
+        int shift = Long.numberOfLeadingZeros(divisor);
+        long v = divisor << shift;
+        long vn1 = v >>> 32;
+        long vn0 = v & mask;
+        long un32 = (high << shift) | (shift == 0 ? 0 : low >>> (64 - shift));
+        long un10 = low << shift;
+        long un1 = un10 >>> 32;
+        long un0 = un10 & mask;
+
+        long q1 = Long.divideUnsigned(un32, vn1);
+        long rhat = un32 - q1 * vn1;
+        while (Long.compareUnsigned(q1, base) >= 0 || Long.compareUnsigned(q1 * vn0, (rhat << 32) + un1) > 0) {
+            q1--;
+            rhat += vn1;
+            if (Long.compareUnsigned(rhat, base) >= 0) {
+                break;
+            }
+        }
+        long un21 = (un32 << 32) + un1 - q1 * v;
+
+        long q0 = Long.divideUnsigned(un21, vn1);
+        rhat = un21 - q0 * vn1;
+        while (Long.compareUnsigned(q0, base) >= 0 || Long.compareUnsigned(q0 * vn0, (rhat << 32) + un0) > 0) {
+            q0--;
+            rhat += vn1;
+            if (Long.compareUnsigned(rhat, base) >= 0) {
+                break;
+            }
+        }
+        return (q1 << 32) + q0;
+    }
+
+    private int nextLot() {
+        return costBasisMethod == CostBasisMethod.LIFO ? slot(size - 1) : slot(0);
+    }
+
+    private void removeNextLot() {
+        switch (costBasisMethod) {
+            case LIFO -> currencies[slot(size - 1)] = null;
+            case HIFO -> {
+                move(size - 1, 0);
+                currencies[size - 1] = null;
+            }
+            default -> {
+                currencies[head] = null;
+                head = slot(1);
+            }
+        }
+        size--;
+        if (costBasisMethod == CostBasisMethod.HIFO && size > 0) {
+            siftDown(0);
+        }
+    }
+
+    private int slot(int index) {
+        return (head + index) & (quantities.length - 1);
+    }
+
+    /**
+     * Doubles the arrays, copying the lots from position 0 (HIFO always keeps head at 0)
+     */
+    private void grow() {
+        int capacity = quantities.length * 2;
+        long[] newQuantities = new long[capacity];
+        long[] newCosts = new long[capacity];
+        long[] newFees = new long[capacity];
+        long[] newPrices = new long[capacity];
+        long[] newSequences = new long[capacity];
+        String[] newCurrencies = new String[capacity];
+        for (int i = 0; i < size; i++) {
+            int lot = slot(i);
+            newQuantities[i] = quantities[lot];
+            newCosts[i] = costs[lot];
+            newFees[i] = fees[lot];
+            newPrices[i] = prices[lot];
+            newSequences[i] = sequences[lot];
+            newCurrencies[i] = currencies[lot];
+        }
+        quantities = newQuantities;
+        costs = newCosts;
+        fees = newFees;
+        prices = newPrices;
+        sequences = newSequences;
+        currencies = newCurrencies;
+        head = 0;
+    }
+
+    /**
+     * HIFO order: highest unit price first, the oldest lot first at the same price
+     */
+    private boolean before(int i, int j) {
+        return prices[i] != prices[j] ? prices[i] > prices[j] : sequences[i] < sequences[j];
+    }
+
+    private void siftUp(int index) {
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (!before(index, parent)) {
+                break;
+            }
+            swap(index, parent);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index) {
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && before(child + 1, child)) {
+                child++;
+            }
+            if (!before(child, index)) {
+                break;
+            }
+            swap(index, child);
+            index = child;
+        }
+    }
+
+    private void swap(int i, int j) {
+        long quantity = quantities[i]; quantities[i] = quantities[j]; quantities[j] = quantity;
+        long cost = costs[i]; costs[i] = costs[j]; costs[j] = cost;
+        long fee = fees[i]; fees[i] = fees[j]; fees[j] = fee;
+        long price = prices[i]; prices[i] = prices[j]; prices[j] = price;
+        long sequence = sequences[i]; sequences[i] = sequences[j]; sequences[j] = sequence;
+        String currency = currencies[i]; currencies[i] = currencies[j]; currencies[j] = currency;
+    }
+
+    private void move(int from, int to) {
+        quantities[to] = quantities[from];
+        costs[to] = costs[from];
+        fees[to] = fees[from];
+        prices[to] = prices[from];
+        sequences[to] = sequences[from];
+        currencies[to] = currencies[from];
+    }
 }
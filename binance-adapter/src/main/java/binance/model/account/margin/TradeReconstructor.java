@@ -0,0 +1,421 @@
+package binance.model.account.margin;
+
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import binance.struct.BinanceHistoryRecord;
+import binance.struct.Operation;
+import binance.struct.UtcTimedRecordWithMovement;
+
+/**
+ * Rebuilds the swaps of a margin account from their legs without relying on the row order: one pass
+ * puts every record in a hash index by (account, timestamp), then within each timestamp the spend or
+ * sold legs are joined with the buy or revenue legs of the same side. When a side has several legs
+ * the pairing used is the only one joining legs of different coins or, if there are more, the only
+ * one whose prices are all close to the last trade of the same coins; the legs left over are joined
+ * the same way with those left over in the next second of the account. The fees are applied to the
+ * trade paying or receiving their coin.
+ * The movements come out in time order, each swap at the place of its closing leg (of its later leg
+ * when the two are a second apart). A leg without a counterpart, or with more than one plausible
+ * pairing, stops the reconstruction; a lenient reconstructor leaves it out of the swaps and reports
+ * it by getUnmatchedLegs.
+ */
+public class TradeReconstructor {
+
+	private static Logger logger = LogManager.getLogger(TradeReconstructor.class);
+
+	/** A pairing is plausible when its price is within this factor of the last trade of the same coins */
+	private static final double MAX_PRICE_FACTOR = 1.5;
+	/** Legs of one side in one second above which the pairings are not enumerated */
+	private static final int MAX_LEGS_PER_SIDE = 8;
+
+	private enum Side {
+		BUY, SELL, LIQUIDATION;
+
+		static Side of(BinanceHistoryRecord record) {
+			switch (record.getOperation()) {
+			case TRANSACTION_SPEND, TRANSACTION_BUY:
+				return BUY;
+			case TRANSACTION_SOLD, TRANSACTION_REVENUE:
+				return SELL;
+			case CROSS_MARGIN_LIQUIDATION_SMALL_ASSET_TAKEOVER:
+				return LIQUIDATION;
+			default:
+				return null;
+			}
+		}
+	}
+
+	private static final class TradeKey {
+		private final String account;
+		private final LocalDateTime utcTime;
+
+		private TradeKey(BinanceHistoryRecord record) {
+			this.account = record.getAccount();
+			this.utcTime = record.getUtcTime();
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(account, utcTime);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof TradeKey)) {
+				return false;
+			}
+			TradeKey other = (TradeKey) obj;
+			return utcTime.equals(other.utcTime) && account.equals(other.account);
+		}
+	}
+
+	/**
+	 * The records of one account in one second, with the legs still to pair
+	 */
+	private static final class Group {
+		private final TradeKey key;
+		private final List<BinanceHistoryRecord> records;
+		private final Map<Side, List<BinanceHistoryRecord>> openingLegs = new EnumMap<Side, List<BinanceHistoryRecord>>(Side.class);
+		private final Map<Side, List<BinanceHistoryRecord>> closingLegs = new EnumMap<Side, List<BinanceHistoryRecord>>(Side.class);
+		// ogni swap esce al posto della sua gamba più recente
+		private final Map<BinanceHistoryRecord, Operation> operationByLeg = new IdentityHashMap<BinanceHistoryRecord, Operation>();
+		private final List<Operation> operations = new ArrayList<Operation>();
+
+		private Group(TradeKey key, List<BinanceHistoryRecord> records) {
+			this.key = key;
+			this.records = records;
+			for (Side side : Side.values()) {
+				openingLegs.put(side, new ArrayList<BinanceHistoryRecord>(1));
+				closingLegs.put(side, new ArrayList<BinanceHistoryRecord>(1));
+			}
+			for (BinanceHistoryRecord record : records) {
+				Side side = Side.of(record);
+				if(side != null) {
+					(isOpening(record) ? openingLegs : closingLegs).get(side).add(record);
+				}
+			}
+		}
+
+		private List<BinanceHistoryRecord> leftoverLegs() {
+			List<BinanceHistoryRecord> leftovers = new ArrayList<BinanceHistoryRecord>();
+			openingLegs.values().forEach(leftovers::addAll);
+			closingLegs.values().forEach(leftovers::addAll);
+			return leftovers;
+		}
+	}
+
+	private static final Comparator<TradeKey> TIME_ORDER = Comparator.comparing((TradeKey key) -> key.utcTime).thenComparing(key -> key.account);
+
+	private final boolean lenient;
+	private final List<BinanceHistoryRecord> unmatchedLegs = new ArrayList<BinanceHistoryRecord>();
+	// prezzo dell'ultimo trade per coppia di monete, in ordine alfabetico
+	private final Map<String, Double> lastPriceByCoins = new HashMap<String, Double>();
+	// gruppi non ancora emessi, in ordine di tempo: le loro gambe possono unirsi al secondo dopo
+	private final Deque<Group> pending = new ArrayDeque<Group>();
+	private final Map<String, Group> lastGroupByAccount = new HashMap<String, Group>();
+	private int trades;
+
+	public TradeReconstructor() {
+		this(false);
+	}
+
+	/**
+	 * @param lenient the legs that cannot be paired are left out of the swaps instead of failing
+	 */
+	public TradeReconstructor(boolean lenient) {
+		this.lenient = lenient;
+	}
+
+	public List<UtcTimedRecordWithMovement> reconstruct(List<BinanceHistoryRecord> records) {
+		List<UtcTimedRecordWithMovement> movements = add(records);
+		movements.addAll(finish());
+		if(!unmatchedLegs.isEmpty()) {
+			logger.warn("{} trade legs without a counterpart: {}", unmatchedLegs.size(), unmatchedLegs);
+		}
+		logger.info("Reconstructed {} trades in {} movements from {} records", trades, movements.size(), records.size());
+		return movements;
+	}
+
+	/**
+	 * Adds records later than those added before and returns the movements of the seconds that can no
+	 * longer be joined with a later one
+	 */
+	public List<UtcTimedRecordWithMovement> add(List<BinanceHistoryRecord> records) {
+		Map<TradeKey, List<BinanceHistoryRecord>> recordsByKey = new HashMap<TradeKey, List<BinanceHistoryRecord>>();
+		for (BinanceHistoryRecord record : records) {
+			recordsByKey.computeIfAbsent(new TradeKey(record), key -> new ArrayList<BinanceHistoryRecord>(4)).add(record);
+		}
+		List<TradeKey> keys = new ArrayList<TradeKey>(recordsByKey.keySet());
+		keys.sort(TIME_ORDER);
+
+		List<UtcTimedRecordWithMovement> movements = new ArrayList<UtcTimedRecordWithMovement>();
+		for (TradeKey key : keys) {
+			movements.addAll(advance(key.utcTime.minusSeconds(1)));
+			List<BinanceHistoryRecord> sameTime = recordsByKey.get(key);
+			// poche righe per secondo: l'ordine interno resta quello di compareTo
+			Collections.sort(sameTime);
+			join(new Group(key, sameTime));
+		}
+		return movements;
+	}
+
+	/**
+	 * No records up to closedSecond will be added: returns the movements of the seconds before it
+	 */
+	public List<UtcTimedRecordWithMovement> advance(LocalDateTime closedSecond) {
+		List<UtcTimedRecordWithMovement> movements = new ArrayList<UtcTimedRecordWithMovement>();
+		while(!pending.isEmpty() && pending.peekFirst().key.utcTime.isBefore(closedSecond)) {
+			emit(pending.pollFirst(), movements);
+		}
+		return movements;
+	}
+
+	/**
+	 * No more records will be added: returns the movements of the seconds still open
+	 */
+	public List<UtcTimedRecordWithMovement> finish() {
+		List<UtcTimedRecordWithMovement> movements = new ArrayList<UtcTimedRecordWithMovement>();
+		while(!pending.isEmpty()) {
+			emit(pending.pollFirst(), movements);
+		}
+		lastGroupByAccount.clear();
+		return movements;
+	}
+
+	public List<BinanceHistoryRecord> getUnmatchedLegs() {
+		return unmatchedLegs;
+	}
+
+	public int getTrades() {
+		return trades;
+	}
+
+	/**
+	 * Pairs the legs of the second, then those left over with the ones left over in the previous second
+	 */
+	private void join(Group group) {
+		for (Side side : Side.values()) {
+			pair(group, group, side);
+		}
+		Group previous = lastGroupByAccount.put(group.key.account, group);
+		if(previous != null && previous.key.utcTime.plusSeconds(1).equals(group.key.utcTime)) {
+			for (Side side : Side.values()) {
+				pair(previous, group, side);
+				pair(group, previous, side);
+			}
+		}
+		pending.addLast(group);
+	}
+
+	/**
+	 * Joins the opening legs of a side of a group with the closing legs of the same side of another
+	 * (or the same) group, removing the legs paired
+	 */
+	private void pair(Group openingGroup, Group closingGroup, Side side) {
+		List<BinanceHistoryRecord> openings = openingGroup.openingLegs.get(side);
+		List<BinanceHistoryRecord> closings = closingGroup.closingLegs.get(side);
+		if(openings.isEmpty() || closings.isEmpty()) {
+			return;
+		}
+		int[] pairing = choosePairing(openings, closings);
+		if(pairing == null) {
+			if(lenient) {
+				return;
+			}
+			throw new IllegalStateException("Trade legs of " + closingGroup.key.account + " at " + openingGroup.key.utcTime
+					+ (openingGroup == closingGroup ? "" : " and " + closingGroup.key.utcTime) + " can be paired in more than one way: " + openings + " with " + closings);
+		}
+		List<BinanceHistoryRecord> pairedClosings = new ArrayList<BinanceHistoryRecord>();
+		List<BinanceHistoryRecord> leftoverOpenings = new ArrayList<BinanceHistoryRecord>();
+		for (int i = 0; i < openings.size(); i++) {
+			if(pairing[i] < 0) {
+				leftoverOpenings.add(openings.get(i));
+			} else {
+				trade(openings.get(i), closings.get(pairing[i]), openingGroup, closingGroup);
+				pairedClosings.add(closings.get(pairing[i]));
+			}
+		}
+		openingGroup.openingLegs.put(side, leftoverOpenings);
+		closings.removeIf(leg -> pairedClosings.stream().anyMatch(paired -> paired == leg));
+	}
+
+	/**
+	 * Index of the closing leg joined with each opening leg (-1 none) in the only largest pairing of
+	 * legs of different coins or, when there are more, in the only one with all prices plausible;
+	 * null when the legs can be paired in more than one way
+	 */
+	private int[] choosePairing(List<BinanceHistoryRecord> openings, List<BinanceHistoryRecord> closings) {
+		if(openings.size() > MAX_LEGS_PER_SIDE || closings.size() > MAX_LEGS_PER_SIDE) {
+			return null;
+		}
+		List<int[]> pairings = new ArrayList<int[]>();
+		enumeratePairings(openings, closings, 0, 0, new int[openings.size()], new boolean[closings.size()], new int[1], pairings);
+		if(pairings.size() == 1) {
+			return pairings.get(0);
+		}
+		int[] plausible = null;
+		for (int[] pairing : pairings) {
+			if(isPlausible(pairing, openings, closings)) {
+				if(plausible != null) {
+					return null;
+				}
+				plausible = pairing;
+			}
+		}
+		return plausible;
+	}
+
+	private void enumeratePairings(List<BinanceHistoryRecord> openings, List<BinanceHistoryRecord> closings, int opening, int size,
+			int[] pairing, boolean[] used, int[] largest, List<int[]> pairings) {
+		if(opening == openings.size()) {
+			if(size > largest[0]) {
+				largest[0] = size;
+				pairings.clear();
+			}
+			if(size == largest[0]) {
+				pairings.add(pairing.clone());
+			}
+			return;
+		}
+		for (int closing = 0; closing < closings.size(); closing++) {
+			// uno swap scambia sempre due monete diverse
+			if(!used[closing] && !openings.get(opening).getCoin().equals(closings.get(closing).getCoin())) {
+				used[closing] = true;
+				pairing[opening] = closing;
+				enumeratePairings(openings, closings, opening + 1, size + 1, pairing, used, largest, pairings);
+				used[closing] = false;
+			}
+		}
+		pairing[opening] = -1;
+		enumeratePairings(openings, closings, opening + 1, size, pairing, used, largest, pairings);
+	}
+
+	private boolean isPlausible(int[] pairing, List<BinanceHistoryRecord> openings, List<BinanceHistoryRecord> closings) {
+		for (int i = 0; i < openings.size(); i++) {
+			if(pairing[i] < 0) {
+				continue;
+			}
+			BinanceHistoryRecord opening = openings.get(i);
+			BinanceHistoryRecord closing = closings.get(pairing[i]);
+			Double lastPrice = lastPriceByCoins.get(coins(opening, closing));
+			if(lastPrice == null) {
+				return false;
+			}
+			double ratio = price(opening, closing) / lastPrice;
+			if(ratio > MAX_PRICE_FACTOR || ratio < 1 / MAX_PRICE_FACTOR) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void trade(BinanceHistoryRecord openingLeg, BinanceHistoryRecord closingLeg, Group openingGroup, Group closingGroup) {
+		Operation operation = new Operation(openingLeg);
+		operation.setUtcTime(openingLeg.getUtcTime());
+		operation.setAmountSold(openingLeg.getChange());
+		operation.setCoinSold(openingLeg.getCoin());
+		operation.setAmountBought(closingLeg.getChange());
+		operation.setCoinBought(closingLeg.getCoin());
+		if(openingGroup.key.utcTime.isAfter(closingGroup.key.utcTime)) {
+			openingGroup.operationByLeg.put(openingLeg, operation);
+		} else {
+			closingGroup.operationByLeg.put(closingLeg, operation);
+		}
+		// le fee possono stare in uno qualsiasi dei due secondi
+		openingGroup.operations.add(operation);
+		if(closingGroup != openingGroup) {
+			closingGroup.operations.add(operation);
+		}
+		lastPriceByCoins.put(coins(openingLeg, closingLeg), price(openingLeg, closingLeg));
+		trades++;
+	}
+
+	private static String coins(BinanceHistoryRecord a, BinanceHistoryRecord b) {
+		return a.getCoin().compareTo(b.getCoin()) < 0 ? a.getCoin() + "/" + b.getCoin() : b.getCoin() + "/" + a.getCoin();
+	}
+
+	/**
+	 * Amount of the first coin of the pair per unit of the second
+	 */
+	private static double price(BinanceHistoryRecord a, BinanceHistoryRecord b) {
+		double amountA = Math.abs(a.getChange().doubleValue());
+		double amountB = Math.abs(b.getChange().doubleValue());
+		return a.getCoin().compareTo(b.getCoin()) < 0 ? amountA / amountB : amountB / amountA;
+	}
+
+	private static boolean isOpening(BinanceHistoryRecord leg) {
+		switch (leg.getOperation()) {
+		case TRANSACTION_SPEND, TRANSACTION_SOLD:
+			return true;
+		case CROSS_MARGIN_LIQUIDATION_SMALL_ASSET_TAKEOVER:
+			return leg.getChange().signum() < 0;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Appends the movements of a group whose legs can no longer be paired
+	 */
+	private void emit(Group group, List<UtcTimedRecordWithMovement> movements) {
+		List<BinanceHistoryRecord> leftovers = group.leftoverLegs();
+		if(!leftovers.isEmpty()) {
+			if(!lenient) {
+				throw new IllegalStateException("Trade legs of " + group.key.account + " at " + group.key.utcTime + " without a counterpart in the same or the adjacent second: " + leftovers);
+			}
+			unmatchedLegs.addAll(leftovers);
+		}
+		for (BinanceHistoryRecord record : group.records) {
+			switch (record.getOperation()) {
+			case TRANSFER_ACCOUNT, ISOLATED_MARGIN_LOAN, MARGIN_LOAN, ISOLATED_MARGIN_REPAYMENT, MARGIN_REPAYMENT, BNB_FEE_DEDUCTION, ISOLATED_MARGIN_LIQUIDATION_FEE:
+				movements.add(record);
+				break;
+			case TRANSACTION_SOLD, TRANSACTION_SPEND, TRANSACTION_BUY, TRANSACTION_REVENUE, CROSS_MARGIN_LIQUIDATION_SMALL_ASSET_TAKEOVER:
+				Operation operation = group.operationByLeg.get(record);
+				if(operation != null) {
+					movements.add(operation);
+				}
+				break;
+			case TRANSACTION_FEE:
+				if(record.isMarginAccount() && !applyFee(record, group.operations)) {
+					movements.add(record);
+				}
+				break;
+			default:
+				throw new RuntimeException("Unmanaged Case " + record.getOperation());
+			}
+		}
+	}
+
+	/**
+	 * Takes the fee from the trade of the same second that bought or sold its coin, false if none did
+	 */
+	private boolean applyFee(BinanceHistoryRecord fee, List<Operation> operations) {
+		String feeCoin = fee.getCoin();
+		for (Operation operation : operations) {
+			if(feeCoin.equals(operation.getCoinBought())) {
+				operation.setAmountBought(operation.getAmountBought().subtract(fee.getChange().negate()));
+				return true;
+			}
+			if(feeCoin.equals(operation.getCoinSold())) {
+				operation.setAmountSold(operation.getAmountSold().add(fee.getChange()));
+				return true;
+			}
+		}
+		return false;
+	}
+}
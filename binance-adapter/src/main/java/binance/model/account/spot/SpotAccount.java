@@ -1,5 +1,9 @@
 package binance.model.account.spot;
 
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.stereotype.Component;
@@ -7,6 +11,7 @@ import org.springframework.stereotype.Component;
 import binance.model.account.Account;
 import binance.model.account.AccountType;
 import binance.model.account.margin.IsolatedMarginAccount;
+import binance.struct.BinanceHistoryRecord;
 
 @Component
 public class SpotAccount extends Account {
@@ -14,8 +19,32 @@ public class SpotAccount extends Account {
 	private static Logger logger = LogManager.getLogger(IsolatedMarginAccount.class);
 
 	
+	private Map<Integer,List<BinanceHistoryRecord>> recordsPerYear;
+
 	public SpotAccount() {
 		super(AccountType.SPOT,logger);
 	}
 
+	/**
+	 * Groups the records by year, each year sorted as written in the output (time, then larger change first)
+	 */
+	public void prepareRecordsPerYear() {
+		Map<Integer,List<BinanceHistoryRecord>> perYear = records.stream().collect(Collectors.groupingBy(e -> e.getUtcTime().getYear()));
+		perYear.values().forEach(list -> list.sort((e1, e2) -> {
+			int delta = e1.getUtcTime().compareTo(e2.getUtcTime());
+			if(delta==0) {
+				delta = e2.getChange().compareTo(e1.getChange());
+			}
+			return delta;
+		}));
+		recordsPerYear = perYear;
+	}
+
+	public Map<Integer,List<BinanceHistoryRecord>> getRecordsPerYear() {
+		if(recordsPerYear == null) {
+			prepareRecordsPerYear();
+		}
+		return recordsPerYear;
+	}
+
 }
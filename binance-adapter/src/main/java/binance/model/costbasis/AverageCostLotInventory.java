@@ -0,0 +1,65 @@
+package binance.model.costbasis;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Weighted average cost: every lot is merged on arrival into the pool of its payment coin, which
+ * keeps the running totals of quantity and cost, so adding a lot is O(1) whatever the number of
+ * purchases. The pools are consumed in the order they were opened.
+ */
+public class AverageCostLotInventory<T> implements LotInventory<T> {
+
+	private final LotType<T> lotType;
+	private Map<Object,T> pools = new LinkedHashMap<Object, T>();
+
+	public AverageCostLotInventory(LotType<T> lotType) {
+		this.lotType = lotType;
+	}
+
+	@Override
+	public void push(T lot) {
+		pools.merge(lotType.poolKey(lot), lot, lotType::merge);
+	}
+
+	@Override
+	public void restore(T lot) {
+		Object key = lotType.poolKey(lot);
+		if(pools.containsKey(key)) {
+			pools.merge(key, lot, lotType::merge);
+			return;
+		}
+		// il residuo torna in testa: i pool sono pochi, uno per moneta di pagamento
+		Map<Object,T> restored = new LinkedHashMap<Object, T>();
+		restored.put(key, lot);
+		restored.putAll(pools);
+		pools = restored;
+	}
+
+	@Override
+	public T peek() {
+		return pools.isEmpty() ? null : pools.values().iterator().next();
+	}
+
+	@Override
+	public T poll() {
+		if(pools.isEmpty()) {
+			return null;
+		}
+		Iterator<T> iterator = pools.values().iterator();
+		T pool = iterator.next();
+		iterator.remove();
+		return pool;
+	}
+
+	@Override
+	public int size() {
+		return pools.size();
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		return pools.values().iterator();
+	}
+}
@@ -0,0 +1,31 @@
+package binance.model.costbasis;
+
+/**
+ * Order in which the open lots of a coin are matched against a sale
+ */
+public enum CostBasisMethod {
+
+	/** First in, first out: ring buffer consumed from the oldest lot */
+	FIFO,
+	/** Last in, first out: ring buffer consumed from the newest lot */
+	LIFO,
+	/** Highest in, first out: lots ordered by unit cost, O(log n) to add or take one */
+	HIFO,
+	/** Weighted average cost: one pool per payment coin with running totals, O(1) to add */
+	AVERAGE;
+
+	public <T> LotInventory<T> newInventory(LotType<T> lotType) {
+		switch (this) {
+		case FIFO:
+			return new RingLotInventory<T>(true);
+		case LIFO:
+			return new RingLotInventory<T>(false);
+		case HIFO:
+			return new HighestCostLotInventory<T>(lotType);
+		case AVERAGE:
+			return new AverageCostLotInventory<T>(lotType);
+		default:
+			throw new IllegalArgumentException("Unexpected cost basis method: " + this);
+		}
+	}
+}
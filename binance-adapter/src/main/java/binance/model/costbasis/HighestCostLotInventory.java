@@ -0,0 +1,87 @@
+package binance.model.costbasis;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * HIFO lots in a red-black tree ordered by unit cost, highest first and, at equal cost, in the order
+ * they were added: adding, taking or removing a lot is O(log n) and the iteration walks the lots in
+ * consumption order, so a consumer skipping some lots does not have to extract and re-add them as
+ * with an array heap. The unit cost of a lot must not change while it is in the inventory (a partial
+ * consumption keeps it).
+ */
+public class HighestCostLotInventory<T> implements LotInventory<T> {
+
+	private static final class Node<T> {
+		private final T lot;
+		private final long sequence;
+
+		private Node(T lot, long sequence) {
+			this.lot = lot;
+			this.sequence = sequence;
+		}
+	}
+
+	private final TreeSet<Node<T>> lots;
+	private long nextSequence;
+	private long restoredSequence;
+
+	public HighestCostLotInventory(LotType<T> lotType) {
+		Comparator<T> highestCostFirst = lotType.unitCostOrder().reversed();
+		this.lots = new TreeSet<Node<T>>((n1, n2) -> {
+			int delta = highestCostFirst.compare(n1.lot, n2.lot);
+			return delta != 0 ? delta : Long.compare(n1.sequence, n2.sequence);
+		});
+	}
+
+	@Override
+	public void push(T lot) {
+		lots.add(new Node<T>(lot, nextSequence++));
+	}
+
+	/**
+	 * Before the lots with the same cost
+	 */
+	@Override
+	public void restore(T lot) {
+		lots.add(new Node<T>(lot, --restoredSequence));
+	}
+
+	@Override
+	public T peek() {
+		return lots.isEmpty() ? null : lots.first().lot;
+	}
+
+	@Override
+	public T poll() {
+		Node<T> node = lots.pollFirst();
+		return node == null ? null : node.lot;
+	}
+
+	@Override
+	public int size() {
+		return lots.size();
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		Iterator<Node<T>> nodes = lots.iterator();
+		return new Iterator<T>() {
+			@Override
+			public boolean hasNext() {
+				return nodes.hasNext();
+			}
+
+			@Override
+			public T next() {
+				return nodes.next().lot;
+			}
+
+			@Override
+			public void remove() {
+				nodes.remove();
+			}
+		};
+	}
+}
@@ -0,0 +1,46 @@
+package binance.model.costbasis;
+
+import java.util.Iterator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Open lots of a coin kept in the order a cost-basis method consumes them: the iteration starts from
+ * the next lot to sell and remove() drops the lot just returned, so a consumer can skip lots it
+ * cannot use (i.e. bought with another coin) and take the following ones.
+ */
+public interface LotInventory<T> extends Iterable<T> {
+
+	void push(T lot);
+
+	/**
+	 * Next lot to consume, null if there is none
+	 */
+	T peek();
+
+	/**
+	 * Removes and returns the next lot to consume, null if there is none
+	 */
+	T poll();
+
+	/**
+	 * Puts back, as the next lot to consume, what is left of a lot just polled
+	 */
+	void restore(T lot);
+
+	int size();
+
+	default boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * From the next lot to consume on; remove() drops the lot just returned
+	 */
+	@Override
+	Iterator<T> iterator();
+
+	default Stream<T> stream() {
+		return StreamSupport.stream(spliterator(), false);
+	}
+}
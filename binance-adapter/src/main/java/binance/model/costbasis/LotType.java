@@ -0,0 +1,25 @@
+package binance.model.costbasis;
+
+import java.util.Comparator;
+
+/**
+ * What the cost-basis methods need to know about a kind of lot
+ */
+public interface LotType<T> {
+
+	/**
+	 * Lowest unit cost first (HIFO consumes from the other end), with the costs of all the lots in
+	 * one unit
+	 */
+	Comparator<T> unitCostOrder();
+
+	/**
+	 * Lots averaged together, i.e. the coin they were paid with
+	 */
+	Object poolKey(T lot);
+
+	/**
+	 * Pool holding the quantities and the costs of both lots
+	 */
+	T merge(T pooled, T lot);
+}
@@ -0,0 +1,150 @@
+package binance.model.costbasis;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * FIFO/LIFO lots in a ring buffer: push, peek and poll are O(1) and a lot consumed while iterating
+ * is removed in O(1) by leaving a hole, skipped by the iteration and dropped as soon as it reaches
+ * one end of the buffer; the holes left in the middle are compacted away when the buffer grows.
+ * The next lot to consume is always at the head: LIFO pushes there, FIFO at the tail.
+ */
+public class RingLotInventory<T> implements LotInventory<T> {
+
+	private final boolean fifo;
+	private Object[] lots = new Object[16];
+	// posizioni logiche: il prossimo lotto da consumare è in first, l'ultimo in end-1
+	private long first;
+	private long end;
+	private int size;
+
+	public RingLotInventory(boolean fifo) {
+		this.fifo = fifo;
+	}
+
+	@Override
+	public void push(T lot) {
+		if(fifo) {
+			pushLast(lot);
+		} else {
+			pushFirst(lot);
+		}
+	}
+
+	@Override
+	public void restore(T lot) {
+		pushFirst(lot);
+	}
+
+	@Override
+	public T peek() {
+		return size == 0 ? null : lot(first);
+	}
+
+	@Override
+	public T poll() {
+		if(size == 0) {
+			return null;
+		}
+		T lot = lot(first);
+		remove(first);
+		return lot;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		return new Iterator<T>() {
+			private long next = first;
+			private long last = Long.MIN_VALUE;
+
+			@Override
+			public boolean hasNext() {
+				while(next < end && lots[slot(next)] == null) {
+					next++;
+				}
+				return next < end;
+			}
+
+			@Override
+			public T next() {
+				if(!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				last = next++;
+				return lot(last);
+			}
+
+			@Override
+			public void remove() {
+				if(last == Long.MIN_VALUE || lots[slot(last)] == null) {
+					throw new IllegalStateException();
+				}
+				RingLotInventory.this.remove(last);
+			}
+		};
+	}
+
+	private void pushFirst(T lot) {
+		if(end - first == lots.length) {
+			resize();
+		}
+		first--;
+		lots[slot(first)] = lot;
+		size++;
+	}
+
+	private void pushLast(T lot) {
+		if(end - first == lots.length) {
+			resize();
+		}
+		lots[slot(end)] = lot;
+		end++;
+		size++;
+	}
+
+	private void remove(long position) {
+		lots[slot(position)] = null;
+		size--;
+		while(first < end && lots[slot(first)] == null) {
+			first++;
+		}
+		while(end > first && lots[slot(end - 1)] == null) {
+			end--;
+		}
+	}
+
+	/**
+	 * Copies the lots, without the holes, into a buffer with room for as many again
+	 */
+	private void resize() {
+		int capacity = lots.length;
+		while(capacity < size * 2) {
+			capacity *= 2;
+		}
+		Object[] resized = new Object[capacity];
+		int i = 0;
+		for (long p = first; p < end; p++) {
+			Object lot = lots[slot(p)];
+			if(lot != null) {
+				resized[i++] = lot;
+			}
+		}
+		lots = resized;
+		first = 0;
+		end = size;
+	}
+
+	@SuppressWarnings("unchecked")
+	private T lot(long position) {
+		return (T) lots[slot(position)];
+	}
+
+	private int slot(long position) {
+		return (int) position & (lots.length - 1);
+	}
+}
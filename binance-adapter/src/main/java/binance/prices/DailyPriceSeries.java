@@ -0,0 +1,77 @@
+package binance.prices;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+
+/**
+ * Daily closes of one symbol stored in a dense array indexed by epoch day,
+ * so that a lookup is an index computation and an array access.
+ */
+class DailyPriceSeries {
+
+	private final long firstEpochDay;
+	private final BigDecimal[] closes;
+
+	DailyPriceSeries(long firstEpochDay, BigDecimal[] closes) {
+		this.firstEpochDay = firstEpochDay;
+		this.closes = closes;
+	}
+
+	/**
+	 * Close of the given day, or of the closest previous day within maxFallbackDays; null if not available.
+	 */
+	BigDecimal getClose(long epochDay, int maxFallbackDays) {
+		long index = epochDay - firstEpochDay;
+		if (index < 0) return null;
+		long lastIndex = closes.length - 1;
+		if (index > lastIndex) {
+			if (index - lastIndex > maxFallbackDays) return null;
+			maxFallbackDays -= (int) (index - lastIndex);
+			index = lastIndex;
+		}
+		for (int i = (int) index; i >= 0 && index - i <= maxFallbackDays; i--) {
+			if (closes[i] != null) return closes[i];
+		}
+		return null;
+	}
+
+	/**
+	 * Writes into target the close of each day from firstEpochDay as getClose would give it, in one
+	 * pass carrying the last close forward; the days without one are left untouched
+	 */
+	void fillCloses(long firstEpochDay, double[] target, int maxFallbackDays) {
+		long lastCloseDay = Long.MIN_VALUE;
+		double lastClose = 0;
+		// si parte dal primo giorno la cui chiusura può ancora valere per firstEpochDay
+		for (long day = Math.max(this.firstEpochDay, firstEpochDay - maxFallbackDays); day < firstEpochDay + target.length; day++) {
+			long index = day - this.firstEpochDay;
+			if (index < closes.length && closes[(int) index] != null) {
+				lastCloseDay = day;
+				lastClose = closes[(int) index].doubleValue();
+			}
+			if (day >= firstEpochDay && lastCloseDay != Long.MIN_VALUE && day - lastCloseDay <= maxFallbackDays) {
+				target[(int) (day - firstEpochDay)] = lastClose;
+			}
+		}
+	}
+
+	/**
+	 * Content of the series, for the digest of the snapshot
+	 */
+	void writeTo(DataOutputStream out) throws IOException {
+		out.writeLong(firstEpochDay);
+		out.writeInt(closes.length);
+		for (BigDecimal close : closes) {
+			out.writeUTF(close == null ? "" : close.toString());
+		}
+	}
+
+	long getFirstEpochDay() {
+		return firstEpochDay;
+	}
+
+	long getLastEpochDay() {
+		return firstEpochDay + closes.length - 1;
+	}
+}
@@ -0,0 +1,85 @@
+package binance.prices;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Candles of one symbol at an intraday interval, stored as parallel primitive arrays sorted by open time:
+ * epoch seconds of the candle open and close price unscaled at a common scale.
+ * A lookup is a binary search for the candle containing the requested time.
+ */
+class IntradayPriceSeries {
+
+	private static final int MAX_LONG_DIGITS = 18;
+
+	private final PriceInterval interval;
+	private final long[] openTimes;
+	private final long[] unscaledCloses;
+	private final int scale;
+
+	IntradayPriceSeries(PriceInterval interval, long[] openTimes, long[] unscaledCloses, int scale) {
+		this.interval = interval;
+		this.openTimes = openTimes;
+		this.unscaledCloses = unscaledCloses;
+		this.scale = scale;
+	}
+
+	static IntradayPriceSeries of(PriceInterval interval, List<PriceTableRecord> records) {
+		PriceTableRecord[] sorted = records.toArray(new PriceTableRecord[0]);
+		Arrays.sort(sorted, Comparator.comparing(PriceTableRecord::getTime));
+		int scale = 0;
+		int integerDigits = 0;
+		for (PriceTableRecord r : sorted) {
+			BigDecimal close = r.getPriceInEur();
+			scale = Math.max(scale, close.scale());
+			integerDigits = Math.max(integerDigits, close.precision() - close.scale());
+		}
+		scale = Math.min(scale, MAX_LONG_DIGITS - integerDigits);
+		long[] openTimes = new long[sorted.length];
+		long[] unscaledCloses = new long[sorted.length];
+		for (int i = 0; i < sorted.length; i++) {
+			openTimes[i] = PriceTable.toEpochSecond(sorted[i].getTime());
+			unscaledCloses[i] = sorted[i].getPriceInEur().setScale(scale, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+		}
+		return new IntradayPriceSeries(interval, openTimes, unscaledCloses, scale);
+	}
+
+	/**
+	 * Close of the candle containing the given time, null if there is no such candle
+	 */
+	BigDecimal getClose(long epochSecond) {
+		int index = Arrays.binarySearch(openTimes, epochSecond);
+		if (index < 0) {
+			index = -index - 2; // candela precedente
+			if (index < 0) return null;
+		}
+		if (epochSecond - openTimes[index] >= interval.getSeconds()) return null;
+		return BigDecimal.valueOf(unscaledCloses[index], scale);
+	}
+
+	/**
+	 * Content of the series, for the digest of the snapshot
+	 */
+	void writeTo(DataOutputStream out) throws IOException {
+		out.writeLong(interval.getSeconds());
+		out.writeInt(scale);
+		out.writeInt(openTimes.length);
+		for (int i = 0; i < openTimes.length; i++) {
+			out.writeLong(openTimes[i]);
+			out.writeLong(unscaledCloses[i]);
+		}
+	}
+
+	PriceInterval getInterval() {
+		return interval;
+	}
+
+	int size() {
+		return openTimes.length;
+	}
+}
@@ -0,0 +1,344 @@
+package binance.prices;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Binary price archive of one symbol at one interval, memory-mapped and queried in place.
+ * Layout (big endian): a fixed header followed by two fixed-width columns sorted by time,
+ * the open time of every candle in epoch minutes (int) and the close unscaled at a common scale (long).
+ * The time column is split in pages of PAGE_ENTRIES candles: the first minute of every page is kept
+ * on the heap and a small direct-mapped cache holds the pages decoded last.
+ */
+public final class PriceArchive {
+
+	private static Logger logger = LogManager.getLogger(PriceArchive.class);
+
+	public static final String EXTENSION = ".prices.archive";
+
+	private static final int MAGIC = 0x42504131; // "BPA1"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 64;
+	private static final int MAX_SYMBOL_LENGTH = HEADER_SIZE - 28;
+	private static final int PAGE_ENTRIES = 1024;
+	private static final int MAX_LONG_DIGITS = 18;
+	private static final long[] POWERS_OF_TEN = new long[MAX_LONG_DIGITS + 1];
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+
+	private final String symbol;
+	private final PriceInterval interval;
+	private final int scale;
+	private final int size;
+	private final MappedByteBuffer buffer;
+	private final int closesOffset;
+	private final int[] pageFirstMinutes;
+	private final Page[] hotPages;
+
+	private PriceArchive(String symbol, PriceInterval interval, int scale, int size, MappedByteBuffer buffer, int cachePages) {
+		this.symbol = symbol;
+		this.interval = interval;
+		this.scale = scale;
+		this.size = size;
+		this.buffer = buffer;
+		this.closesOffset = closesOffset(size);
+		this.pageFirstMinutes = new int[(size + PAGE_ENTRIES - 1) / PAGE_ENTRIES];
+		for (int page = 0; page < pageFirstMinutes.length; page++) {
+			pageFirstMinutes[page] = buffer.getInt(HEADER_SIZE + page * PAGE_ENTRIES * Integer.BYTES);
+		}
+		this.hotPages = new Page[Math.max(1, cachePages)];
+	}
+
+	public static PriceArchive open(Path file, int cachePages) {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			if(channel.size() > Integer.MAX_VALUE) {
+				throw new IllegalStateException("Price archive too large: " + file);
+			}
+			// la mappatura resta valida anche dopo la chiusura del canale
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if(buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+				throw new IllegalStateException("Not a price archive: " + file);
+			}
+			PriceInterval interval = intervalOf(buffer.getInt(8));
+			int scale = buffer.getInt(12);
+			int size = buffer.getInt(16);
+			byte[] symbolBytes = new byte[buffer.getInt(20)];
+			buffer.get(28, symbolBytes);
+			if(buffer.limit() != closesOffset(size) + (long) size * Long.BYTES) {
+				throw new IllegalStateException("Truncated price archive: " + file);
+			}
+			PriceArchive archive = new PriceArchive(new String(symbolBytes, StandardCharsets.US_ASCII), interval, scale, size, buffer, cachePages);
+			logger.info("Mapped price archive {} ({} {} candles)", file, size, interval.getBinanceCode());
+			return archive;
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed to open price archive " + file, e);
+		}
+	}
+
+	/**
+	 * Writes the records (all of the same symbol) to a new archive, replacing the file atomically
+	 */
+	public static void write(Path file, String symbol, PriceInterval interval, List<PriceTableRecord> records) {
+		PriceTableRecord[] sorted = records.toArray(new PriceTableRecord[0]);
+		Arrays.sort(sorted, Comparator.comparing(PriceTableRecord::getTime));
+		Builder builder = new Builder(symbol, interval);
+		for (PriceTableRecord r : sorted) {
+			builder.add(PriceTable.toEpochSecond(r.getTime()), r.getPriceInEur());
+		}
+		builder.write(file);
+	}
+
+	/**
+	 * Builder holding the candles already in this archive, to append new ones and write it again
+	 */
+	public Builder toBuilder() {
+		Builder builder = new Builder(symbol, interval);
+		for (int i = 0; i < size; i++) {
+			builder.add(buffer.getInt(HEADER_SIZE + i * Integer.BYTES) * 60L, buffer.getLong(closesOffset + i * Long.BYTES), scale);
+		}
+		return builder;
+	}
+
+	/**
+	 * i.e. BTCEUR.1m.csv.prices -> BTCEUR.1m.prices.archive
+	 */
+	public static String archiveFileName(String csvFileName) {
+		String name = csvFileName.endsWith(".prices") ? csvFileName.substring(0, csvFileName.length() - ".prices".length()) : csvFileName;
+		name = name.endsWith(".csv") ? name.substring(0, name.length() - ".csv".length()) : name;
+		return name + EXTENSION;
+	}
+
+	/**
+	 * Close of the last candle opened at or before the time, provided the time falls within
+	 * the given number of intervals from its open; null otherwise
+	 */
+	BigDecimal findClose(long epochSecond, long maxCandles) {
+		if(size == 0) return null;
+		long minute = Math.floorDiv(epochSecond, 60);
+		if(minute > Integer.MAX_VALUE) minute = Integer.MAX_VALUE;
+		int page = lastAtOrBefore(pageFirstMinutes, pageFirstMinutes.length, (int) minute);
+		if(page < 0) return null;
+		Page hot = page(page);
+		int index = lastAtOrBefore(hot.minutes, hot.minutes.length, (int) minute);
+		if(epochSecond - hot.minutes[index] * 60L >= interval.getSeconds() * maxCandles) return null;
+		return BigDecimal.valueOf(hot.closes[index], scale);
+	}
+
+	/**
+	 * Pages are immutable, so a racing reader sees either the old or the new page of a slot
+	 */
+	private Page page(int number) {
+		int slot = number % hotPages.length;
+		Page hot = hotPages[slot];
+		if(hot != null && hot.number == number) return hot;
+		int first = number * PAGE_ENTRIES;
+		int length = Math.min(PAGE_ENTRIES, size - first);
+		int[] minutes = new int[length];
+		long[] closes = new long[length];
+		for (int i = 0; i < length; i++) {
+			minutes[i] = buffer.getInt(HEADER_SIZE + (first + i) * Integer.BYTES);
+			closes[i] = buffer.getLong(closesOffset + (first + i) * Long.BYTES);
+		}
+		hot = new Page(number, minutes, closes);
+		hotPages[slot] = hot;
+		return hot;
+	}
+
+	private static int lastAtOrBefore(int[] sorted, int length, int key) {
+		int low = 0;
+		int high = length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if(sorted[mid] <= key) {
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return high;
+	}
+
+	private static int closesOffset(int size) {
+		// colonna delle chiusure allineata a 8 byte
+		return (HEADER_SIZE + size * Integer.BYTES + Long.BYTES - 1) & -Long.BYTES;
+	}
+
+	private static PriceInterval intervalOf(int seconds) {
+		for (PriceInterval interval : PriceInterval.values()) {
+			if(interval.getSeconds() == seconds) return interval;
+		}
+		throw new IllegalStateException("Unsupported interval in price archive: " + seconds + "s");
+	}
+
+	/**
+	 * Bytes of the archive file, for the digest of the snapshot
+	 */
+	void writeTo(DataOutputStream out) throws IOException {
+		ByteBuffer content = buffer.duplicate().clear();
+		byte[] chunk = new byte[64 * 1024];
+		while(content.hasRemaining()) {
+			int length = Math.min(chunk.length, content.remaining());
+			content.get(chunk, 0, length);
+			out.write(chunk, 0, length);
+		}
+	}
+
+	public String getSymbol() {
+		return symbol;
+	}
+
+	public PriceInterval getInterval() {
+		return interval;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Collects candles in ascending time order as primitive columns; the common scale is chosen on write
+	 */
+	public static final class Builder {
+
+		private final String symbol;
+		private final PriceInterval interval;
+		private int[] minutes = new int[PAGE_ENTRIES];
+		private long[] unscaledCloses = new long[PAGE_ENTRIES];
+		private byte[] scales = new byte[PAGE_ENTRIES];
+		private int size;
+
+		public Builder(String symbol, PriceInterval interval) {
+			if(symbol.getBytes(StandardCharsets.US_ASCII).length > MAX_SYMBOL_LENGTH) {
+				throw new IllegalArgumentException("Symbol too long for a price archive: " + symbol);
+			}
+			this.symbol = symbol;
+			this.interval = interval;
+		}
+
+		public void add(long epochSecond, BigDecimal close) {
+			BigDecimal value = close;
+			if(value.precision() > MAX_LONG_DIGITS) {
+				value = value.setScale(value.scale() - (value.precision() - MAX_LONG_DIGITS), RoundingMode.HALF_UP);
+			}
+			add(epochSecond, value.unscaledValue().longValueExact(), value.scale());
+		}
+
+		/**
+		 * A candle at the same time of the last one replaces it (the last one wins, as for the daily prices)
+		 */
+		public void add(long epochSecond, long unscaledClose, int scale) {
+			if(epochSecond % 60 != 0) {
+				throw new IllegalArgumentException("Candle of " + symbol + " not aligned to the minute: " + epochSecond);
+			}
+			int minute = Math.toIntExact(epochSecond / 60);
+			if(size > 0 && minute <= minutes[size - 1]) {
+				if(minute < minutes[size - 1]) {
+					throw new IllegalArgumentException("Candles of " + symbol + " out of order at " + epochSecond);
+				}
+				size--;
+			}
+			if(size == minutes.length) {
+				minutes = Arrays.copyOf(minutes, size * 2);
+				unscaledCloses = Arrays.copyOf(unscaledCloses, size * 2);
+				scales = Arrays.copyOf(scales, size * 2);
+			}
+			minutes[size] = minute;
+			unscaledCloses[size] = unscaledClose;
+			scales[size] = (byte) scale;
+			size++;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * Open time of the last candle in epoch seconds, -1 when empty
+		 */
+		public long getLastOpenSecond() {
+			return size == 0 ? -1 : minutes[size - 1] * 60L;
+		}
+
+		/**
+		 * Writes the archive replacing the file atomically; the closes are brought to the largest scale
+		 * that keeps every value within 18 digits
+		 */
+		public void write(Path file) {
+			int scale = 0;
+			int integerDigits = 0;
+			for (int i = 0; i < size; i++) {
+				scale = Math.max(scale, scales[i]);
+				integerDigits = Math.max(integerDigits, digits(unscaledCloses[i]) - scales[i]);
+			}
+			scale = Math.min(scale, MAX_LONG_DIGITS - integerDigits);
+			byte[] symbolBytes = symbol.getBytes(StandardCharsets.US_ASCII);
+			ByteBuffer content = ByteBuffer.allocate(closesOffset(size) + size * Long.BYTES);
+			content.putInt(MAGIC).putInt(VERSION).putInt((int) interval.getSeconds()).putInt(scale)
+					.putInt(size).putInt(symbolBytes.length).putInt(0).put(symbolBytes);
+			content.position(HEADER_SIZE);
+			for (int i = 0; i < size; i++) {
+				content.putInt(minutes[i]);
+			}
+			content.position(closesOffset(size));
+			for (int i = 0; i < size; i++) {
+				content.putLong(rescale(unscaledCloses[i], scales[i], scale));
+			}
+			try {
+				Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+				Files.write(temp, content.array());
+				Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				throw new UncheckedIOException("Failed to write price archive " + file, e);
+			}
+		}
+
+		private static long rescale(long unscaled, int fromScale, int toScale) {
+			if(fromScale == toScale) return unscaled;
+			if(fromScale < toScale) return Math.multiplyExact(unscaled, POWERS_OF_TEN[toScale - fromScale]);
+			return BigDecimal.valueOf(unscaled, fromScale).setScale(toScale, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+		}
+
+		private static int digits(long unscaled) {
+			long abs = Math.abs(unscaled);
+			int digits = 1;
+			while (abs >= 10) {
+				abs /= 10;
+				digits++;
+			}
+			return digits;
+		}
+	}
+
+	private static final class Page {
+		private final int number;
+		private final int[] minutes;
+		private final long[] closes;
+
+		private Page(int number, int[] minutes, long[] closes) {
+			this.number = number;
+			this.minutes = minutes;
+			this.closes = closes;
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package binance.prices;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import binance.model.account.margin.MarginAccount;
+
+/**
+ * Days on which the price of every coin is needed, collected from the history before the prices are
+ * loaded: the loader reads only the price files of these coins and only the closes that can answer
+ * one of these days (the day itself or, with the fallback, one of the following days).
+ */
+public class PriceDemand {
+
+	private final Map<String,BitSet> epochDaysByCoin = new TreeMap<String, BitSet>();
+	private int coinDays;
+
+	/**
+	 * The records derived from the history (tatax debit/credit) are stamped and priced up to
+	 * MarginAccount.REPAYMENT_DEBIT_DELAY_SECONDS later, so a time at the end of a day also needs the
+	 * next one
+	 */
+	public void add(String coin, LocalDateTime time) {
+		add(coin, time.toLocalDate());
+		add(coin, time.plusSeconds(MarginAccount.REPAYMENT_DEBIT_DELAY_SECONDS).toLocalDate());
+	}
+
+	public void add(String coin, LocalDate day) {
+		BitSet epochDays = epochDaysByCoin.computeIfAbsent(coin, c -> new BitSet());
+		int epochDay = Math.toIntExact(day.toEpochDay());
+		if(!epochDays.get(epochDay)) {
+			epochDays.set(epochDay);
+			coinDays++;
+		}
+	}
+
+	/**
+	 * Every day from the first to the last, both included
+	 */
+	public void addRange(String coin, LocalDate firstDay, LocalDate lastDay) {
+		BitSet epochDays = epochDaysByCoin.computeIfAbsent(coin, c -> new BitSet());
+		int before = epochDays.cardinality();
+		epochDays.set(Math.toIntExact(firstDay.toEpochDay()), Math.toIntExact(lastDay.toEpochDay()) + 1);
+		coinDays += epochDays.cardinality() - before;
+	}
+
+	public boolean needsCoin(String coin) {
+		return epochDaysByCoin.containsKey(coin);
+	}
+
+	/**
+	 * True if a close of the day can be used for one of the needed days, i.e. one of them is
+	 * within the following maxFallbackDays
+	 */
+	public boolean needs(String coin, long epochDay, int maxFallbackDays) {
+		BitSet epochDays = epochDaysByCoin.get(coin);
+		if(epochDays == null || epochDay < 0) return false;
+		int next = epochDays.nextSetBit(Math.toIntExact(epochDay));
+		return next != -1 && next <= epochDay + maxFallbackDays;
+	}
+
+	public Set<String> getCoins() {
+		return epochDaysByCoin.keySet();
+	}
+
+	public LocalDate getFirstDay(String coin) {
+		return LocalDate.ofEpochDay(epochDaysByCoin.get(coin).nextSetBit(0));
+	}
+
+	public LocalDate getLastDay(String coin) {
+		return LocalDate.ofEpochDay(epochDaysByCoin.get(coin).length() - 1);
+	}
+
+	public int getCoinDays() {
+		return coinDays;
+	}
+
+	/**
+	 * Coin priced by a file named after its EUR market, i.e. BTCEUR.1h.csv.prices -> BTC, EURUSDT.csv.prices -> USDT
+	 */
+	public static String coinOfFile(String fileName) {
+		int dot = fileName.indexOf('.');
+		return coinOfMarket(dot == -1 ? fileName : fileName.substring(0, dot));
+	}
+
+	/**
+	 * Inverse of marketOf: only the EUR quote is removed, i.e. EURIEUR -> EURI, EURUSDT -> USDT
+	 */
+	public static String coinOfMarket(String market) {
+		if(market.endsWith("EUR") && market.length() > 3) {
+			return market.substring(0, market.length() - 3);
+		}
+		if(market.startsWith("EUR")) {
+			return market.substring(3);
+		}
+		return market;
+	}
+
+	/**
+	 * EUR market of the coin, i.e. BTC -> BTCEUR; the stablecoins are traded as EURUSDT/EURUSDC
+	 */
+	public static String marketOf(String coin) {
+		return coin.equals("USDT") || coin.equals("USDC") ? "EUR" + coin : coin + "EUR";
+	}
+
+	@Override
+	public String toString() {
+		return "PriceDemand [coins=" + epochDaysByCoin.keySet() + ", coinDays=" + coinDays + "]";
+	}
+}
@@ -0,0 +1,52 @@
+package binance.prices;
+
+/**
+ * Kline intervals supported by the price table, from the finest to the coarsest.
+ * The interval of a price file is part of its name: SYMBOL.csv.prices for 1d, SYMBOL.1h.csv.prices, SYMBOL.1m.csv.prices
+ */
+public enum PriceInterval {
+	ONE_MINUTE("1m", 60),
+	ONE_HOUR("1h", 60 * 60),
+	ONE_DAY("1d", 24 * 60 * 60);
+
+	private final String binanceCode;
+	private final long seconds;
+
+	private PriceInterval(String binanceCode, long seconds) {
+		this.binanceCode = binanceCode;
+		this.seconds = seconds;
+	}
+
+	public String getBinanceCode() {
+		return binanceCode;
+	}
+
+	public long getSeconds() {
+		return seconds;
+	}
+
+	public static PriceInterval fromBinanceCode(String binanceCode) {
+		for (PriceInterval interval : values()) {
+			if(interval.getBinanceCode().equals(binanceCode)) {
+				return interval;
+			}
+		}
+		throw new IllegalArgumentException("Unsupported kline interval: " + binanceCode);
+	}
+
+	public static PriceInterval fromFileName(String fileName) {
+		for (PriceInterval interval : values()) {
+			if(fileName.contains("." + interval.getBinanceCode() + ".")) {
+				return interval;
+			}
+		}
+		return ONE_DAY;
+	}
+
+	/**
+	 * i.e. BTCEUR.csv.prices for 1d and BTCEUR.1m.csv.prices for 1m
+	 */
+	public String toFileName(String symbol) {
+		return this == ONE_DAY ? symbol + ".csv.prices" : symbol + "." + binanceCode + ".csv.prices";
+	}
+}
@@ -0,0 +1,197 @@
+package binance.prices;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Immutable index of the loaded prices: once built it is only read, so it can be
+ * shared between threads without locking.
+ */
+public final class PriceSnapshot {
+
+	private static Logger logger = LogManager.getLogger(PriceSnapshot.class);
+
+	private static final IntradayPriceSeries[] NO_SERIES = new IntradayPriceSeries[0];
+	private static final PriceArchive[] NO_ARCHIVES = new PriceArchive[0];
+
+	private final Map<String,DailyPriceSeries> priceSeriesBySymbol;
+	private final Map<String,IntradayPriceSeries[]> intradayPriceSeriesBySymbol;
+	private final Map<String,PriceArchive[]> archivesBySymbol;
+	private volatile byte[] digest;
+
+	private PriceSnapshot(Map<String,DailyPriceSeries> priceSeriesBySymbol, Map<String,IntradayPriceSeries[]> intradayPriceSeriesBySymbol, Map<String,PriceArchive[]> archivesBySymbol) {
+		this.priceSeriesBySymbol = Map.copyOf(priceSeriesBySymbol);
+		this.intradayPriceSeriesBySymbol = Map.copyOf(intradayPriceSeriesBySymbol);
+		this.archivesBySymbol = Map.copyOf(archivesBySymbol);
+	}
+
+	public static PriceSnapshot of(List<PriceTableRecord> priceTableRecords) {
+		return of(priceTableRecords, List.of());
+	}
+
+	public static PriceSnapshot of(List<PriceTableRecord> priceTableRecords, List<PriceArchive> priceArchives) {
+		Map<String,PriceArchive[]> archivesBySymbol = priceArchives.stream()
+				.sorted(Comparator.comparing(PriceArchive::getInterval))
+				.collect(Collectors.groupingBy(PriceArchive::getSymbol, Collectors.collectingAndThen(Collectors.toList(), l -> l.toArray(new PriceArchive[0]))));
+
+		Map<String,Map<PriceInterval,List<PriceTableRecord>>> intradayRecordsBySymbol = priceTableRecords.stream()
+				.filter(r -> r.getInterval() != PriceInterval.ONE_DAY)
+				.collect(Collectors.groupingBy(r -> r.getSymbol(), Collectors.groupingBy(r -> r.getInterval(), () -> new EnumMap<PriceInterval, List<PriceTableRecord>>(PriceInterval.class), Collectors.toList())));
+		Map<String,IntradayPriceSeries[]> intradaySeriesBySymbol = new HashMap<String, IntradayPriceSeries[]>();
+		for (Entry<String, Map<PriceInterval, List<PriceTableRecord>>> entry : intradayRecordsBySymbol.entrySet()) {
+			// EnumMap: dalla risoluzione più fine alla più grossolana
+			intradaySeriesBySymbol.put(entry.getKey(), entry.getValue().entrySet().stream()
+					.map(e -> IntradayPriceSeries.of(e.getKey(), e.getValue()))
+					.toArray(IntradayPriceSeries[]::new));
+		}
+
+		Map<String,List<PriceTableRecord>> recordsBySymbol = priceTableRecords.stream()
+				.filter(r -> r.getInterval() == PriceInterval.ONE_DAY)
+				.collect(Collectors.groupingBy(r -> r.getSymbol()));
+		Map<String,DailyPriceSeries> seriesBySymbol = new HashMap<String, DailyPriceSeries>();
+		for (Entry<String, List<PriceTableRecord>> entry : recordsBySymbol.entrySet()) {
+			long firstEpochDay = Long.MAX_VALUE;
+			long lastEpochDay = Long.MIN_VALUE;
+			for (PriceTableRecord r : entry.getValue()) {
+				long epochDay = r.getTime().toLocalDate().toEpochDay();
+				firstEpochDay = Math.min(firstEpochDay, epochDay);
+				lastEpochDay = Math.max(lastEpochDay, epochDay);
+			}
+			BigDecimal[] closes = new BigDecimal[Math.toIntExact(lastEpochDay - firstEpochDay + 1)];
+			for (PriceTableRecord r : entry.getValue()) {
+				int index = (int) (r.getTime().toLocalDate().toEpochDay() - firstEpochDay);
+				if(closes[index] != null) {
+					logger.warn("Duplicated price for {} at {} - keeping the last one", entry.getKey(), r.getTime());
+				}
+				closes[index] = r.getPriceInEur();
+			}
+			seriesBySymbol.put(entry.getKey(), new DailyPriceSeries(firstEpochDay, closes));
+		}
+		return new PriceSnapshot(seriesBySymbol, intradaySeriesBySymbol, archivesBySymbol);
+	}
+
+	/**
+	 * Close of the finest candle containing the time, falling back to coarser intervals, then to the
+	 * archives from the finest to the daily one and finally to the daily close
+	 */
+	BigDecimal findClose(String coin, long epochSecond, long epochDay, int maxFallbackDays) {
+		IntradayPriceSeries[] intradaySeries = intradayPriceSeriesBySymbol.getOrDefault(coin, NO_SERIES);
+		PriceArchive[] archives = archivesBySymbol.getOrDefault(coin, NO_ARCHIVES);
+		// entrambi ordinati per intervallo: li scorro insieme dal più fine
+		int s = 0;
+		int a = 0;
+		while (s < intradaySeries.length || a < archives.length) {
+			BigDecimal close;
+			if(a == archives.length || (s < intradaySeries.length && intradaySeries[s].getInterval().compareTo(archives[a].getInterval()) <= 0)) {
+				close = intradaySeries[s++].getClose(epochSecond);
+			} else {
+				PriceArchive archive = archives[a++];
+				close = archive.findClose(epochSecond, archive.getInterval() == PriceInterval.ONE_DAY ? 1 + maxFallbackDays : 1);
+			}
+			if(close != null) return close;
+		}
+		DailyPriceSeries series = priceSeriesBySymbol.get(coin);
+		if(series == null) return null;
+		return series.getClose(epochDay, maxFallbackDays);
+	}
+
+	/**
+	 * Closes of the coin for the days from firstEpochDay, NaN where none is available: the daily series
+	 * is copied in one pass, the days it leaves empty are asked to the intraday series and the archives
+	 * at the last second of the day
+	 */
+	double[] dailyCloses(String coin, long firstEpochDay, int days, int maxFallbackDays) {
+		double[] closes = new double[days];
+		Arrays.fill(closes, Double.NaN);
+		DailyPriceSeries series = priceSeriesBySymbol.get(coin);
+		if(series != null) {
+			series.fillCloses(firstEpochDay, closes, maxFallbackDays);
+		}
+		if(intradayPriceSeriesBySymbol.containsKey(coin) || archivesBySymbol.containsKey(coin)) {
+			for (int i = 0; i < days; i++) {
+				if(Double.isNaN(closes[i])) {
+					long epochDay = firstEpochDay + i;
+					BigDecimal close = findClose(coin, (epochDay + 1) * 86400 - 1, epochDay, maxFallbackDays);
+					if(close != null) {
+						closes[i] = close.doubleValue();
+					}
+				}
+			}
+		}
+		return closes;
+	}
+
+	/**
+	 * SHA-256 of every price in the snapshot, computed on first use
+	 */
+	public byte[] getDigest() {
+		byte[] current = digest;
+		if(current == null) {
+			current = computeDigest();
+			digest = current;
+		}
+		return current;
+	}
+
+	private byte[] computeDigest() {
+		MessageDigest sha256;
+		try {
+			sha256 = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		try (DataOutputStream out = new DataOutputStream(new DigestOutputStream(OutputStream.nullOutputStream(), sha256))) {
+			out.writeInt(priceSeriesBySymbol.size());
+			for (Entry<String, DailyPriceSeries> entry : new TreeMap<String, DailyPriceSeries>(priceSeriesBySymbol).entrySet()) {
+				out.writeUTF(entry.getKey());
+				entry.getValue().writeTo(out);
+			}
+			out.writeInt(intradayPriceSeriesBySymbol.size());
+			for (Entry<String, IntradayPriceSeries[]> entry : new TreeMap<String, IntradayPriceSeries[]>(intradayPriceSeriesBySymbol).entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.writeInt(entry.getValue().length);
+				for (IntradayPriceSeries series : entry.getValue()) {
+					series.writeTo(out);
+				}
+			}
+			out.writeInt(archivesBySymbol.size());
+			for (Entry<String, PriceArchive[]> entry : new TreeMap<String, PriceArchive[]>(archivesBySymbol).entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.writeInt(entry.getValue().length);
+				for (PriceArchive archive : entry.getValue()) {
+					archive.writeTo(out);
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return sha256.digest();
+	}
+
+	public int getSymbolCount() {
+		Set<String> symbols = new HashSet<String>(priceSeriesBySymbol.keySet());
+		symbols.addAll(intradayPriceSeriesBySymbol.keySet());
+		symbols.addAll(archivesBySymbol.keySet());
+		return symbols.size();
+	}
+}
@@ -1,12 +1,16 @@
 package binance.prices;
 
 import java.math.BigDecimal;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
+import java.util.HexFormat;
 import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import jakarta.annotation.PostConstruct;
@@ -14,9 +18,15 @@ import jakarta.annotation.PostConstruct;
 @Component
 public class PriceTable {
 
+	private Logger logger = LogManager.getLogger(PriceTable.class);
+
 	private List<PriceTableRecord> priceTableRecords;
-	private Map<String,Map<Integer,Map<Integer,Map<Integer,BigDecimal>>>> priceTableRecordsByTime;
-	private boolean isMapped;
+	private final List<PriceArchive> priceArchives = new ArrayList<PriceArchive>();
+	private volatile PriceSnapshot snapshot;
+	private PriceDemand priceDemand;
+
+	@Value("${binance.prices.max-fallback-days:0}") // 0 = no fallback to the previous available close
+	private int maxFallbackDays;
 	
 	public PriceTable() {
 	}
@@ -38,43 +48,115 @@ public class PriceTable {
 		priceTableRecords.add(toAdd);
 	}
 	
-	public synchronized void mapWithTime() {if (!isMapped) {
-	    priceTableRecordsByTime = priceTableRecords.stream()
-	            .collect(Collectors.groupingBy(
-	                r -> r.getSymbol(),
-	                Collectors.groupingBy(
-	                    r -> r.getTime().getYear(),
-	                    Collectors.groupingBy(
-	                        r -> r.getTime().getMonthValue(),
-	                        Collectors.toMap(
-	                            r -> r.getTime().getDayOfMonth(),
-	                            r -> r.getPriceInEur()
-	                        )
-	                    )
-	                )
-	            ));
-	        isMapped = true;
-	    }
-}
+	/**
+	 * Memory-mapped archive queried in place of the records of its symbol and interval
+	 */
+	public synchronized void addPriceArchive(PriceArchive archive) {
+		priceArchives.add(archive);
+	}
+
+	/**
+	 * Builds an immutable snapshot of the records and archives loaded so far and swaps it in atomically:
+	 * readers keep using the previous snapshot until the new one is published.
+	 */
+	public synchronized PriceSnapshot publishSnapshot() {
+		PriceSnapshot newSnapshot = PriceSnapshot.of(priceTableRecords, List.copyOf(priceArchives));
+		snapshot = newSnapshot;
+		logger.info("Published price snapshot with {} symbols", newSnapshot.getSymbolCount());
+		return newSnapshot;
+	}
+
+	/**
+	 * Replaces the loaded records and publishes the corresponding snapshot
+	 */
+	public synchronized PriceSnapshot reload(List<PriceTableRecord> priceTableRecords) {
+		this.priceTableRecords = priceTableRecords;
+		return publishSnapshot();
+	}
+
+	/**
+	 * Price in EUR of the coin: close of the finest loaded candle (1m, 1h) containing the time, otherwise the
+	 * daily close, falling back to the previous available close up to binance.prices.max-fallback-days;
+	 * null when no price is available.
+	 */
+	public BigDecimal findPrice(String coin, LocalDateTime time) {
+		PriceSnapshot current = snapshot;
+		if(current == null) {
+			current = publishSnapshotIfAbsent();
+		}
+		return current.findClose(coin, toEpochSecond(time), time.toLocalDate().toEpochDay(), maxFallbackDays);
+	}
 	
 	public BigDecimal getPrice(String coin, LocalDateTime time) {
-		mapWithTime();try {
-			return priceTableRecordsByTime.get(coin).get(time.getYear()).get(time.getMonthValue()).get(time.getDayOfMonth());
-		}catch (NullPointerException e) {
-			System.out.println("NotFound "+coin + "at time "+time);
-			throw e;
+		BigDecimal price = findPrice(coin, time);
+		if(price == null) {
+			logger.error("NotFound {} at time {}", coin, time);
+			throw new IllegalStateException("Price not found for " + coin + " at time " + time);
 		}
-	}	
+		return price;
+	}
 
-	public boolean isMapped() {
-		return isMapped;
+	/**
+	 * Daily closes in EUR of the coin for the days from firstDay, with the same fallback as findPrice;
+	 * NaN on the days without a price
+	 */
+	public double[] getDailyCloses(String coin, LocalDate firstDay, int days) {
+		PriceSnapshot current = snapshot;
+		if(current == null) {
+			current = publishSnapshotIfAbsent();
+		}
+		return current.dailyCloses(coin, firstDay.toEpochDay(), days, maxFallbackDays);
 	}
 
-	public void setMapped(boolean isMapped) {
-		this.isMapped = isMapped;
+	public boolean hasPrice(String coin, LocalDateTime time) {
+		return findPrice(coin, time) != null;
+	}
+
+	/**
+	 * Only used when prices are queried before the loading step published them (i.e. tables built by hand)
+	 */
+	private synchronized PriceSnapshot publishSnapshotIfAbsent() {
+		PriceSnapshot current = snapshot;
+		return current != null ? current : publishSnapshot();
+	}
+
+	static long toEpochSecond(LocalDateTime time) {
+		return time.toEpochSecond(ZoneOffset.UTC);
+	}
+
+	/**
+	 * Digest of the prices served and of the fallback applied to them: anything computed from the
+	 * prices is still valid as long as it does not change
+	 */
+	public String getPricesFingerprint() {
+		PriceSnapshot current = snapshot;
+		if(current == null) {
+			current = publishSnapshotIfAbsent();
+		}
+		return HexFormat.of().formatHex(current.getDigest()) + "|" + maxFallbackDays;
+	}
+
+	public PriceSnapshot getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Coins and days the loaded history needs; null when every price is loaded
+	 */
+	public PriceDemand getPriceDemand() {
+		return priceDemand;
+	}
+
+	public void setPriceDemand(PriceDemand priceDemand) {
+		this.priceDemand = priceDemand;
+	}
+
+	public int getMaxFallbackDays() {
+		return maxFallbackDays;
+	}
+
+	public void setMaxFallbackDays(int maxFallbackDays) {
+		this.maxFallbackDays = maxFallbackDays;
 	}
-	
-	
-	
 	
 }
@@ -3,11 +3,15 @@ package binance.prices;
 import java.math.BigDecimal;
 import java.time.LocalDateTime;
 
-public class PriceTableRecord {
+import org.springframework.batch.item.ResourceAware;
+import org.springframework.core.io.Resource;
+
+public class PriceTableRecord implements ResourceAware {
 
 	private LocalDateTime time;
 	private String Symbol;
 	private BigDecimal priceInEur;
+	private PriceInterval interval = PriceInterval.ONE_DAY;
 	public LocalDateTime getTime() {
 		return time;
 	}
@@ -26,6 +30,19 @@ public class PriceTableRecord {
 	public void setPriceInEur(BigDecimal priceInEur) {
 		this.priceInEur = priceInEur;
 	}
+	public PriceInterval getInterval() {
+		return interval;
+	}
+	public void setInterval(PriceInterval interval) {
+		this.interval = interval;
+	}
+	/**
+	 * Called by the MultiResourceItemReader: the interval is taken from the name of the price file
+	 */
+	@Override
+	public void setResource(Resource resource) {
+		this.interval = PriceInterval.fromFileName(resource.getFilename());
+	}
 	
 	
 	
@@ -3,6 +3,9 @@ package binance.struct;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import binance.CommonDef;
 
@@ -17,6 +20,8 @@ public class Operation implements UtcTimedRecordWithMovement{
 
 
 	private final Boolean longOperation;
+	private List<Operation> legs;
+
 	public Operation(BinanceHistoryRecord binanceHistoryRecord) {
 		switch (binanceHistoryRecord.getOperation()) {
 		case TRANSACTION_SPEND:
@@ -34,6 +39,42 @@ public class Operation implements UtcTimedRecordWithMovement{
 		}
 	}
 
+	/**
+	 * Trade made of the given leg and the ones added later with addLeg: partial fills of the same
+	 * order are reported by Binance as separate swaps a few seconds apart
+	 */
+	public Operation(Operation firstLeg) {
+		this.longOperation = firstLeg.longOperation;
+		this.utcTime = firstLeg.utcTime;
+		this.coinBought = firstLeg.coinBought;
+		this.coinSold = firstLeg.coinSold;
+		this.amountBought = firstLeg.amountBought;
+		this.amountSold = firstLeg.amountSold;
+		this.legs = new ArrayList<Operation>();
+		this.legs.add(firstLeg);
+	}
+
+	public boolean canCoalesce(Operation leg, long windowSeconds) {
+		return leg.longOperation.equals(longOperation) && leg.coinBought.equals(coinBought) && leg.coinSold.equals(coinSold)
+				&& !leg.utcTime.isAfter(utcTime.plusSeconds(windowSeconds));
+	}
+
+	public void addLeg(Operation leg) {
+		if(legs == null) {
+			throw new IllegalStateException("Not a coalesced trade: " + this);
+		}
+		setAmountBought(amountBought.add(leg.amountBought));
+		setAmountSold(amountSold.add(leg.amountSold));
+		legs.add(leg);
+	}
+
+	/**
+	 * Swaps coalesced in this trade, in time order; a single swap has no legs
+	 */
+	public List<Operation> getLegs() {
+		return legs == null ? Collections.emptyList() : Collections.unmodifiableList(legs);
+	}
+
 	public LocalDateTime getUtcTime() {
 		return utcTime;
 	}
@@ -129,6 +170,7 @@ public class Operation implements UtcTimedRecordWithMovement{
 				.append(getCoinSold())
 				.append(" on date: ")
 				.append(utcTime)
+				.append(legs == null ? "" : " (" + legs.size() + " legs)")
 				.toString();		
 	}
 
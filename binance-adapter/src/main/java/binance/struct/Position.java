@@ -6,7 +6,6 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.stream.Collectors;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -31,6 +30,12 @@ public class Position {
 	List<Operation> swaps = new ArrayList<Operation>();
 	List<BinanceHistoryRecord> repays = new ArrayList<BinanceHistoryRecord>();
 
+	// totali per moneta aggiornati a ogni aggiunta: il controllo di chiusura non riscorre le liste
+	Map<String,BigDecimal> totalInByCoin = new HashMap<String, BigDecimal>();
+	Map<String,BigDecimal> totalOutByCoin = new HashMap<String, BigDecimal>();
+	Map<String,BigDecimal> totalLoanedByCoin = new HashMap<String, BigDecimal>();
+	Map<String,BigDecimal> totalRepayedByCoin = new HashMap<String, BigDecimal>();
+
 	public Position(BinanceHistoryRecord binanceHistoryRecord) {
 		logger.warn("CREATING POSITION FROM: {}", binanceHistoryRecord);
 		if(binanceHistoryRecord.isLoanOperation()) {
@@ -42,6 +47,13 @@ public class Position {
 		}
 	}
 
+	/**
+	 * Position opened by a swap, with the pair fixed by it
+	 */
+	public Position(Operation firstOp) {
+		addOperation(firstOp, true);
+	}
+
 	public ADD_OPERATION_RESULT addOperation(Operation op, boolean couldReopen) {
 		if(isClosed) {
 			if(!couldReopen) {
@@ -81,7 +93,7 @@ public class Position {
 				return ADD_OPERATION_RESULT.LOOK_FOR_COMPATIBLE_POSITION;
 			}
 		}
-		logger.warn("ADDING OPERATION: {}", op);
+		logger.debug("ADDING OPERATION: {}", op);
 		swaps.add(op);
 		isClosed=false;
 		return ADD_OPERATION_RESULT.OK;
@@ -96,6 +108,17 @@ public class Position {
 		return baseCoin+"/"+quoteCoin;
 	}
 
+	/**
+	 * Pair of the position the operation belongs to: base/quote whatever the side
+	 */
+	public static String getPair(Operation op) {
+		return op.isLongOperation() ? op.getCoinBought()+"/"+op.getCoinSold() : op.getCoinSold()+"/"+op.getCoinBought();
+	}
+
+	public boolean isClosed() {
+		return isClosed;
+	}
+
 	public ADD_LOAN_RESULT addLoan(BinanceHistoryRecord binanceHistoryRecord) {
 		if(isClosed) {
 			return ADD_LOAN_RESULT.INCOMPATIBLE;
@@ -115,6 +138,7 @@ public class Position {
 		}
 		logger.warn("ADDING LOAN: {}", binanceHistoryRecord);
 		loans.add(binanceHistoryRecord);
+		totalLoanedByCoin.merge(binanceHistoryRecord.getCoin(), binanceHistoryRecord.getChange(), BigDecimal::add);
 		return ADD_LOAN_RESULT.OK;
 	}
 
@@ -146,6 +170,7 @@ public class Position {
 
 		logger.warn("ADDING REPAY: {}", binanceHistoryRecord);
 		repays.add(binanceHistoryRecord);
+		totalRepayedByCoin.merge(binanceHistoryRecord.getCoin(), binanceHistoryRecord.getChange(), BigDecimal::add);
 		return ADD_REPAY_RESULT.OK;
 	}
 
@@ -175,47 +200,12 @@ public class Position {
 		logger.warn("ADDING TRANSFER: {}", binanceHistoryRecord);
 		if(binanceHistoryRecord.getChange().compareTo(BigDecimal.ZERO)>0) {
 			transfersIn.add(binanceHistoryRecord);
+			totalInByCoin.merge(transferredCoin, binanceHistoryRecord.getChange(), BigDecimal::add);
 		}else {
 			transfersOut.add(binanceHistoryRecord);
+			totalOutByCoin.merge(transferredCoin, binanceHistoryRecord.getChange(), BigDecimal::add);
 		}
 
-		Map<String,List<BinanceHistoryRecord>> myCoinIn = transfersIn.stream().collect(Collectors.groupingBy(l -> l.getCoin()));
-		Map<String,List<BinanceHistoryRecord>> myCoinOut = transfersOut.stream().collect(Collectors.groupingBy(l -> l.getCoin()));
-		Map<String,List<BinanceHistoryRecord>> loansByCoin = loans.stream().collect(Collectors.groupingBy(l -> l.getCoin()));
-		Map<String,List<BinanceHistoryRecord>> repayByCoin = repays.stream().collect(Collectors.groupingBy(l -> l.getCoin()));
-		Map<String,BigDecimal> totalInByCoin = new HashMap<String, BigDecimal>();
-		Map<String,BigDecimal> totalOutByCoin = new HashMap<String, BigDecimal>();
-		Map<String,BigDecimal> totalLoanedByCoin = new HashMap<String, BigDecimal>();
-		Map<String,BigDecimal> totalRepayedByCoin = new HashMap<String, BigDecimal>();
-		myCoinIn.entrySet().forEach(e -> {
-			BigDecimal total = BigDecimal.ZERO;
-			for (BinanceHistoryRecord in : e.getValue()) {
-				total = total.add(in.getChange());
-			}
-			totalInByCoin.put(e.getKey(), total);
-		});
-		myCoinOut.entrySet().forEach(e -> {
-			BigDecimal total = BigDecimal.ZERO;
-			for (BinanceHistoryRecord out : e.getValue()) {
-				total = total.add(out.getChange());
-			}
-			totalOutByCoin.put(e.getKey(), total);
-		});
-		loansByCoin.entrySet().forEach(e -> {
-			BigDecimal total = BigDecimal.ZERO;
-			for (BinanceHistoryRecord loan : e.getValue()) {
-				total = total.add(loan.getChange());
-			}
-			totalLoanedByCoin.put(e.getKey(), total);
-		});
-		repayByCoin.entrySet().forEach(e -> {
-			BigDecimal total = BigDecimal.ZERO;
-			for (BinanceHistoryRecord loan : e.getValue()) {
-				total = total.add(loan.getChange());
-			}
-			totalRepayedByCoin.put(e.getKey(), total);
-		});
-		
 		boolean doClose = true;
 		for(Entry<String, BigDecimal> e : totalInByCoin.entrySet()) {
 			BigDecimal myInAmount = e.getValue();
@@ -227,7 +217,7 @@ public class Position {
 				remainingToRepay = loanedAmount;
 				BigDecimal repayedAmount = totalRepayedByCoin.get(e.getKey());				
 				if(repayedAmount!=null) {
-					remainingToRepay.add(repayedAmount);
+					remainingToRepay = remainingToRepay.add(repayedAmount);
 				}
 			}
 			
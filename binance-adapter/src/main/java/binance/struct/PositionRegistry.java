@@ -0,0 +1,56 @@
+package binance.struct;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Open positions indexed by base/quote pair, so the position an operation answered
+ * LOOK_FOR_COMPATIBLE_POSITION for is found with a hash lookup instead of a scan of all the
+ * positions. Positions closed with closePosition are dropped from the index the next time their
+ * pair is looked up.
+ */
+public class PositionRegistry {
+
+	private final Map<String,List<Position>> openPositionsByPair = new HashMap<String, List<Position>>();
+
+	/**
+	 * Indexes a position once its first operation has fixed the pair
+	 */
+	public void register(Position position) {
+		openPositionsByPair.computeIfAbsent(position.getPair(), pair -> new ArrayList<Position>()).add(position);
+	}
+
+	/**
+	 * The most recently registered open position on the pair of the operation, null if there is none.
+	 * The reversed pair is looked up too: a small asset takeover is read as long whatever coin it gave.
+	 */
+	public Position findCompatible(Operation op) {
+		Position position = findOpen(Position.getPair(op));
+		return position != null ? position : findOpen(op.getCoinSold()+"/"+op.getCoinBought());
+	}
+
+	private Position findOpen(String pair) {
+		List<Position> positions = openPositionsByPair.get(pair);
+		if(positions == null) {
+			return null;
+		}
+		for (int i = positions.size() - 1; i >= 0; i--) {
+			Position position = positions.get(i);
+			if(!position.isClosed()) {
+				return position;
+			}
+			positions.remove(i);
+		}
+		return null;
+	}
+
+	public void close(Position position) {
+		position.closePosition();
+		List<Position> positions = openPositionsByPair.get(position.getPair());
+		if(positions != null) {
+			positions.remove(position);
+		}
+	}
+}
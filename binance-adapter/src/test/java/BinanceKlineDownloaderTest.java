@@ -0,0 +1,177 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.sun.net.httpserver.HttpServer;
+
+import binance.data.BinanceKlineDownloader;
+import binance.prices.PriceArchive;
+import binance.prices.PriceDemand;
+import binance.prices.PriceInterval;
+import binance.prices.PriceTable;
+import binance.prices.PriceTableRecord;
+
+class BinanceKlineDownloaderTest {
+
+	private static final long DAY_MS = 24 * 60 * 60 * 1000L;
+	private static final Pattern QUERY = Pattern.compile("symbol=(\\w+)&interval=1d&startTime=(\\d+)&endTime=(\\d+)&limit=1000");
+
+	private HttpServer server;
+	private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+	private volatile boolean truncateNext;
+
+	@BeforeEach
+	void startStub() throws Exception {
+		// stub di /api/v3/klines: una candela al giorno con chiusura = giorno del mese
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/api/v3/klines", exchange -> {
+			String query = exchange.getRequestURI().getQuery();
+			requests.add(query);
+			Matcher matcher = QUERY.matcher(query);
+			assertTrue(matcher.matches(), query);
+			long start = Long.parseLong(matcher.group(2));
+			long end = Long.parseLong(matcher.group(3));
+			List<String> candles = new ArrayList<String>();
+			for (long t = (start + DAY_MS - 1) / DAY_MS * DAY_MS; t <= end && candles.size() < 1000; t += DAY_MS) {
+				int day = LocalDate.ofEpochDay(t / DAY_MS).getDayOfMonth();
+				candles.add("[" + t + ",\"1.0\",\"2.0\",\"0.5\",\"" + day + ".0\",\"10.0\"," + (t + DAY_MS - 1) + ",\"0\",1,\"0\",\"0\",\"0\"]");
+			}
+			byte[] body = ("[" + String.join(",", candles) + "]").getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				if (truncateNext) {
+					// connessione chiusa a metà risposta
+					truncateNext = false;
+					out.write(body, 0, body.length / 2);
+					out.flush();
+					exchange.close();
+					return;
+				}
+				out.write(body);
+			}
+		});
+		server.start();
+	}
+
+	@AfterEach
+	void stopStub() {
+		server.stop(0);
+	}
+
+	@Test
+	void testDownloadAndResume(@TempDir Path outputDir) throws Exception {
+		Path btc = outputDir.resolve("BTCEUR.csv.prices");
+		// file interrotto durante la scrittura della terza riga
+		Files.writeString(btc, "Symbol,Date,Open,High,Low,Close,Volume\n"
+				+ "BTC,2024-01-01 00:00,\"1.0\",\"2.0\",\"0.5\",\"1.0\",\"10.0\"\n"
+				+ "BTC,2024-01-02 00:00,\"1.0\",\"2.0\",\"0.5\",\"2.0\",\"10.0\"\n"
+				+ "BTC,2024-01-03 00:00,\"1.0\"");
+
+		assertEquals(0, downloader(outputDir, List.of("BTCEUR", "ETHEUR")).downloadAll());
+
+		List<String> btcLines = Files.readAllLines(btc);
+		assertEquals(1 + 10, btcLines.size());
+		assertEquals("BTC,2024-01-03 00:00,\"1.0\",\"2.0\",\"0.5\",\"3.0\",\"10.0\"", btcLines.get(3));
+		assertEquals("BTC,2024-01-09 00:00,\"1.0\",\"2.0\",\"0.5\",\"9.0\",\"10.0\"", btcLines.get(9));
+		List<String> ethLines = Files.readAllLines(outputDir.resolve("ETHEUR.csv.prices"));
+		assertEquals("Symbol,Date,Open,High,Low,Close,Volume", ethLines.get(0));
+		assertEquals(1 + 10, ethLines.size());
+		long btcResume = LocalDate.of(2024, 1, 3).atStartOfDay().toInstant(ZoneOffset.UTC).toEpochMilli();
+		assertTrue(requests.stream().anyMatch(q -> q.startsWith("symbol=BTCEUR&interval=1d&startTime=" + btcResume + "&")));
+
+		// già aggiornato: nessuna richiesta
+		requests.clear();
+		assertEquals(0, downloader(outputDir, List.of("BTCEUR", "ETHEUR")).downloadAll());
+		assertTrue(requests.isEmpty(), requests.toString());
+		assertEquals(btcLines, Files.readAllLines(btc));
+	}
+
+	@Test
+	void testRequestWindows(@TempDir Path outputDir) throws Exception {
+		BinanceKlineDownloader downloader = new BinanceKlineDownloader("http://127.0.0.1:" + server.getAddress().getPort(),
+				List.of("BTCEUR"), PriceInterval.ONE_DAY, LocalDate.of(2020, 1, 1), LocalDate.of(2024, 1, 1), outputDir, 2, 6000);
+		assertEquals(0, downloader.downloadAll());
+
+		List<String> lines = Files.readAllLines(outputDir.resolve("BTCEUR.csv.prices"));
+		assertEquals(1 + 1462, lines.size());
+		assertTrue(lines.get(1000).startsWith("BTC,2022-09-26 00:00,"));
+		assertTrue(lines.get(1001).startsWith("BTC,2022-09-27 00:00,"));
+		assertEquals(2, requests.size());
+	}
+
+	@Test
+	void testResumeAfterTruncatedResponse(@TempDir Path outputDir) throws Exception {
+		truncateNext = true;
+		assertEquals(0, downloader(outputDir, List.of("BTCEUR")).downloadAll());
+
+		List<String> lines = Files.readAllLines(outputDir.resolve("BTCEUR.csv.prices"));
+		assertEquals(1 + 10, lines.size());
+		for (int day = 1; day <= 10; day++) {
+			assertTrue(lines.get(day).startsWith(String.format("BTC,2024-01-%02d 00:00,", day)), lines.get(day));
+		}
+		assertEquals(2, requests.size());
+	}
+
+	@Test
+	void testArchiveFormat(@TempDir Path outputDir) throws Exception {
+		BinanceKlineDownloader downloader = downloader(outputDir, List.of("BTCEUR", "EURUSDT"));
+		downloader.setFormat(BinanceKlineDownloader.Format.ARCHIVE);
+		assertEquals(0, downloader.downloadAll());
+
+		PriceTable priceTable = new PriceTable();
+		priceTable.setPriceTableRecords(new ArrayList<PriceTableRecord>());
+		priceTable.addPriceArchive(PriceArchive.open(outputDir.resolve("BTCEUR" + PriceArchive.EXTENSION), 4));
+		priceTable.addPriceArchive(PriceArchive.open(outputDir.resolve("EURUSDT" + PriceArchive.EXTENSION), 4));
+		assertEquals(0, new BigDecimal("7").compareTo(priceTable.getPrice("BTC", LocalDateTime.of(2024, 1, 7, 12, 0))));
+		assertEquals(0, new BigDecimal("0.25").compareTo(priceTable.getPrice("USDT", LocalDateTime.of(2024, 1, 4, 12, 0))));
+		assertNull(priceTable.findPrice("BTC", LocalDateTime.of(2024, 1, 11, 0, 0)));
+
+		// ripresa dall'archivio esistente: nessuna richiesta
+		requests.clear();
+		assertEquals(0, downloader.downloadAll());
+		assertTrue(requests.isEmpty(), requests.toString());
+	}
+
+	@Test
+	void testDownloadOnlyDemand(@TempDir Path outputDir) throws Exception {
+		PriceDemand demand = new PriceDemand();
+		demand.add("BTC", LocalDateTime.of(2024, 1, 3, 10, 0));
+		demand.add("BTC", LocalDateTime.of(2024, 1, 5, 23, 59, 59));
+		demand.add("USDT", LocalDateTime.of(2024, 1, 8, 12, 0));
+		BinanceKlineDownloader downloader = downloader(outputDir, List.of("BTCEUR", "ETHEUR", "SOLEUR"));
+		downloader.setDemand(demand);
+		assertEquals(0, downloader.downloadAll());
+
+		List<String> btcLines = Files.readAllLines(outputDir.resolve("BTCEUR.csv.prices"));
+		assertEquals(1 + 4, btcLines.size());
+		assertTrue(btcLines.get(1).startsWith("BTC,2024-01-03 00:00,"));
+		assertTrue(btcLines.get(4).startsWith("BTC,2024-01-06 00:00,"));
+		List<String> usdtLines = Files.readAllLines(outputDir.resolve("EURUSDT.csv.prices"));
+		assertEquals(1 + 1, usdtLines.size());
+		assertTrue(usdtLines.get(1).startsWith("USDT,2024-01-08 00:00,"));
+		assertFalse(Files.exists(outputDir.resolve("ETHEUR.csv.prices")));
+	}
+
+	private BinanceKlineDownloader downloader(Path outputDir, List<String> symbols) {
+		return new BinanceKlineDownloader("http://127.0.0.1:" + server.getAddress().getPort(), symbols, PriceInterval.ONE_DAY,
+				LocalDate.of(2024, 1, 1), LocalDate.of(2024, 1, 10), outputDir, 4, 100);
+	}
+}
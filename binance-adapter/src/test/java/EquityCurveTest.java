@@ -0,0 +1,85 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import binance.model.account.Account;
+import binance.model.account.EquityCurve;
+import binance.model.account.margin.CrossMarginAccount;
+import binance.model.account.spot.SpotAccount;
+import binance.prices.PriceTable;
+import binance.prices.PriceTableRecord;
+import binance.struct.BinanceHistoryRecord;
+import binance.struct.BinanceOperationType;
+
+class EquityCurveTest {
+
+	private static final LocalDateTime DAY1 = LocalDateTime.of(2024, 1, 1, 10, 0);
+
+	@Test
+	void testDailyEquityPerAccount() {
+		SpotAccount spot = new SpotAccount();
+		spot.addRecord(record(DAY1, "Spot", BinanceOperationType.FIAT_DEPOSIT, "EUR", "1000"));
+		spot.addRecord(record(DAY1, "Spot", BinanceOperationType.TRANSACTION_SPEND, "EUR", "-800"));
+		spot.addRecord(record(DAY1, "Spot", BinanceOperationType.TRANSACTION_BUY, "BTC", "0.02"));
+		spot.addRecord(record(DAY1.plusDays(1), "Spot", BinanceOperationType.TRANSFER_ACCOUNT, "BTC", "-0.01"));
+		spot.addRecord(record(DAY1.plusDays(1), "Spot", BinanceOperationType.AIRDROP_ASSETS, "ETHW", "1"));
+		CrossMarginAccount crossMargin = new CrossMarginAccount();
+		crossMargin.addRecord(record(DAY1.plusDays(1), "Cross Margin", BinanceOperationType.TRANSFER_ACCOUNT, "BTC", "0.01"));
+		crossMargin.addRecord(record(DAY1.plusDays(1), "Cross Margin", BinanceOperationType.MARGIN_LOAN, "BTC", "0.01"));
+		// il rimborso comprende 0.0001 BTC di interessi
+		crossMargin.addRecord(record(DAY1.plusDays(3), "Cross Margin", BinanceOperationType.MARGIN_REPAYMENT, "BTC", "-0.0101"));
+
+		EquityCurve curve = new EquityCurve(List.<Account>of(spot, crossMargin), priceTable());
+
+		assertEquals(LocalDate.of(2024, 1, 1), curve.getFirstDay());
+		assertEquals(4, curve.getDays());
+		assertEquals(List.of("Spot", "Cross Margin"), curve.getAccounts());
+		double[] expectedSpot = {1000, 610, 610, 620};
+		double[] expectedCrossMargin = {0, 410, 410, 415.8};
+		for (int d = 0; d < 4; d++) {
+			assertEquals(expectedSpot[d], curve.getEquity(0, d), 1e-6);
+			assertEquals(expectedCrossMargin[d], curve.getEquity(1, d), 1e-6);
+			assertEquals(expectedSpot[d] + expectedCrossMargin[d], curve.getTotal(d), 1e-6);
+		}
+		assertEquals(Set.of("ETHW"), curve.getUnpricedCoins());
+	}
+
+	@Test
+	void testNoRecords() {
+		EquityCurve curve = new EquityCurve(List.of(new SpotAccount()), priceTable());
+		assertNull(curve.getFirstDay());
+		assertEquals(0, curve.getDays());
+	}
+
+	/**
+	 * BTC has no close on the third day, taken from the second one with the fallback
+	 */
+	private PriceTable priceTable() {
+		PriceTable priceTable = new PriceTable();
+		priceTable.setPriceTableRecords(new ArrayList<PriceTableRecord>());
+		priceTable.setMaxFallbackDays(1);
+		priceTable.addPriceTableRecord(price(LocalDateTime.of(2024, 1, 1, 0, 0), 40000));
+		priceTable.addPriceTableRecord(price(LocalDateTime.of(2024, 1, 2, 0, 0), 41000));
+		priceTable.addPriceTableRecord(price(LocalDateTime.of(2024, 1, 4, 0, 0), 42000));
+		return priceTable;
+	}
+
+	private PriceTableRecord price(LocalDateTime time, long priceInEur) {
+		PriceTableRecord record = new PriceTableRecord();
+		record.setSymbol("BTC");
+		record.setTime(time);
+		record.setPriceInEur(BigDecimal.valueOf(priceInEur));
+		return record;
+	}
+
+	private static BinanceHistoryRecord record(LocalDateTime utcTime, String account, BinanceOperationType operation, String coin, String change) {
+		return new BinanceHistoryRecord("1", utcTime, account, operation, coin, new BigDecimal(change), "");
+	}
+}
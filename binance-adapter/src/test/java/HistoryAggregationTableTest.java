@@ -0,0 +1,56 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import binance.model.HistoryAggregationTable;
+import binance.struct.BinanceHistoryRecord;
+import binance.struct.BinanceOperationType;
+
+class HistoryAggregationTableTest {
+
+	private static final LocalDateTime T0 = LocalDateTime.of(2024, 3, 1, 10, 15, 30);
+
+	@Test
+	void testSumsRecordsWithSameKey() {
+		HistoryAggregationTable table = new HistoryAggregationTable(16);
+		table.add(record(T0, "Spot", BinanceOperationType.TRANSACTION_BUY, "BTC", "0.1"));
+		table.add(record(T0, "Spot", BinanceOperationType.TRANSACTION_SPEND, "EUR", "-4000"));
+		table.add(record(T0, "Spot", BinanceOperationType.TRANSACTION_BUY, "BTC", "0.05"));
+		table.add(record(T0, "Cross Margin", BinanceOperationType.TRANSACTION_BUY, "BTC", "1"));
+		table.add(record(T0.plusSeconds(1), "Spot", BinanceOperationType.TRANSACTION_BUY, "BTC", "2"));
+		table.add(record(T0, "Spot", BinanceOperationType.TRANSACTION_SPEND, "EUR", "-2000"));
+
+		List<BinanceHistoryRecord> aggregates = table.getAggregates();
+		assertEquals(4, aggregates.size());
+		assertEquals(new BigDecimal("0.15"), aggregates.get(0).getChange());
+		assertEquals(new BigDecimal("-6000"), aggregates.get(1).getChange());
+		assertEquals("Cross Margin", aggregates.get(2).getAccount());
+		assertEquals(T0.plusSeconds(1), aggregates.get(3).getUtcTime());
+		assertEquals("user", aggregates.get(0).getUserId());
+	}
+
+	@Test
+	void testGrowKeepsAggregates() {
+		HistoryAggregationTable table = new HistoryAggregationTable(16);
+		for (int round = 0; round < 2; round++) {
+			for (int i = 0; i < 5000; i++) {
+				table.add(record(T0.plusSeconds(i), "Isolated Margin", BinanceOperationType.TRANSACTION_FEE, "COIN" + (i % 300), "1"));
+			}
+		}
+		assertEquals(5000, table.size());
+		assertTrue(table.getAggregates().stream().allMatch(r -> r.getChange().intValue() == 2));
+
+		table.clear();
+		assertEquals(0, table.size());
+		table.add(record(T0, "Spot", BinanceOperationType.TRANSACTION_BUY, "BTC", "1"));
+		assertEquals(BigDecimal.ONE, table.getAggregates().get(0).getChange());
+	}
+
+	private BinanceHistoryRecord record(LocalDateTime time, String account, BinanceOperationType operation, String coin, String change) {
+		return new BinanceHistoryRecord("user", time, account, operation, coin, new BigDecimal(change), null);
+	}
+}
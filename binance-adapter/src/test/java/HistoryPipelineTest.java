@@ -0,0 +1,123 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.batch.item.file.MultiResourceItemReader;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import binance.job.steps.AggregateAssignStepConfig;
+import binance.job.steps.ReadBinanceHistoryStepConfig;
+import binance.job.steps.ValidateStepConfig;
+import binance.model.BinanceHistoryRecordList;
+import binance.model.account.margin.CrossMarginAccount;
+import binance.model.account.margin.IsolatedMarginAccount;
+import binance.model.account.spot.SpotAccount;
+import binance.struct.BinanceHistoryRecord;
+
+class HistoryPipelineTest {
+
+	/**
+	 * Read, validate and aggregate in one pass assign the same records to the accounts as the three steps
+	 */
+	@Test
+	void testSameAccountsAsSeparateSteps() throws Exception {
+		File[] inputFiles = new File("input").listFiles((dir, name) -> name.endsWith(".csv"));
+		assertNotNull(inputFiles);
+		Resource[] resources = Arrays.stream(inputFiles).map(FileSystemResource::new).toArray(Resource[]::new);
+
+		HistoryJob steps = new HistoryJob(false, resources);
+		steps.read();
+		assertTrue(steps.spotAccount.getRecords().isEmpty());
+		steps.binanceHistoryRecordList.forEach(r -> steps.validateStepConfig.validate(r));
+		steps.aggregateAssignStepConfig.aggregateAndAssign();
+
+		HistoryJob pipeline = new HistoryJob(true, resources);
+		pipeline.read();
+		// i secondi chiusi sono già nei conti prima dello step di aggregazione
+		assertFalse(pipeline.spotAccount.getRecords().isEmpty());
+		pipeline.aggregateAssignStepConfig.aggregateAndAssign();
+
+		assertFalse(steps.spotAccount.getRecords().isEmpty());
+		assertEquals(steps.spotAccount.getRecords(), pipeline.spotAccount.getRecords());
+		assertEquals(steps.crossMarginAccount.getRecords(), pipeline.crossMarginAccount.getRecords());
+		assertEquals(steps.isolatedMarginAccount.getRecords(), pipeline.isolatedMarginAccount.getRecords());
+		// la pipeline aggiunge gli aggregati un secondo alla volta
+		assertEquals(counts(steps.binanceHistoryRecordList), counts(pipeline.binanceHistoryRecordList));
+	}
+
+	@Test
+	void testInvalidRecordStopsTheRead(@TempDir Path tempDir) throws Exception {
+		Path csv = tempDir.resolve("history.csv");
+		Files.writeString(csv, "\"User_ID\",\"UTC_Time\",\"Account\",\"Operation\",\"Coin\",\"Change\",\"Remark\"\n"
+				+ "\"1\",\"2024-01-01 10:00:00\",\"Spot\",\"Deposit\",\"BTC\",\"0.1\",\"\"\n"
+				+ "\"1\",\"2024-01-01 10:00:10\",\"Spot\",\"Deposit\",\"BTC\",\"-0.1\",\"\"\n");
+
+		HistoryJob pipeline = new HistoryJob(true, new Resource[] { new FileSystemResource(csv) });
+		assertThrows(RuntimeException.class, () -> pipeline.read());
+		assertTrue(pipeline.binanceHistoryRecordList.isEmpty());
+	}
+
+	private static Map<BinanceHistoryRecord, Long> counts(List<BinanceHistoryRecord> records) {
+		return records.stream().collect(Collectors.groupingBy(r -> r, Collectors.counting()));
+	}
+
+	/**
+	 * The step beans wired by hand, the READ_HISTORY_STEP chunk loop run inline
+	 */
+	private static class HistoryJob {
+		final BinanceHistoryRecordList binanceHistoryRecordList = new BinanceHistoryRecordList();
+		final SpotAccount spotAccount = new SpotAccount();
+		final CrossMarginAccount crossMarginAccount = new CrossMarginAccount();
+		final IsolatedMarginAccount isolatedMarginAccount = new IsolatedMarginAccount();
+		final ValidateStepConfig validateStepConfig = new ValidateStepConfig();
+		final AggregateAssignStepConfig aggregateAssignStepConfig = new AggregateAssignStepConfig();
+		final ReadBinanceHistoryStepConfig readStepConfig = new ReadBinanceHistoryStepConfig();
+
+		HistoryJob(boolean pipeline, Resource[] inputFiles) {
+			ReflectionTestUtils.setField(validateStepConfig, "binanceHistoryRecordList", binanceHistoryRecordList);
+
+			ReflectionTestUtils.setField(aggregateAssignStepConfig, "binanceHistoryRecordList", binanceHistoryRecordList);
+			ReflectionTestUtils.setField(aggregateAssignStepConfig, "spotAccount", spotAccount);
+			ReflectionTestUtils.setField(aggregateAssignStepConfig, "crossMarginAccount", crossMarginAccount);
+			ReflectionTestUtils.setField(aggregateAssignStepConfig, "isolatedMarginAccount", isolatedMarginAccount);
+			ReflectionTestUtils.setField(aggregateAssignStepConfig, "pipeline", pipeline);
+			ReflectionTestUtils.setField(aggregateAssignStepConfig, "reorderSeconds", 5);
+			ReflectionTestUtils.invokeMethod(aggregateAssignStepConfig, "init");
+
+			ReflectionTestUtils.setField(readStepConfig, "binanceHistoryRecordList", binanceHistoryRecordList);
+			ReflectionTestUtils.setField(readStepConfig, "validateStepConfig", validateStepConfig);
+			ReflectionTestUtils.setField(readStepConfig, "aggregateAssignStepConfig", aggregateAssignStepConfig);
+			ReflectionTestUtils.setField(readStepConfig, "pipeline", pipeline);
+			ReflectionTestUtils.setField(readStepConfig, "historyReader", "mapped");
+			ReflectionTestUtils.setField(readStepConfig, "inputFiles", inputFiles);
+			ReflectionTestUtils.invokeMethod(readStepConfig, "init");
+		}
+
+		void read() throws Exception {
+			MultiResourceItemReader<BinanceHistoryRecord> reader = readStepConfig.multiFileReader();
+			reader.open(new ExecutionContext());
+			try {
+				BinanceHistoryRecord record;
+				while ((record = reader.read()) != null) {
+					record = readStepConfig.processRecord(record);
+					if(record != null) {
+						ReflectionTestUtils.invokeMethod(readStepConfig, "collect", record);
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,166 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+import org.springframework.test.util.ReflectionTestUtils;
+
+import binance.model.account.margin.IsolatedMarginAccount;
+import binance.model.costbasis.CostBasisMethod;
+import binance.prices.PriceTable;
+import binance.prices.PriceTableRecord;
+import binance.struct.BinanceHistoryRecord;
+import binance.struct.BinanceOperationType;
+import binance.struct.TataxRecord;
+import binance.struct.TataxRecordComparator;
+import binance.struct.UtcTimedRecordWithMovement;
+
+class IsolatedMarginPairsTest {
+
+	private static final LocalDateTime T0 = LocalDateTime.of(2025, 1, 1, 10, 0);
+
+	@Test
+	void testPerPairComputationMatchesSequential() {
+		assertSameAsSequential(account(0, CostBasisMethod.LIFO), account(2, CostBasisMethod.LIFO));
+	}
+
+	/**
+	 * The workers match the lots with the cost basis method of the account: HIFO sells first the BTC
+	 * bought for 900 USDT when USDT was worth 2 EUR, not the later one bought for 1000 USDT
+	 */
+	@Test
+	void testPerPairHifoMatchesSequential() {
+		assertSameAsSequential(account(0, CostBasisMethod.HIFO), account(2, CostBasisMethod.HIFO));
+	}
+
+	/**
+	 * BTC/USDT and ETH/USDT open at the same time, each on its own USDT: the shared quote coin does
+	 * not join them. The collateral transferred with the ETH loan goes to ETH/USDT, every transfer
+	 * out to the pair of the trade before it.
+	 */
+	@Test
+	void testSharedQuoteCoinSplitsByPair() {
+		IsolatedMarginAccount sequential = sharedQuoteAccount(0);
+		IsolatedMarginAccount perPair = sharedQuoteAccount(2);
+		assertSameAsSequential(sequential, perPair);
+
+		Map<String,List<UtcTimedRecordWithMovement>> movementsByPair = ReflectionTestUtils.invokeMethod(perPair, "groupByIsolatedPair");
+		assertEquals(List.of("BTC/USDT", "ETH/USDT"), new ArrayList<String>(movementsByPair.keySet()));
+		assertEquals(List.of("1000", "SWAP", "SWAP", "-1100"), changes(movementsByPair.get("BTC/USDT")));
+		assertEquals(List.of("0.2", "500", "SWAP", "SWAP", "-0.2", "-520"), changes(movementsByPair.get("ETH/USDT")));
+	}
+
+	private void assertSameAsSequential(IsolatedMarginAccount sequential, IsolatedMarginAccount perPair) {
+		sequential.computePlusMinus();
+		perPair.computePlusMinus();
+
+		assertFalse(sequential.getTataxRecords().isEmpty());
+		assertEquals(rows(sequential.getTataxRecords()), rows(perPair.getTataxRecords()));
+		assertEquals(rows(sequential.getProfitAndLosses()), rows(perPair.getProfitAndLosses()));
+	}
+
+	private IsolatedMarginAccount account(int pairThreads, CostBasisMethod costBasisMethod) {
+		IsolatedMarginAccount account = newAccount(pairThreads);
+		trade(account, 0, "BTC", "USDT", "1000", "0.011", "1100");
+		trade(account, 10, "SOL", "USDC", "500", "2.8", "450");
+		trade(account, 20, "BTC", "USDT", "1100", "0.012", "1000");
+		// due lotti di BTC comprati a prestito, il primo più caro in EUR perché USDT valeva il doppio
+		LocalDateTime day1 = T0.plusDays(1);
+		LocalDateTime day2 = T0.plusDays(2);
+		account.addRecord(record(day1, BinanceOperationType.ISOLATED_MARGIN_LOAN, "USDT", "1900"));
+		account.addRecord(record(day1.plusMinutes(1), BinanceOperationType.TRANSACTION_SPEND, "USDT", "-900"));
+		account.addRecord(record(day1.plusMinutes(1), BinanceOperationType.TRANSACTION_BUY, "BTC", "0.01"));
+		account.addRecord(record(day2, BinanceOperationType.TRANSACTION_SPEND, "USDT", "-1000"));
+		account.addRecord(record(day2, BinanceOperationType.TRANSACTION_BUY, "BTC", "0.01"));
+		account.addRecord(record(day2.plusMinutes(1), BinanceOperationType.TRANSACTION_SOLD, "BTC", "-0.01"));
+		account.addRecord(record(day2.plusMinutes(1), BinanceOperationType.TRANSACTION_REVENUE, "USDT", "950"));
+		ReflectionTestUtils.setField(account, "costBasisMethod", costBasisMethod);
+		return account;
+	}
+
+	/**
+	 * A long on BTC/USDT with my USDT and, while it is open, a short on ETH/USDT with borrowed ETH
+	 */
+	private IsolatedMarginAccount sharedQuoteAccount(int pairThreads) {
+		IsolatedMarginAccount account = newAccount(pairThreads);
+		account.addRecord(record(T0, BinanceOperationType.TRANSFER_ACCOUNT, "USDT", "1000"));
+		account.addRecord(record(T0.plusMinutes(1), BinanceOperationType.TRANSACTION_SPEND, "USDT", "-1000"));
+		account.addRecord(record(T0.plusMinutes(1), BinanceOperationType.TRANSACTION_BUY, "BTC", "0.011"));
+		account.addRecord(record(T0.plusMinutes(5), BinanceOperationType.ISOLATED_MARGIN_LOAN, "ETH", "0.2"));
+		account.addRecord(record(T0.plusMinutes(5), BinanceOperationType.TRANSFER_ACCOUNT, "USDT", "500"));
+		account.addRecord(record(T0.plusMinutes(6), BinanceOperationType.TRANSACTION_SOLD, "ETH", "-0.2"));
+		account.addRecord(record(T0.plusMinutes(6), BinanceOperationType.TRANSACTION_REVENUE, "USDT", "600"));
+		account.addRecord(record(T0.plusMinutes(10), BinanceOperationType.TRANSACTION_SOLD, "BTC", "-0.011"));
+		account.addRecord(record(T0.plusMinutes(10), BinanceOperationType.TRANSACTION_REVENUE, "USDT", "1100"));
+		account.addRecord(record(T0.plusMinutes(11), BinanceOperationType.TRANSFER_ACCOUNT, "USDT", "-1100"));
+		account.addRecord(record(T0.plusMinutes(20), BinanceOperationType.TRANSACTION_SPEND, "USDT", "-580"));
+		account.addRecord(record(T0.plusMinutes(20), BinanceOperationType.TRANSACTION_BUY, "ETH", "0.2"));
+		account.addRecord(record(T0.plusMinutes(21), BinanceOperationType.ISOLATED_MARGIN_REPAYMENT, "ETH", "-0.2"));
+		account.addRecord(record(T0.plusMinutes(22), BinanceOperationType.TRANSFER_ACCOUNT, "USDT", "-520"));
+		return account;
+	}
+
+	private IsolatedMarginAccount newAccount(int pairThreads) {
+		PriceTable priceTable = new PriceTable();
+		priceTable.setPriceTableRecords(new ArrayList<PriceTableRecord>());
+		priceTable.addPriceTableRecord(price("BTC", T0, 90000));
+		priceTable.addPriceTableRecord(price("USDT", T0, 1));
+		priceTable.addPriceTableRecord(price("SOL", T0, 180));
+		priceTable.addPriceTableRecord(price("USDC", T0, 1));
+		priceTable.addPriceTableRecord(price("ETH", T0, 3000));
+		priceTable.addPriceTableRecord(price("BTC", T0.plusDays(1), 90000));
+		priceTable.addPriceTableRecord(price("USDT", T0.plusDays(1), 2));
+		priceTable.addPriceTableRecord(price("BTC", T0.plusDays(2), 90000));
+		priceTable.addPriceTableRecord(price("USDT", T0.plusDays(2), 1));
+		return new IsolatedMarginAccount() {
+			@Override
+			public PriceTable getPriceTable() {
+				return priceTable;
+			}
+
+			@Override
+			protected int getPairParallelism() {
+				return pairThreads;
+			}
+		};
+	}
+
+	/**
+	 * Transfer in, buy with the whole quote amount, sell everything back
+	 */
+	private void trade(IsolatedMarginAccount account, int minute, String base, String quote, String spent, String bought, String revenue) {
+		LocalDateTime time = T0.plusMinutes(minute);
+		account.addRecord(record(time, BinanceOperationType.TRANSFER_ACCOUNT, quote, spent));
+		account.addRecord(record(time.plusMinutes(1), BinanceOperationType.TRANSACTION_SPEND, quote, "-" + spent));
+		account.addRecord(record(time.plusMinutes(1), BinanceOperationType.TRANSACTION_BUY, base, bought));
+		account.addRecord(record(time.plusMinutes(2), BinanceOperationType.TRANSACTION_SOLD, base, "-" + bought));
+		account.addRecord(record(time.plusMinutes(2), BinanceOperationType.TRANSACTION_REVENUE, quote, revenue));
+	}
+
+	private List<String> changes(List<UtcTimedRecordWithMovement> movements) {
+		return movements.stream().map(m -> m.isSwap() ? "SWAP" : ((BinanceHistoryRecord) m).getChange().toPlainString()).collect(Collectors.toList());
+	}
+
+	private List<String> rows(List<TataxRecord> records) {
+		return records.stream().sorted(new TataxRecordComparator()).map(r -> Arrays.toString(r.toCsvRecord())).collect(Collectors.toList());
+	}
+
+	private BinanceHistoryRecord record(LocalDateTime time, BinanceOperationType operation, String coin, String change) {
+		return new BinanceHistoryRecord("", time, "Isolated Margin", operation, coin, new BigDecimal(change), "");
+	}
+
+	private PriceTableRecord price(String symbol, LocalDateTime day, long priceInEur) {
+		PriceTableRecord record = new PriceTableRecord();
+		record.setSymbol(symbol);
+		record.setTime(day.toLocalDate().atStartOfDay());
+		record.setPriceInEur(BigDecimal.valueOf(priceInEur));
+		return record;
+	}
+}
@@ -0,0 +1,73 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import binance.data.KlineJsonReader;
+
+class KlineJsonReaderTest {
+
+	@Test
+	void testFormattingVariations() throws IOException {
+		String json = " [\n  [1640995200000, \"42051.25000000\" ,\"42235.64\",\"40634.36000000\",\"42051.25000000\",\"1207.11863000\",1641081599999,\"0\",1,\"0\",\"0\",\"0\"],\r\n"
+				+ "[1641081600000,\"47000\",\"48000.1\",\"46000.2\",\"8.1E-7\",\"0.5\",1641167999999,\"0\",2,\"0\",\"0\",\"0\"]\n]\n";
+		List<String> rows = new ArrayList<String>();
+		List<Long> closes = new ArrayList<Long>();
+		List<Integer> scales = new ArrayList<Integer>();
+
+		// un byte alla volta: ogni campo attraversa il confine del buffer
+		int count = new KlineJsonReader(oneByteAtATime(json)).readAll(kline -> {
+			ByteArrayOutputStream row = new ByteArrayOutputStream();
+			row.write(Long.toString(kline.getOpenTime()).getBytes(StandardCharsets.US_ASCII));
+			for (int field = KlineJsonReader.OPEN; field <= KlineJsonReader.VOLUME; field++) {
+				row.write(',');
+				kline.writeRaw(field, row);
+			}
+			rows.add(row.toString(StandardCharsets.US_ASCII));
+			if (kline.getOpenTime() == 1640995200000L) {
+				closes.add(kline.unscaled(KlineJsonReader.CLOSE));
+				scales.add(kline.scale(KlineJsonReader.CLOSE));
+			}
+			assertEquals(12, kline.getFieldCount());
+		});
+
+		assertEquals(2, count);
+		assertEquals("1640995200000,\"42051.25000000\",\"42235.64\",\"40634.36000000\",\"42051.25000000\",\"1207.11863000\"", rows.get(0));
+		assertEquals("1641081600000,\"47000\",\"48000.1\",\"46000.2\",\"8.1E-7\",\"0.5\"", rows.get(1));
+		assertEquals(List.of(4205125000000L), closes);
+		assertEquals(List.of(8), scales);
+	}
+
+	@Test
+	void testEmptyAndMalformed() throws IOException {
+		assertEquals(0, new KlineJsonReader(stream(" [ ] ")).readAll(kline -> fail()));
+		assertThrows(IOException.class, () -> new KlineJsonReader(stream("[[1,\"2\",\"3\",\"4\",\"5\",\"6\"],")).readAll(kline -> {}));
+		assertThrows(IOException.class, () -> new KlineJsonReader(stream("[[1,\"2\"]]")).readAll(kline -> {}));
+		assertThrows(IOException.class, () -> new KlineJsonReader(stream("{\"code\":-1121,\"msg\":\"Invalid symbol.\"}")).readAll(kline -> {}));
+	}
+
+	private InputStream stream(String json) {
+		return new ByteArrayInputStream(json.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	private InputStream oneByteAtATime(String json) {
+		InputStream in = stream(json);
+		return new InputStream() {
+			@Override
+			public int read() throws IOException {
+				return in.read();
+			}
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return in.read(b, off, Math.min(len, 1));
+			}
+		};
+	}
+}
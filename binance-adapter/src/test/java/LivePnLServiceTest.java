@@ -0,0 +1,115 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import binance.live.LivePnLService;
+import binance.live.LivePnLSnapshot;
+import binance.model.costbasis.CostBasisMethod;
+import binance.struct.BinanceHistoryRecord;
+import binance.struct.BinanceOperationType;
+
+class LivePnLServiceTest {
+
+	private static final LocalDateTime T0 = LocalDateTime.of(2024, 3, 1, 10, 15, 30);
+
+	@Test
+	void testRealizedPnLFromFills() {
+		LivePnLService service = new LivePnLService(0, CostBasisMethod.FIFO);
+		service.accept(Arrays.asList(
+				record(T0, BinanceOperationType.TRANSACTION_BUY, "BTC", "1"),
+				record(T0, BinanceOperationType.TRANSACTION_SPEND, "USDT", "-40000")));
+		LivePnLSnapshot beforeSell = service.accept(List.of(record(T0.plusSeconds(5), BinanceOperationType.TRANSFER_ACCOUNT, "USDT", "100")));
+		assertEquals(T0, beforeSell.getAsOf());
+		assertEquals(1, beforeSell.getTrades());
+		assertEquals(0, new BigDecimal("40000").compareTo(beforeSell.getPositions().get("BTC/USDT").getOpenCost()));
+
+		// le due gambe arrivano in ordine inverso e in richieste separate
+		service.accept(List.of(record(T0.plusSeconds(10), BinanceOperationType.TRANSACTION_REVENUE, "USDT", "25000")));
+		service.accept(List.of(record(T0.plusSeconds(10), BinanceOperationType.TRANSACTION_SOLD, "BTC", "-0.5")));
+		LivePnLSnapshot snapshot = service.flush();
+
+		LivePnLSnapshot.AssetPnL btc = snapshot.getPositions().get("BTC/USDT");
+		assertEquals(0, new BigDecimal("5000").compareTo(btc.getRealizedPnL()));
+		assertEquals(0, new BigDecimal("0.5").compareTo(btc.getOpenQuantity()));
+		assertEquals(0, new BigDecimal("20000").compareTo(btc.getOpenCost()));
+		assertEquals(1, btc.getOpenLots());
+		assertEquals(5, snapshot.getEvents());
+		assertEquals(2, snapshot.getTrades());
+		assertSame(snapshot, service.getSnapshot());
+		// le istantanee già pubblicate non cambiano
+		assertEquals(0, beforeSell.getPositions().get("BTC/USDT").getRealizedPnL().signum());
+	}
+
+	@Test
+	void testSellsMatchLotsOfTheirQuoteCoin() {
+		LivePnLService service = new LivePnLService(0, CostBasisMethod.LIFO);
+		service.accept(Arrays.asList(
+				record(T0, BinanceOperationType.TRANSACTION_SPEND, "USDT", "-40000"),
+				record(T0, BinanceOperationType.TRANSACTION_BUY, "BTC", "1")));
+		service.accept(Arrays.asList(
+				record(T0.plusSeconds(10), BinanceOperationType.TRANSACTION_SPEND, "USDC", "-50000"),
+				record(T0.plusSeconds(10), BinanceOperationType.TRANSACTION_BUY, "BTC", "1")));
+		// in LIFO la vendita per USDT prenderebbe il lotto comprato con USDC
+		service.accept(Arrays.asList(
+				record(T0.plusSeconds(20), BinanceOperationType.TRANSACTION_SOLD, "BTC", "-0.5"),
+				record(T0.plusSeconds(20), BinanceOperationType.TRANSACTION_REVENUE, "USDT", "25000")));
+		service.accept(Arrays.asList(
+				record(T0.plusSeconds(30), BinanceOperationType.TRANSACTION_SOLD, "BTC", "-0.5"),
+				record(T0.plusSeconds(30), BinanceOperationType.TRANSACTION_REVENUE, "USDC", "24000")));
+		LivePnLSnapshot snapshot = service.flush();
+
+		assertEquals(4, snapshot.getTrades());
+		LivePnLSnapshot.AssetPnL usdt = snapshot.getPositions().get("BTC/USDT");
+		assertEquals(0, new BigDecimal("5000").compareTo(usdt.getRealizedPnL()));
+		assertEquals(0, new BigDecimal("20000").compareTo(usdt.getOpenCost()));
+		LivePnLSnapshot.AssetPnL usdc = snapshot.getPositions().get("BTC/USDC");
+		assertEquals(0, new BigDecimal("-1000").compareTo(usdc.getRealizedPnL()));
+		assertEquals(0, new BigDecimal("25000").compareTo(usdc.getOpenCost()));
+		assertFalse(snapshot.getPositions().containsKey("BTC"));
+	}
+
+	@Test
+	void testRejectsLateBatch() {
+		LivePnLService service = new LivePnLService(2, CostBasisMethod.LIFO);
+		service.accept(List.of(record(T0, BinanceOperationType.TRANSACTION_BUY, "BTC", "1")));
+		service.accept(List.of(record(T0.plusSeconds(1), BinanceOperationType.TRANSACTION_SPEND, "USDT", "-40000")));
+		service.accept(List.of(record(T0.plusSeconds(3), BinanceOperationType.TRANSACTION_BUY, "ETH", "1")));
+		// la gamba di T0 aspetta il secondo dopo, ancora nel buffer
+		assertEquals(0, service.getSnapshot().getTrades());
+		assertEquals(0, service.getSnapshot().getUnmatchedLegs());
+
+		List<BinanceHistoryRecord> late = Arrays.asList(
+				record(T0.plusSeconds(4), BinanceOperationType.TRANSACTION_SPEND, "USDT", "-3000"),
+				record(T0, BinanceOperationType.TRANSACTION_BUY, "BTC", "1"));
+		assertThrows(IllegalArgumentException.class, () -> service.accept(late));
+		assertEquals(3, service.getSnapshot().getEvents());
+
+		LivePnLSnapshot flushed = service.flush();
+		assertEquals(1, flushed.getTrades());
+		assertEquals(1, flushed.getUnmatchedLegs());
+		assertThrows(IllegalArgumentException.class, () -> service.accept(List.of(record(T0.plusSeconds(3), BinanceOperationType.TRANSACTION_SPEND, "USDT", "-3000"))));
+	}
+
+	@Test
+	void testRejectsChangeOutOfFixedPointRange() {
+		LivePnLService service = new LivePnLService(2, CostBasisMethod.LIFO);
+		List<BinanceHistoryRecord> huge = Arrays.asList(
+				record(T0, BinanceOperationType.TRANSACTION_BUY, "BTC", "1"),
+				record(T0, BinanceOperationType.TRANSACTION_SPEND, "USDT", "-100000000000"));
+		assertThrows(IllegalArgumentException.class, () -> service.accept(huge));
+		assertEquals(0, service.getSnapshot().getEvents());
+
+		// il limite stesso è ancora accettato
+		service.accept(List.of(record(T0, BinanceOperationType.TRANSACTION_SPEND, "USDT", "-92233720368.54775807")));
+		assertEquals(1, service.getSnapshot().getEvents());
+	}
+
+	private static BinanceHistoryRecord record(LocalDateTime time, BinanceOperationType operation, String coin, String change) {
+		return new BinanceHistoryRecord("1", time, "Cross Margin", operation, coin, new BigDecimal(change), "");
+	}
+}
@@ -0,0 +1,103 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.batch.core.BatchStatus;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobParameters;
+import org.springframework.batch.core.Step;
+import org.springframework.batch.core.job.builder.JobBuilder;
+import org.springframework.batch.core.job.flow.Flow;
+import org.springframework.batch.core.launch.support.TaskExecutorJobLauncher;
+import org.springframework.batch.core.repository.JobRepository;
+import org.springframework.batch.core.repository.support.JobRepositoryFactoryBean;
+import org.springframework.batch.core.step.builder.StepBuilder;
+import org.springframework.batch.repeat.RepeatStatus;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import org.springframework.jdbc.support.JdbcTransactionManager;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import binance.job.BinanceHistoryJobConfig;
+import binance.job.steps.PlanPriceDemandStepConfig;
+import binance.prices.PriceDemand;
+
+class LoadFlowTest {
+
+	/**
+	 * The history read and the price read each wait for the other one: they complete only if they
+	 * run at the same time
+	 */
+	@Test
+	void testHistoryAndPricesRunTogether() throws Exception {
+		DataSource dataSource = new EmbeddedDatabaseBuilder().generateUniqueName(true).setType(EmbeddedDatabaseType.H2)
+				.addScript("/org/springframework/batch/core/schema-h2.sql").build();
+		JdbcTransactionManager transactionManager = new JdbcTransactionManager(dataSource);
+		JobRepositoryFactoryBean jobRepositoryFactory = new JobRepositoryFactoryBean();
+		jobRepositoryFactory.setDataSource(dataSource);
+		jobRepositoryFactory.setTransactionManager(transactionManager);
+		jobRepositoryFactory.afterPropertiesSet();
+		JobRepository jobRepository = jobRepositoryFactory.getObject();
+
+		CountDownLatch historyRead = new CountDownLatch(1);
+		CountDownLatch pricesRead = new CountDownLatch(1);
+		Step readHistoryStep = new StepBuilder("READ_HISTORY", jobRepository).tasklet((contribution, chunkContext) -> {
+			historyRead.countDown();
+			assertTrue(pricesRead.await(10, TimeUnit.SECONDS), "prices not read while reading the history");
+			return RepeatStatus.FINISHED;
+		}, transactionManager).build();
+		Step readPricesStep = new StepBuilder("READ_PRICES", jobRepository).tasklet((contribution, chunkContext) -> {
+			pricesRead.countDown();
+			assertTrue(historyRead.await(10, TimeUnit.SECONDS), "history not read while reading the prices");
+			return RepeatStatus.FINISHED;
+		}, transactionManager).build();
+
+		BinanceHistoryJobConfig jobConfig = new BinanceHistoryJobConfig();
+		Flow loadFlow = ReflectionTestUtils.invokeMethod(jobConfig, "loadFlow", readHistoryStep, noop("VALIDATE", jobRepository, transactionManager),
+				noop("AGGREGATE", jobRepository, transactionManager), noop("PLAN", jobRepository, transactionManager), readPricesStep);
+
+		TaskExecutorJobLauncher jobLauncher = new TaskExecutorJobLauncher();
+		jobLauncher.setJobRepository(jobRepository);
+		jobLauncher.afterPropertiesSet();
+		JobExecution execution = jobLauncher.run(new JobBuilder("LOAD_TEST_JOB", jobRepository).start(loadFlow).build().build(), new JobParameters());
+		assertEquals(BatchStatus.COMPLETED, execution.getStatus(), execution.getAllFailureExceptions().toString());
+		assertEquals(5, execution.getStepExecutions().size());
+	}
+
+	/**
+	 * The scan asks the day of every row, also when a loan moved 1 second earlier or a repayment
+	 * debited later falls on the next day
+	 */
+	@Test
+	void testScannedDemandCoversTheRows(@TempDir Path tempDir) throws Exception {
+		Path file = tempDir.resolve("BinanceTransactionHistory2023.csv");
+		Files.writeString(file, "\"User_ID\",\"UTC_Time\",\"Account\",\"Operation\",\"Coin\",\"Change\",\"Remark\"\n"
+				+ "\"1\",\"2023-03-01 00:00:00\",\"IsolatedMargin\",\"Isolated Margin Loan\",\"BTC\",\"0.1\",\"\"\n"
+				+ "\"1\",\"2023-03-05 23:59:59\",\"IsolatedMargin\",\"Isolated Margin Repayment\",\"BTC\",\"-0.1\",\"\"\n"
+				+ "\"1\",\"2023-03-05 23:59:59\",\"IsolatedMargin\",\"Isolated Margin Repayment\",\"EUR\",\"-10\",\"\"\n");
+		PriceDemand demand = PlanPriceDemandStepConfig.scanPriceDemand(new Resource[] { new FileSystemResource(file) }, false);
+
+		assertEquals(1, demand.getCoins().size());
+		assertTrue(demand.needs("BTC", LocalDate.of(2023, 2, 28).toEpochDay(), 0));
+		assertTrue(demand.needs("BTC", LocalDate.of(2023, 3, 1).toEpochDay(), 0));
+		assertTrue(demand.needs("BTC", LocalDate.of(2023, 3, 6).toEpochDay(), 0));
+		assertFalse(demand.needs("BTC", LocalDate.of(2023, 3, 3).toEpochDay(), 0));
+
+		PriceDemand equityDemand = PlanPriceDemandStepConfig.scanPriceDemand(new Resource[] { new FileSystemResource(file) }, true);
+		assertTrue(equityDemand.needs("BTC", LocalDate.of(2023, 3, 3).toEpochDay(), 0));
+	}
+
+	private static Step noop(String name, JobRepository jobRepository, JdbcTransactionManager transactionManager) {
+		return new StepBuilder(name, jobRepository).tasklet((contribution, chunkContext) -> RepeatStatus.FINISHED, transactionManager).build();
+	}
+}
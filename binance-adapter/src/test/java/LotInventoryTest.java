@@ -0,0 +1,149 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+import binance.model.CoinBalance;
+import binance.model.CoinBalance.CoinBalanceEntry;
+import binance.model.costbasis.CostBasisMethod;
+import binance.model.costbasis.LotInventory;
+import binance.model.costbasis.RingLotInventory;
+
+class LotInventoryTest {
+
+	private static final LocalDateTime T0 = LocalDateTime.of(2024, 5, 1, 12, 0);
+
+	@Test
+	void testNewestFirstAndRemoval() {
+		LotInventory<CoinBalanceEntry> lots = new RingLotInventory<CoinBalanceEntry>(false);
+		for (int i = 1; i <= 5; i++) {
+			lots.push(lot(i));
+		}
+		assertEquals(5, lots.size());
+		assertEquals(0, BigDecimal.valueOf(5).compareTo(lots.peek().getAmount()));
+
+		// rimozione in mezzo, poi in testa
+		Iterator<CoinBalanceEntry> iterator = lots.iterator();
+		iterator.next();
+		iterator.next();
+		iterator.remove();
+		assertEquals(List.of(5, 3, 2, 1), amounts(lots));
+		iterator = lots.iterator();
+		iterator.next();
+		iterator.remove();
+		assertEquals(List.of(3, 2, 1), amounts(lots));
+		assertEquals(0, BigDecimal.valueOf(3).compareTo(lots.peek().getAmount()));
+		assertThrows(IllegalStateException.class, iterator::remove);
+	}
+
+	@Test
+	void testPartialConsumptionKeepsUnitPrice() {
+		LotInventory<CoinBalanceEntry> lots = new RingLotInventory<CoinBalanceEntry>(false);
+		lots.push(new CoinBalanceEntry(T0, "BTC", new BigDecimal("0.5"), "USDT", new BigDecimal("30000")));
+		CoinBalanceEntry lot = lots.peek();
+		lot.consume(new BigDecimal("0.2"));
+
+		assertEquals(0, new BigDecimal("0.3").compareTo(lot.getAmount()));
+		assertEquals(0, new BigDecimal("18000").compareTo(lot.getCounterValueAmount()));
+		assertEquals(0, new BigDecimal("60000").compareTo(lot.getPriceOfIncomeCoin()));
+		assertEquals(1, lots.size());
+	}
+
+	@Test
+	void testGrowAndCompactKeepOrder() {
+		LotInventory<CoinBalanceEntry> lots = new RingLotInventory<CoinBalanceEntry>(false);
+		for (int i = 1; i <= 1000; i++) {
+			lots.push(lot(i));
+			if(i % 3 == 0) {
+				// consuma il secondo più recente lasciando un buco
+				Iterator<CoinBalanceEntry> iterator = lots.iterator();
+				iterator.next();
+				iterator.next();
+				iterator.remove();
+			}
+		}
+		List<Integer> amounts = amounts(lots);
+		assertEquals(lots.size(), amounts.size());
+		assertEquals(1000 - 333, amounts.size());
+		for (int i = 1; i < amounts.size(); i++) {
+			assertTrue(amounts.get(i - 1) > amounts.get(i));
+		}
+	}
+
+	@Test
+	void testConsumptionOrderPerMethod() {
+		// prezzi 100, 300, 200 per unità
+		assertEquals(List.of(1, 2, 3), amounts(inventory(CostBasisMethod.FIFO, 100, 300, 200)));
+		assertEquals(List.of(3, 2, 1), amounts(inventory(CostBasisMethod.LIFO, 100, 300, 200)));
+		assertEquals(List.of(2, 3, 1), amounts(inventory(CostBasisMethod.HIFO, 100, 300, 200)));
+
+		LotInventory<CoinBalanceEntry> average = inventory(CostBasisMethod.AVERAGE, 100, 300, 200);
+		assertEquals(1, average.size());
+		assertEquals(0, BigDecimal.valueOf(6).compareTo(average.peek().getAmount()));
+		assertEquals(0, BigDecimal.valueOf(1300).compareTo(average.peek().getCounterValueAmount()));
+	}
+
+	@Test
+	void testHighestCostInEurAcrossCounterValueCoins() {
+		CoinBalance coinBalance = new CoinBalance("BTC", CostBasisMethod.HIFO);
+		// BTC pagati in USDC (0.9 EUR), EUR e BNB (500 EUR): si confronta il costo in EUR, non il prezzo
+		coinBalance.addCoinBalanceEntry(T0, "BTC", BigDecimal.ONE, "USDC", new BigDecimal("50000"), new BigDecimal("0.9"));
+		coinBalance.addCoinBalanceEntry(T0.plusMinutes(1), "BTC", BigDecimal.ONE, "EUR", new BigDecimal("48000"), BigDecimal.ONE);
+		coinBalance.addCoinBalanceEntry(T0.plusMinutes(2), "BTC", BigDecimal.ONE, "BNB", new BigDecimal("100"), new BigDecimal("500"));
+		coinBalance.addCoinBalanceEntry(T0.plusMinutes(3), "BTC", BigDecimal.ONE, "USDC", new BigDecimal("60000"), new BigDecimal("0.9"));
+		// senza prezzo del BNB il lotto va in fondo
+		coinBalance.addCoinBalanceEntry(T0.plusMinutes(4), "BTC", BigDecimal.ONE, "BNB", new BigDecimal("200"), null);
+
+		List<String> order = coinBalance.getBalanceHistory().stream().map(lot -> lot.getCounterValueAmount().toPlainString() + " " + lot.getCounterValueCoin()).collect(Collectors.toList());
+		assertEquals(List.of("60000 USDC", "100 BNB", "48000 EUR", "50000 USDC", "200 BNB"), order);
+		assertEquals(0, new BigDecimal("50000").compareTo(coinBalance.getBalanceHistory().stream().skip(1).findFirst().get().getUnitCostInEur()));
+	}
+
+	@Test
+	void testRestoreGoesBackFirst() {
+		for (CostBasisMethod method : CostBasisMethod.values()) {
+			LotInventory<CoinBalanceEntry> lots = inventory(method, 100, 300, 200);
+			CoinBalanceEntry next = lots.poll();
+			next.consume(new BigDecimal("0.5"));
+			lots.restore(next);
+			assertSame(next, lots.peek(), method.name());
+		}
+	}
+
+	@Test
+	void testRunningTotalFollowsTake() {
+		CoinBalance coinBalance = new CoinBalance("BTC");
+		for (int i = 1; i <= 4; i++) {
+			coinBalance.addCoinBalanceEntry(T0.plusMinutes(i), "BTC", BigDecimal.valueOf(i), "USDT", BigDecimal.valueOf(i * 100L));
+		}
+		Iterator<CoinBalanceEntry> iterator = coinBalance.getBalanceHistory().iterator();
+		coinBalance.take(iterator, iterator.next(), BigDecimal.valueOf(4));
+		coinBalance.take(iterator, iterator.next(), new BigDecimal("1.5"));
+
+		assertEquals(0, new BigDecimal("4.5").compareTo(coinBalance.getAmount()));
+		assertEquals(3, coinBalance.getBalanceHistory().size());
+		coinBalance.checkAmount();
+	}
+
+	private LotInventory<CoinBalanceEntry> inventory(CostBasisMethod method, int... unitPrices) {
+		LotInventory<CoinBalanceEntry> lots = method.newInventory(CoinBalanceEntry.LOT_TYPE);
+		for (int i = 0; i < unitPrices.length; i++) {
+			int amount = i + 1;
+			lots.push(new CoinBalanceEntry(T0.plusMinutes(amount), "BTC", BigDecimal.valueOf(amount), "USDT", BigDecimal.valueOf((long) amount * unitPrices[i])));
+		}
+		return lots;
+	}
+
+	private List<Integer> amounts(LotInventory<CoinBalanceEntry> lots) {
+		return lots.stream().map(lot -> lot.getAmount().intValue()).collect(Collectors.toList());
+	}
+
+	private CoinBalanceEntry lot(int amount) {
+		return new CoinBalanceEntry(T0.plusMinutes(amount), "BTC", BigDecimal.valueOf(amount), "USDT", BigDecimal.valueOf(amount * 100L));
+	}
+}
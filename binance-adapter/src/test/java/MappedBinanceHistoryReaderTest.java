@@ -0,0 +1,72 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.batch.item.file.ResourceAwareItemReaderItemStream;
+import org.springframework.core.io.FileSystemResource;
+
+import binance.data.MappedBinanceHistoryReader;
+import binance.job.steps.ReadBinanceHistoryStepConfig;
+import binance.struct.BinanceHistoryRecord;
+import binance.struct.BinanceOperationType;
+
+class MappedBinanceHistoryReaderTest {
+
+	@Test
+	void testSameRecordsAsFlatFileReader() throws Exception {
+		File[] inputFiles = new File("input").listFiles((dir, name) -> name.endsWith(".csv"));
+		assertNotNull(inputFiles);
+		for (File inputFile : inputFiles) {
+			List<BinanceHistoryRecord> expected = readAll(new ReadBinanceHistoryStepConfig().csvReader(), inputFile);
+			List<BinanceHistoryRecord> actual = readAll(new ReadBinanceHistoryStepConfig().mappedCsvReader(), inputFile);
+			assertEquals(expected.size(), actual.size(), inputFile.getName());
+			for (int i = 0; i < expected.size(); i++) {
+				assertEquals(expected.get(i), actual.get(i), inputFile.getName() + " line " + (i + 2));
+			}
+		}
+	}
+
+	@Test
+	void testLayoutVariations(@TempDir Path tempDir) throws Exception {
+		Path csv = tempDir.resolve("history.csv");
+		Files.writeString(csv, "\"User_ID\",\"UTC_Time\",\"Account\",\"Operation\",\"Coin\",\"Change\",\"Remark\"\r\n"
+				+ "\"1\",\"2024-01-01 00:59:42\",\"Isolated Margin\",\"Isolated Margin Loan\",\"ATOM\",\"134.94071400\",\"\"\r\n"
+				+ "\r\n"
+				+ ",2023-11-19 22:13:33,Cross Margin,Transaction Sold,SOL,-8.1E-7,\n"
+				+ "\"1\",\"2024-02-29 23:59:59\",\"Spot\",\"Simple Earn Flexible Interest\",\"BTC\",\"0.123456789012345678901\",\"Binance Earn\"\n"
+				+ "\"1\",\"2024-03-01 10:00:00\",\"Spot\",\"Deposit\",\"BTC\",\"0.1\",\"from \"\"cold\"\", wallet\"\"\"\n");
+
+		List<BinanceHistoryRecord> records = readAll(new ReadBinanceHistoryStepConfig().mappedCsvReader(), csv.toFile());
+
+		assertEquals(4, records.size());
+		assertEquals(new BinanceHistoryRecord("1", LocalDateTime.of(2024, 1, 1, 0, 59, 42), "Isolated Margin", BinanceOperationType.ISOLATED_MARGIN_LOAN, "ATOM", new BigDecimal("134.94071400"), ""), records.get(0));
+		assertEquals(new BinanceHistoryRecord("", LocalDateTime.of(2023, 11, 19, 22, 13, 33), "Cross Margin", BinanceOperationType.TRANSACTION_SOLD, "SOL", new BigDecimal("-8.1E-7"), ""), records.get(1));
+		assertEquals(new BigDecimal("0.123456789012345678901"), records.get(2).getChange());
+		assertEquals("Binance Earn", records.get(2).getRemark());
+		assertEquals("from \"cold\", wallet\"", records.get(3).getRemark());
+	}
+
+	private List<BinanceHistoryRecord> readAll(ResourceAwareItemReaderItemStream<BinanceHistoryRecord> reader, File file) throws Exception {
+		List<BinanceHistoryRecord> records = new ArrayList<BinanceHistoryRecord>();
+		reader.setResource(new FileSystemResource(file));
+		reader.open(new ExecutionContext());
+		try {
+			BinanceHistoryRecord record;
+			while ((record = reader.read()) != null) {
+				records.add(record);
+			}
+		} finally {
+			reader.close();
+		}
+		return records;
+	}
+}
@@ -0,0 +1,162 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import binance.model.account.margin.IsolatedMarginAccount;
+import binance.model.costbasis.CostBasisMethod;
+import binance.prices.PriceTable;
+import binance.prices.PriceTableRecord;
+import binance.struct.BinanceHistoryRecord;
+import binance.struct.BinanceOperationType;
+import binance.struct.TataxRecord;
+import binance.struct.TataxRecordComparator;
+
+class MarginCheckpointsTest {
+
+	private static final LocalDateTime T2024 = LocalDateTime.of(2024, 12, 31, 22, 0);
+	private static final LocalDateTime T2025 = LocalDateTime.of(2025, 1, 1, 10, 0);
+
+	@TempDir
+	Path checkpoints;
+
+	@Test
+	void testRestoredRunMatchesFullRun() {
+		IsolatedMarginAccount full = account(null, "0.011");
+		full.computePlusMinus();
+		IsolatedMarginAccount first = account(checkpoints, "0.011");
+		first.computePlusMinus();
+		assertTrue(Files.exists(checkpoints.resolve("ISOLATED_MARGIN-2024.bin")));
+
+		IsolatedMarginAccount restored = account(checkpoints, "0.011");
+		restored.computePlusMinus();
+		assertEquals(rows(full.getTataxRecords()), rows(restored.getTataxRecords()));
+		assertEquals(rows(full.getProfitAndLosses()), rows(restored.getProfitAndLosses()));
+	}
+
+	/**
+	 * The lots saved keep what orders them, i.e. the EUR cost for HIFO
+	 */
+	@Test
+	void testRestoredRunMatchesFullRunForEveryCostBasisMethod() {
+		for (CostBasisMethod method : CostBasisMethod.values()) {
+			Path directory = checkpoints.resolve(method.name());
+			IsolatedMarginAccount full = account(null, "0.011", method);
+			full.computePlusMinus();
+			account(directory, "0.011", method).computePlusMinus();
+
+			IsolatedMarginAccount restored = account(directory, "0.011", method);
+			restored.computePlusMinus();
+			assertEquals(rows(full.getTataxRecords()), rows(restored.getTataxRecords()), method.name());
+			assertEquals(rows(full.getProfitAndLosses()), rows(restored.getProfitAndLosses()), method.name());
+		}
+	}
+
+	@Test
+	void testChangedHistoryInvalidatesCheckpoint() {
+		account(checkpoints, "0.011").computePlusMinus();
+
+		IsolatedMarginAccount full = account(null, "0.010");
+		full.computePlusMinus();
+		IsolatedMarginAccount changed = account(checkpoints, "0.010");
+		changed.computePlusMinus();
+		assertEquals(rows(full.getTataxRecords()), rows(changed.getTataxRecords()));
+		assertEquals(rows(full.getProfitAndLosses()), rows(changed.getProfitAndLosses()));
+	}
+
+	/**
+	 * The saved tatax records carry EUR values: new prices make the checkpoint stale
+	 */
+	@Test
+	void testChangedPricesInvalidateCheckpoint() {
+		account(checkpoints, "0.011").computePlusMinus();
+
+		IsolatedMarginAccount full = account(null, "0.011", CostBasisMethod.LIFO, 95000);
+		full.computePlusMinus();
+		IsolatedMarginAccount repriced = account(checkpoints, "0.011", CostBasisMethod.LIFO, 95000);
+		repriced.computePlusMinus();
+		IsolatedMarginAccount before = account(null, "0.011");
+		before.computePlusMinus();
+		assertNotEquals(rows(before.getTataxRecords()), rows(full.getTataxRecords()));
+		assertEquals(rows(full.getTataxRecords()), rows(repriced.getTataxRecords()));
+		assertEquals(rows(full.getProfitAndLosses()), rows(repriced.getProfitAndLosses()));
+	}
+
+	@Test
+	void testPricesFingerprintFollowsPricesAndFallback() {
+		PriceTable priceTable = new PriceTable();
+		priceTable.setPriceTableRecords(new ArrayList<PriceTableRecord>());
+		priceTable.addPriceTableRecord(price(T2024, "BTC", 90000));
+		String fingerprint = priceTable.getPricesFingerprint();
+		assertEquals(fingerprint, priceTable.getPricesFingerprint());
+		priceTable.setMaxFallbackDays(3);
+		assertNotEquals(fingerprint, priceTable.getPricesFingerprint());
+		priceTable.setMaxFallbackDays(0);
+		priceTable.addPriceTableRecord(price(T2025, "BTC", 91000));
+		priceTable.reload(priceTable.getPriceTableRecords());
+		assertNotEquals(fingerprint, priceTable.getPricesFingerprint());
+	}
+
+	private IsolatedMarginAccount account(Path checkpointDirectory, String bought2024) {
+		return account(checkpointDirectory, bought2024, CostBasisMethod.LIFO);
+	}
+
+	private IsolatedMarginAccount account(Path checkpointDirectory, String bought2024, CostBasisMethod costBasisMethod) {
+		return account(checkpointDirectory, bought2024, costBasisMethod, 90000);
+	}
+
+	private IsolatedMarginAccount account(Path checkpointDirectory, String bought2024, CostBasisMethod costBasisMethod, long btcPriceInEur) {
+		PriceTable priceTable = new PriceTable();
+		priceTable.setPriceTableRecords(new ArrayList<PriceTableRecord>());
+		for (LocalDateTime day : List.of(T2024, T2025)) {
+			priceTable.addPriceTableRecord(price(day, "BTC", btcPriceInEur));
+			priceTable.addPriceTableRecord(price(day, "USDT", 1));
+		}
+		IsolatedMarginAccount account = new IsolatedMarginAccount() {
+			@Override
+			public PriceTable getPriceTable() {
+				return priceTable;
+			}
+
+			@Override
+			protected Path getCheckpointDirectory() {
+				return checkpointDirectory;
+			}
+		};
+		ReflectionTestUtils.setField(account, "costBasisMethod", costBasisMethod);
+		// lotto comprato nel 2024 e rivenduto nel 2025
+		account.addRecord(record(T2024, BinanceOperationType.TRANSFER_ACCOUNT, "USDT", "1000"));
+		account.addRecord(record(T2024.plusMinutes(1), BinanceOperationType.TRANSACTION_SPEND, "USDT", "-1000"));
+		account.addRecord(record(T2024.plusMinutes(1), BinanceOperationType.TRANSACTION_BUY, "BTC", bought2024));
+		account.addRecord(record(T2025, BinanceOperationType.TRANSACTION_SOLD, "BTC", "-" + bought2024));
+		account.addRecord(record(T2025, BinanceOperationType.TRANSACTION_REVENUE, "USDT", "1100"));
+		account.addRecord(record(T2025.plusMinutes(1), BinanceOperationType.TRANSFER_ACCOUNT, "USDT", "-1100"));
+		return account;
+	}
+
+	private List<String> rows(List<TataxRecord> records) {
+		return records.stream().sorted(new TataxRecordComparator()).map(r -> Arrays.toString(r.toCsvRecord())).collect(Collectors.toList());
+	}
+
+	private BinanceHistoryRecord record(LocalDateTime time, BinanceOperationType operation, String coin, String change) {
+		return new BinanceHistoryRecord("", time, "Isolated Margin", operation, coin, new BigDecimal(change), "");
+	}
+
+	private PriceTableRecord price(LocalDateTime day, String symbol, long priceInEur) {
+		PriceTableRecord record = new PriceTableRecord();
+		record.setSymbol(symbol);
+		record.setTime(day.toLocalDate().atStartOfDay());
+		record.setPriceInEur(BigDecimal.valueOf(priceInEur));
+		return record;
+	}
+}
@@ -0,0 +1,48 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+
+import org.junit.jupiter.api.Test;
+
+import binance.struct.BinanceHistoryRecord;
+import binance.struct.BinanceOperationType;
+import binance.struct.Operation;
+
+class OperationTest {
+
+	private static final LocalDateTime T0 = LocalDateTime.of(2024, 12, 31, 16, 48, 41);
+
+	@Test
+	void testCoalescePartialFills() {
+		Operation first = swap(T0, "USDC", "-500", "BTC", "0.005");
+		Operation second = swap(T0.plusSeconds(3), "USDC", "-1500", "BTC", "0.015");
+		Operation late = swap(T0.plusSeconds(6), "USDC", "-100", "BTC", "0.001");
+		Operation otherPair = swap(T0.plusSeconds(1), "USDC", "-100", "ETH", "0.03");
+
+		Operation trade = new Operation(first);
+		assertTrue(trade.canCoalesce(second, 5));
+		assertFalse(trade.canCoalesce(late, 5));
+		assertFalse(trade.canCoalesce(otherPair, 5));
+		trade.addLeg(second);
+
+		assertEquals(T0, trade.getUtcTime());
+		assertEquals(new BigDecimal("-2000"), trade.getAmountSold());
+		assertEquals(new BigDecimal("0.020"), trade.getAmountBought());
+		assertEquals(0, new BigDecimal("0.00001").compareTo(trade.getPriceOfSoldCoin()));
+		assertEquals(2, trade.getLegs().size());
+		assertSame(second, trade.getLegs().get(1));
+		assertTrue(first.getLegs().isEmpty());
+		assertThrows(IllegalStateException.class, () -> first.addLeg(late));
+	}
+
+	private Operation swap(LocalDateTime time, String coinSold, String amountSold, String coinBought, String amountBought) {
+		Operation operation = new Operation(new BinanceHistoryRecord("", time, "Isolated Margin", BinanceOperationType.TRANSACTION_SPEND, coinSold, new BigDecimal(amountSold), ""));
+		operation.setUtcTime(time);
+		operation.setCoinSold(coinSold);
+		operation.setAmountSold(new BigDecimal(amountSold));
+		operation.setCoinBought(coinBought);
+		operation.setAmountBought(new BigDecimal(amountBought));
+		return operation;
+	}
+}
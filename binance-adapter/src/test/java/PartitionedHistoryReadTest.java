@@ -0,0 +1,130 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import javax.sql.DataSource;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.batch.core.BatchStatus;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobParameters;
+import org.springframework.batch.core.job.builder.JobBuilder;
+import org.springframework.batch.core.launch.support.TaskExecutorJobLauncher;
+import org.springframework.batch.core.repository.JobRepository;
+import org.springframework.batch.core.repository.support.JobRepositoryFactoryBean;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.batch.item.file.MultiResourceItemReader;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import org.springframework.jdbc.support.JdbcTransactionManager;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import binance.job.steps.ReadBinanceHistoryStepConfig;
+import binance.model.BinanceHistoryRecordList;
+import binance.struct.BinanceHistoryRecord;
+import binance.struct.BinanceOperationType;
+
+class PartitionedHistoryReadTest {
+
+	private static final String HEADER = "\"User_ID\",\"UTC_Time\",\"Account\",\"Operation\",\"Coin\",\"Change\",\"Remark\"\n";
+
+	/**
+	 * One partition per yearly file, merged in file order: the same list as the sequential read,
+	 * with a Simple Earn subscription of one file redeemed in the next one
+	 */
+	@Test
+	void testSameRecordsAsSequentialRead(@TempDir Path tempDir) throws Exception {
+		Resource[] inputFiles = {
+				csv(tempDir, "BinanceTransactionHistory2024.csv",
+						"\"1\",\"2024-02-01 09:00:00\",\"Spot\",\"Simple Earn Flexible Redemption\",\"ETH\",\"2.5\",\"\"\n"
+						+ "\"1\",\"2024-02-01 09:30:00\",\"Spot\",\"Transaction Spend\",\"ETH\",\"-1\",\"\"\n"
+						+ "\"1\",\"2024-02-01 09:30:00\",\"Spot\",\"Transaction Buy\",\"BTC\",\"0.05\",\"\"\n"),
+				csv(tempDir, "BinanceTransactionHistory2022.csv",
+						"\"1\",\"2022-03-01 10:00:00\",\"Spot\",\"Deposit\",\"BTC\",\"1.5\",\"\"\n"
+						+ "\"1\",\"2022-03-02 10:00:00\",\"Spot\",\"Simple Earn Flexible Subscription\",\"BTC\",\"-1\",\"\"\n"
+						+ "\"1\",\"2022-03-03 10:00:00\",\"Spot\",\"Simple Earn Flexible Interest\",\"BTC\",\"0.0001\",\"\"\n"),
+				csv(tempDir, "BinanceTransactionHistory2023.csv",
+						"\"1\",\"2023-01-10 08:00:00\",\"Spot\",\"Simple Earn Flexible Redemption\",\"BTC\",\"0.4\",\"\"\n"
+						+ "\"1\",\"2023-01-11 08:00:00\",\"Spot\",\"Simple Earn Flexible Redemption\",\"BTC\",\"0.6002\",\"\"\n"
+						+ "\"1\",\"2023-05-01 12:00:00\",\"Spot\",\"Deposit\",\"ETH\",\"2\",\"\"\n"
+						+ "\"1\",\"2023-05-02 12:00:00\",\"Spot\",\"Simple Earn Locked Subscription\",\"ETH\",\"-2\",\"\"\n") };
+
+		BinanceHistoryRecordList sequential = readSequentially(inputFiles);
+		BinanceHistoryRecordList partitioned = readPartitioned(inputFiles);
+
+		assertEquals(sequential, partitioned);
+		// il rimborso del 2023 chiude la sottoscrizione del 2022, quello del 2024 quella del 2023
+		assertEquals(7, partitioned.size());
+		assertEquals(BinanceOperationType.SIMPLE_EARN_FLEXIBLE_INTEREST, partitioned.get(2).getOperation());
+		assertEquals(0, new BigDecimal("0.0002").compareTo(partitioned.get(2).getChange()));
+		assertEquals(BinanceOperationType.SIMPLE_EARN_FLEXIBLE_INTEREST, partitioned.get(4).getOperation());
+		assertEquals(0, new BigDecimal("0.5").compareTo(partitioned.get(4).getChange()));
+	}
+
+	private static Resource csv(Path dir, String name, String lines) throws Exception {
+		Path file = dir.resolve(name);
+		Files.writeString(file, HEADER + lines);
+		return new FileSystemResource(file);
+	}
+
+	private static BinanceHistoryRecordList readSequentially(Resource[] inputFiles) throws Exception {
+		BinanceHistoryRecordList records = new BinanceHistoryRecordList();
+		ReadBinanceHistoryStepConfig readStepConfig = readStepConfig(records, inputFiles, false, null);
+		MultiResourceItemReader<BinanceHistoryRecord> reader = readStepConfig.multiFileReader();
+		reader.open(new ExecutionContext());
+		try {
+			BinanceHistoryRecord record;
+			while ((record = reader.read()) != null) {
+				record = readStepConfig.processRecord(record);
+				if(record != null) {
+					records.add(record);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return records;
+	}
+
+	/**
+	 * Runs READ_HISTORY_STEP with the partitions on a job repository in an embedded database
+	 */
+	private static BinanceHistoryRecordList readPartitioned(Resource[] inputFiles) throws Exception {
+		DataSource dataSource = new EmbeddedDatabaseBuilder().generateUniqueName(true).setType(EmbeddedDatabaseType.H2)
+				.addScript("/org/springframework/batch/core/schema-h2.sql").build();
+		JdbcTransactionManager transactionManager = new JdbcTransactionManager(dataSource);
+		JobRepositoryFactoryBean jobRepositoryFactory = new JobRepositoryFactoryBean();
+		jobRepositoryFactory.setDataSource(dataSource);
+		jobRepositoryFactory.setTransactionManager(transactionManager);
+		jobRepositoryFactory.afterPropertiesSet();
+		JobRepository jobRepository = jobRepositoryFactory.getObject();
+
+		BinanceHistoryRecordList records = new BinanceHistoryRecordList();
+		ReadBinanceHistoryStepConfig readStepConfig = readStepConfig(records, inputFiles, true, jobRepository);
+		ReflectionTestUtils.setField(readStepConfig, "platformTransactionManager", transactionManager);
+
+		TaskExecutorJobLauncher jobLauncher = new TaskExecutorJobLauncher();
+		jobLauncher.setJobRepository(jobRepository);
+		jobLauncher.afterPropertiesSet();
+		JobExecution execution = jobLauncher.run(new JobBuilder("READ_HISTORY_TEST_JOB", jobRepository)
+				.start(readStepConfig.getReadStepBinanceHistory()).build(), new JobParameters());
+		assertEquals(BatchStatus.COMPLETED, execution.getStatus(), execution.getAllFailureExceptions().toString());
+		return records;
+	}
+
+	private static ReadBinanceHistoryStepConfig readStepConfig(BinanceHistoryRecordList records, Resource[] inputFiles, boolean partitioned, JobRepository jobRepository) {
+		ReadBinanceHistoryStepConfig readStepConfig = new ReadBinanceHistoryStepConfig();
+		ReflectionTestUtils.setField(readStepConfig, "binanceHistoryRecordList", records);
+		ReflectionTestUtils.setField(readStepConfig, "inputFiles", inputFiles);
+		ReflectionTestUtils.setField(readStepConfig, "historyReader", "mapped");
+		ReflectionTestUtils.setField(readStepConfig, "partitioned", partitioned);
+		ReflectionTestUtils.setField(readStepConfig, "jobRepository", jobRepository);
+		ReflectionTestUtils.invokeMethod(readStepConfig, "init");
+		return readStepConfig;
+	}
+}
@@ -0,0 +1,83 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+
+import org.junit.jupiter.api.Test;
+
+import binance.struct.BinanceHistoryRecord;
+import binance.struct.BinanceOperationType;
+import binance.struct.Operation;
+import binance.struct.Position;
+import binance.struct.PositionRegistry;
+
+class PositionTest {
+
+	private static final LocalDateTime T0 = LocalDateTime.of(2024, 5, 1, 12, 0);
+
+	@Test
+	void testClosesWhenTransfersBalance() {
+		Position position = openPosition();
+		position.addRepay(record(T0, BinanceOperationType.ISOLATED_MARGIN_REPAYMENT, "USDT", "-500"));
+		assertEquals(Position.ADD_TRANSFER_RESULT.OK, position.addTransferAndCheckClose(record(T0, BinanceOperationType.TRANSFER_ACCOUNT, "USDT", "-300")));
+		assertEquals(Position.ADD_TRANSFER_RESULT.OK_AND_CLOSE, position.addTransferAndCheckClose(record(T0, BinanceOperationType.TRANSFER_ACCOUNT, "USDT", "-100")));
+	}
+
+	@Test
+	void testInterestPaidOffsetsTheTransfers() {
+		Position position = openPosition();
+		// rimborso di 505 su 500 presi in prestito: 5 USDT di interessi
+		position.addRepay(record(T0, BinanceOperationType.ISOLATED_MARGIN_REPAYMENT, "USDT", "-505"));
+		// trasferimenti in pari ma gli interessi non sono ancora coperti
+		assertEquals(Position.ADD_TRANSFER_RESULT.OK, position.addTransferAndCheckClose(record(T0, BinanceOperationType.TRANSFER_ACCOUNT, "USDT", "-400")));
+		assertEquals(Position.ADD_TRANSFER_RESULT.OK_AND_CLOSE, position.addTransferAndCheckClose(record(T0, BinanceOperationType.TRANSFER_ACCOUNT, "USDT", "5")));
+	}
+
+	/**
+	 * A swap of another pair is looked up by pair in the registry; a takeover is read as long, so the
+	 * one that gave BTC for USDT finds BTC/USDT through the reversed pair. A closed position is not found.
+	 */
+	@Test
+	void testRegistryFindsTheOpenPositionOfThePair() {
+		PositionRegistry registry = new PositionRegistry();
+		Position btc = openPosition();
+		registry.register(btc);
+		Position eth = new Position(swap(BinanceOperationType.TRANSACTION_SOLD, "ETH", "-0.2", "USDT", "500"));
+		registry.register(eth);
+		assertEquals("ETH/USDT", eth.getPair());
+
+		Operation ethBuy = swap(BinanceOperationType.TRANSACTION_SPEND, "USDT", "-480", "ETH", "0.2");
+		assertEquals(Position.ADD_OPERATION_RESULT.LOOK_FOR_COMPATIBLE_POSITION, btc.addOperation(ethBuy, false));
+		assertSame(eth, registry.findCompatible(ethBuy));
+		assertSame(btc, registry.findCompatible(swap(BinanceOperationType.CROSS_MARGIN_LIQUIDATION_SMALL_ASSET_TAKEOVER, "BTC", "-0.0001", "USDT", "9")));
+
+		registry.close(eth);
+		assertTrue(eth.isClosed());
+		assertNull(registry.findCompatible(ethBuy));
+	}
+
+	/**
+	 * 400 USDT transferred in and 500 borrowed to buy BTC
+	 */
+	private Position openPosition() {
+		Position position = new Position(record(T0, BinanceOperationType.ISOLATED_MARGIN_LOAN, "USDT", "500"));
+		position.addLoan(record(T0, BinanceOperationType.ISOLATED_MARGIN_LOAN, "USDT", "500"));
+		assertEquals(Position.ADD_OPERATION_RESULT.OK, position.addOperation(swap(BinanceOperationType.TRANSACTION_SPEND, "USDT", "-900", "BTC", "0.01"), false));
+		assertEquals(Position.ADD_TRANSFER_RESULT.OK, position.addTransferAndCheckClose(record(T0, BinanceOperationType.TRANSFER_ACCOUNT, "USDT", "400")));
+		return position;
+	}
+
+	private Operation swap(BinanceOperationType side, String coinSold, String amountSold, String coinBought, String amountBought) {
+		Operation op = new Operation(record(T0, side, coinSold, amountSold));
+		op.setUtcTime(T0);
+		op.setCoinSold(coinSold);
+		op.setAmountSold(new BigDecimal(amountSold));
+		op.setCoinBought(coinBought);
+		op.setAmountBought(new BigDecimal(amountBought));
+		return op;
+	}
+
+	private BinanceHistoryRecord record(LocalDateTime time, BinanceOperationType operation, String coin, String change) {
+		return new BinanceHistoryRecord("", time, "Isolated Margin", operation, coin, new BigDecimal(change), "");
+	}
+}
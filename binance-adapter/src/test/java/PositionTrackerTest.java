@@ -0,0 +1,93 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import binance.model.account.margin.PositionTracker;
+import binance.model.costbasis.CostBasisMethod;
+
+class PositionTrackerTest {
+
+	@Test
+	void testExactFixedPoint() {
+		PositionTracker tracker = new PositionTracker("BTC");
+		for (int i = 0; i < 3; i++) {
+			tracker.buy(fixed(0.1), fixed(0.1), 0, "USDT");
+		}
+		tracker.sell(fixed(0.3), fixed(0.2), 0);
+		// in double 0.3 * 0.2 - 3 * (0.1 * 0.1) non fa 0.03
+		assertEquals(fixed(0.03), tracker.getRealizedPnLFixed());
+		assertEquals(0, tracker.getOpenLots());
+	}
+
+	@Test
+	void testPartialLotKeepsCostAndFee() {
+		List<long[]> matches = new ArrayList<long[]>();
+		PositionTracker tracker = new PositionTracker("BTC", CostBasisMethod.LIFO, (asset, quantity, pnl, fees) -> matches.add(new long[] {quantity, pnl, fees}));
+		tracker.buy(fixed(1), fixed(100), fixed(1), "USDT");
+		tracker.buy(fixed(1), fixed(200), fixed(2), "USDT");
+		tracker.sell(fixed(1.5), fixed(300), fixed(3));
+
+		assertEquals(2, matches.size());
+		assertArrayEquals(new long[] {fixed(1), fixed(96), fixed(4)}, matches.get(0));
+		assertArrayEquals(new long[] {fixed(0.5), fixed(98.5), fixed(1.5)}, matches.get(1));
+		tracker.sell(fixed(0.5), fixed(100), 0);
+		assertEquals(fixed(194), tracker.getRealizedPnLFixed());
+
+		tracker.sell(fixed(0.25), fixed(100), 0);
+		assertEquals(fixed(0.25), tracker.getUnmatchedQuantity());
+	}
+
+	@Test
+	void testConsumptionOrderPerMethod() {
+		assertEquals(fixed(200), firstMatchPnL(CostBasisMethod.FIFO));
+		assertEquals(fixed(100), firstMatchPnL(CostBasisMethod.LIFO));
+		assertEquals(fixed(-300), firstMatchPnL(CostBasisMethod.HIFO));
+		assertEquals(fixed(0), firstMatchPnL(CostBasisMethod.AVERAGE));
+	}
+
+	@Test
+	void testLargeAmountsDoNotOverflow() {
+		PositionTracker tracker = new PositionTracker("BTC");
+		tracker.buy(fixed(1000), fixed(60000), fixed(60), "USDT");
+		tracker.sell(fixed(400), fixed(70000), 0);
+		assertEquals(fixed(4000000 - 24), tracker.getRealizedPnLFixed());
+	}
+
+	@Test
+	void testMulDivMatchesBigInteger() {
+		Random random = new Random(11);
+		for (int i = 0; i < 100_000; i++) {
+			long a = random.nextLong() >>> (1 + random.nextInt(63));
+			long b = random.nextLong() >>> (1 + random.nextInt(63));
+			long c = Math.max(1, random.nextLong() >>> (1 + random.nextInt(63)));
+			BigInteger[] division = BigInteger.valueOf(a).multiply(BigInteger.valueOf(b)).divideAndRemainder(BigInteger.valueOf(c));
+			BigInteger expected = division[1].shiftLeft(1).compareTo(BigInteger.valueOf(c)) >= 0 ? division[0].add(BigInteger.ONE) : division[0];
+			if(expected.bitLength() < 63) {
+				assertEquals(expected.longValueExact(), PositionTracker.mulDiv(a, b, c), a + " * " + b + " / " + c);
+			} else if(division[0].bitLength() >= 64) {
+				assertThrows(ArithmeticException.class, () -> PositionTracker.mulDiv(a, b, c));
+			}
+		}
+	}
+
+	/**
+	 * Lots at 100, 600 and 200 (average 300), sale of one unit at 300
+	 */
+	private long firstMatchPnL(CostBasisMethod method) {
+		PositionTracker tracker = new PositionTracker("ETH", method);
+		tracker.buy(fixed(1), fixed(100), 0, "USDT");
+		tracker.buy(fixed(1), fixed(600), 0, "USDT");
+		tracker.buy(fixed(1), fixed(200), 0, "USDT");
+		tracker.sell(fixed(1), fixed(300), 0);
+		return tracker.getRealizedPnLFixed();
+	}
+
+	private long fixed(double value) {
+		return PositionTracker.toFixed(value);
+	}
+}
@@ -0,0 +1,92 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import binance.data.PriceArchiveConverter;
+import binance.prices.PriceArchive;
+import binance.prices.PriceInterval;
+import binance.prices.PriceTable;
+import binance.prices.PriceTableRecord;
+
+class PriceArchiveTest {
+
+	@Test
+	void testMinuteArchiveAcrossPages(@TempDir Path tempDir) {
+		LocalDateTime start = LocalDateTime.of(2024, 1, 1, 0, 0);
+		List<PriceTableRecord> records = new ArrayList<PriceTableRecord>();
+		for (int i = 0; i < 5000; i++) {
+			if(i == 3000) continue; // candela mancante
+			records.add(record("BTC", start.plusMinutes(i), BigDecimal.valueOf(40000 + i).movePointLeft(2)));
+		}
+		Path file = tempDir.resolve(PriceArchive.archiveFileName("BTCEUR.1m.csv.prices"));
+		PriceArchive.write(file, "BTC", PriceInterval.ONE_MINUTE, records);
+
+		PriceTable priceTable = priceTable(PriceArchive.open(file, 2));
+
+		assertEquals(new BigDecimal("400.00"), priceTable.getPrice("BTC", start));
+		assertEquals(new BigDecimal("410.24"), priceTable.getPrice("BTC", start.plusMinutes(1024).plusSeconds(59)));
+		assertEquals(new BigDecimal("449.99"), priceTable.getPrice("BTC", start.plusMinutes(4999)));
+		assertEquals(new BigDecimal("400.01"), priceTable.getPrice("BTC", start.plusMinutes(1)));
+		assertNull(priceTable.findPrice("BTC", start.plusMinutes(3000)));
+		assertNull(priceTable.findPrice("BTC", start.minusSeconds(1)));
+		assertNull(priceTable.findPrice("BTC", start.plusMinutes(5000)));
+		assertNull(priceTable.findPrice("ETH", start));
+	}
+
+	@Test
+	void testDailyArchiveFallback(@TempDir Path tempDir) {
+		Path file = tempDir.resolve("ETHEUR" + PriceArchive.EXTENSION);
+		PriceArchive.write(file, "ETH", PriceInterval.ONE_DAY, List.of(
+				record("ETH", LocalDateTime.of(2024, 1, 1, 0, 0), new BigDecimal("2000.5")),
+				record("ETH", LocalDateTime.of(2024, 1, 4, 0, 0), new BigDecimal("2100.25"))));
+
+		PriceTable priceTable = priceTable(PriceArchive.open(file, 64));
+		assertEquals(0, new BigDecimal("2000.5").compareTo(priceTable.getPrice("ETH", LocalDateTime.of(2024, 1, 1, 23, 59))));
+		assertNull(priceTable.findPrice("ETH", LocalDateTime.of(2024, 1, 2, 0, 0)));
+
+		priceTable.setMaxFallbackDays(1);
+		assertEquals(0, new BigDecimal("2000.5").compareTo(priceTable.getPrice("ETH", LocalDateTime.of(2024, 1, 2, 12, 0))));
+		assertNull(priceTable.findPrice("ETH", LocalDateTime.of(2024, 1, 3, 0, 0)));
+	}
+
+	@Test
+	void testConvertedCsvMatchesLoadedPrices(@TempDir Path tempDir) throws Exception {
+		Path csv = tempDir.resolve("USDTEUR.1h.csv.prices");
+		Files.writeString(csv, "Symbol,Date,Open,High,Low,Close,Volume\n"
+				+ "USDT,2024-01-01 00:00,1.08,1.09,1.07,1.08,1000\n"
+				+ "USDT,2024-01-01 01:00,1.08,1.09,1.07,1.0850,1000\n");
+		Path archive = tempDir.resolve(PriceArchive.archiveFileName(csv.getFileName().toString()));
+
+		assertEquals(2, PriceArchiveConverter.convert(csv.toFile(), archive));
+
+		PriceTable priceTable = priceTable(PriceArchive.open(archive, 64));
+		// USDT/USDC are inverted by the loading step
+		assertEquals(0, new BigDecimal("0.9259259259259259").compareTo(priceTable.getPrice("USDT", LocalDateTime.of(2024, 1, 1, 0, 30))));
+		assertEquals(0, new BigDecimal("0.9216589861751152").compareTo(priceTable.getPrice("USDT", LocalDateTime.of(2024, 1, 1, 1, 59))));
+		assertNull(priceTable.findPrice("USDT", LocalDateTime.of(2024, 1, 1, 2, 0)));
+	}
+
+	private PriceTable priceTable(PriceArchive archive) {
+		PriceTable priceTable = new PriceTable();
+		priceTable.setPriceTableRecords(new ArrayList<PriceTableRecord>());
+		priceTable.addPriceArchive(archive);
+		priceTable.publishSnapshot();
+		return priceTable;
+	}
+
+	private PriceTableRecord record(String symbol, LocalDateTime time, BigDecimal priceInEur) {
+		PriceTableRecord record = new PriceTableRecord();
+		record.setSymbol(symbol);
+		record.setTime(time);
+		record.setPriceInEur(priceInEur);
+		return record;
+	}
+}
@@ -0,0 +1,119 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+
+import org.junit.jupiter.api.Test;
+
+import binance.job.steps.ReadPriceTableStepConfig;
+import binance.prices.PriceDemand;
+import binance.prices.PriceInterval;
+import binance.prices.PriceTable;
+import binance.prices.PriceTableRecord;
+
+class PriceTableTest {
+
+	@Test
+	void testLookupByDay() {
+		PriceTable priceTable = priceTable(0);
+
+		assertEquals(0, BigDecimal.valueOf(40000).compareTo(priceTable.getPrice("BTC", LocalDateTime.of(2024, 1, 1, 0, 1))));
+		assertEquals(0, BigDecimal.valueOf(40000).compareTo(priceTable.getPrice("BTC", LocalDateTime.of(2024, 1, 1, 23, 59))));
+		assertEquals(0, BigDecimal.valueOf(42000).compareTo(priceTable.getPrice("BTC", LocalDateTime.of(2024, 1, 4, 12, 0))));
+		assertEquals(0, BigDecimal.valueOf(2000).compareTo(priceTable.getPrice("ETH", LocalDateTime.of(2024, 1, 1, 12, 0))));
+	}
+
+	@Test
+	void testMissingPrice() {
+		PriceTable priceTable = priceTable(0);
+
+		assertNull(priceTable.findPrice("BTC", LocalDateTime.of(2024, 1, 2, 12, 0)));
+		assertNull(priceTable.findPrice("BTC", LocalDateTime.of(2023, 12, 31, 12, 0)));
+		assertNull(priceTable.findPrice("SOL", LocalDateTime.of(2024, 1, 1, 12, 0)));
+		assertFalse(priceTable.hasPrice("BTC", LocalDateTime.of(2024, 1, 5, 12, 0)));
+		assertThrows(IllegalStateException.class, () -> priceTable.getPrice("BTC", LocalDateTime.of(2024, 1, 2, 12, 0)));
+	}
+
+	@Test
+	void testFallbackToPreviousClose() {
+		PriceTable priceTable = priceTable(2);
+
+		assertEquals(0, BigDecimal.valueOf(40000).compareTo(priceTable.getPrice("BTC", LocalDateTime.of(2024, 1, 2, 12, 0))));
+		assertEquals(0, BigDecimal.valueOf(40000).compareTo(priceTable.getPrice("BTC", LocalDateTime.of(2024, 1, 3, 12, 0))));
+		assertEquals(0, BigDecimal.valueOf(42000).compareTo(priceTable.getPrice("BTC", LocalDateTime.of(2024, 1, 6, 12, 0))));
+		assertNull(priceTable.findPrice("BTC", LocalDateTime.of(2024, 1, 7, 12, 0)));
+		assertNull(priceTable.findPrice("BTC", LocalDateTime.of(2023, 12, 31, 12, 0)));
+	}
+
+	@Test
+	void testIntradayLookup() {
+		PriceTable priceTable = priceTable(0);
+		PriceTableRecord hour = record("BTC", LocalDateTime.of(2024, 1, 1, 10, 0), 40100);
+		hour.setInterval(PriceInterval.ONE_HOUR);
+		PriceTableRecord minute = record("BTC", LocalDateTime.of(2024, 1, 1, 10, 30), 40150);
+		minute.setInterval(PriceInterval.ONE_MINUTE);
+		priceTable.addPriceTableRecord(minute);
+		priceTable.addPriceTableRecord(hour);
+
+		assertEquals(0, BigDecimal.valueOf(40150).compareTo(priceTable.getPrice("BTC", LocalDateTime.of(2024, 1, 1, 10, 30, 59))));
+		assertEquals(0, BigDecimal.valueOf(40100).compareTo(priceTable.getPrice("BTC", LocalDateTime.of(2024, 1, 1, 10, 31))));
+		assertEquals(0, BigDecimal.valueOf(40100).compareTo(priceTable.getPrice("BTC", LocalDateTime.of(2024, 1, 1, 10, 0))));
+		assertEquals(0, BigDecimal.valueOf(40000).compareTo(priceTable.getPrice("BTC", LocalDateTime.of(2024, 1, 1, 11, 0))));
+		assertEquals(0, BigDecimal.valueOf(40000).compareTo(priceTable.getPrice("BTC", LocalDateTime.of(2024, 1, 1, 9, 59))));
+	}
+
+	@Test
+	void testIntervalFromFileName() {
+		assertEquals(PriceInterval.ONE_DAY, PriceInterval.fromFileName("BTCEUR.csv.prices"));
+		assertEquals(PriceInterval.ONE_HOUR, PriceInterval.fromFileName("BTCEUR.1h.csv.prices"));
+		assertEquals(PriceInterval.ONE_MINUTE, PriceInterval.fromFileName(PriceInterval.ONE_MINUTE.toFileName("BTCEUR")));
+	}
+
+	@Test
+	void testPriceDemand() {
+		PriceDemand demand = new PriceDemand();
+		demand.add("BTC", LocalDateTime.of(2024, 1, 4, 12, 0));
+		demand.add("BTC", LocalDateTime.of(2024, 1, 10, 23, 59, 59));
+		// un rimborso a 3 secondi dalla mezzanotte viene prezzato il giorno dopo
+		demand.add("ETH", LocalDateTime.of(2024, 1, 10, 23, 59, 57));
+		long day = LocalDate.of(2024, 1, 1).toEpochDay();
+
+		assertEquals(5, demand.getCoinDays());
+		assertTrue(demand.needs("ETH", day + 10, 0));
+		assertFalse(demand.needsCoin("SOL"));
+		assertTrue(demand.needs("BTC", day + 3, 0));
+		assertFalse(demand.needs("BTC", day + 2, 0));
+		assertTrue(demand.needs("BTC", day + 2, 1));
+		assertTrue(demand.needs("BTC", day + 10, 0));
+		assertFalse(demand.needs("BTC", day + 11, 5));
+		assertEquals(LocalDate.of(2024, 1, 11), demand.getLastDay("BTC"));
+		assertEquals("BTC", PriceDemand.coinOfFile("BTCEUR.1h.csv.prices"));
+		assertEquals("USDT", PriceDemand.coinOfFile("EURUSDT.csv.prices"));
+		assertEquals("EURI", PriceDemand.coinOfFile("EURIEUR.csv.prices"));
+		assertTrue(ReadPriceTableStepConfig.isInversePair("USDT"));
+		assertFalse(ReadPriceTableStepConfig.isInversePair("EURI"));
+		assertFalse(ReadPriceTableStepConfig.isInversePair("BTC"));
+		assertEquals("EURUSDC", PriceDemand.marketOf("USDC"));
+		assertEquals("SOLEUR", PriceDemand.marketOf("SOL"));
+	}
+
+	private PriceTable priceTable(int maxFallbackDays) {
+		PriceTable priceTable = new PriceTable();
+		priceTable.setPriceTableRecords(new ArrayList<PriceTableRecord>());
+		priceTable.setMaxFallbackDays(maxFallbackDays);
+		priceTable.addPriceTableRecord(record("BTC", LocalDateTime.of(2024, 1, 1, 0, 0), 40000));
+		priceTable.addPriceTableRecord(record("BTC", LocalDateTime.of(2024, 1, 4, 0, 0), 42000));
+		priceTable.addPriceTableRecord(record("ETH", LocalDateTime.of(2024, 1, 1, 0, 0), 2000));
+		return priceTable;
+	}
+
+	private PriceTableRecord record(String symbol, LocalDateTime time, long priceInEur) {
+		PriceTableRecord record = new PriceTableRecord();
+		record.setSymbol(symbol);
+		record.setTime(time);
+		record.setPriceInEur(BigDecimal.valueOf(priceInEur));
+		return record;
+	}
+}
@@ -0,0 +1,59 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import binance.model.StreamingHistoryAggregator;
+import binance.struct.BinanceHistoryRecord;
+import binance.struct.BinanceOperationType;
+
+class StreamingHistoryAggregatorTest {
+
+	private static final LocalDateTime T0 = LocalDateTime.of(2024, 3, 1, 10, 15, 30);
+
+	@Test
+	void testClosesSecondWhenTimeAdvances() {
+		List<List<BinanceHistoryRecord>> closed = new ArrayList<List<BinanceHistoryRecord>>();
+		StreamingHistoryAggregator aggregator = new StreamingHistoryAggregator(0, closed::add);
+		aggregator.add(record(T0, BinanceOperationType.TRANSACTION_BUY, "BTC", "0.1"));
+		aggregator.add(record(T0, BinanceOperationType.TRANSACTION_SPEND, "EUR", "-4000"));
+		aggregator.add(record(T0, BinanceOperationType.TRANSACTION_BUY, "BTC", "0.2"));
+		assertTrue(closed.isEmpty());
+
+		aggregator.add(record(T0.plusSeconds(1), BinanceOperationType.TRANSACTION_BUY, "BTC", "1"));
+		assertEquals(1, closed.size());
+		assertEquals(2, closed.get(0).size());
+		assertEquals(new BigDecimal("0.3"), closed.get(0).get(0).getChange());
+
+		aggregator.flush();
+		assertEquals(2, closed.size());
+		assertEquals(T0.plusSeconds(1), closed.get(1).get(0).getUtcTime());
+	}
+
+	@Test
+	void testReorderBuffer() {
+		List<BinanceHistoryRecord> aggregates = new ArrayList<BinanceHistoryRecord>();
+		StreamingHistoryAggregator aggregator = new StreamingHistoryAggregator(2, aggregates::addAll);
+		aggregator.add(record(T0, BinanceOperationType.TRANSACTION_BUY, "BTC", "1"));
+		aggregator.add(record(T0.plusSeconds(2), BinanceOperationType.TRANSACTION_BUY, "BTC", "1"));
+		aggregator.add(record(T0, BinanceOperationType.TRANSACTION_BUY, "BTC", "1"));
+		aggregator.add(record(T0.plusSeconds(1), BinanceOperationType.TRANSACTION_BUY, "BTC", "1"));
+		aggregator.add(record(T0.plusSeconds(3), BinanceOperationType.TRANSACTION_BUY, "BTC", "1"));
+		assertThrows(IllegalStateException.class, () -> aggregator.add(record(T0, BinanceOperationType.TRANSACTION_BUY, "BTC", "1")));
+		aggregator.flush();
+
+		assertEquals(4, aggregates.size());
+		assertEquals(T0, aggregates.get(0).getUtcTime());
+		assertEquals(new BigDecimal("2"), aggregates.get(0).getChange());
+		assertEquals(T0.plusSeconds(1), aggregates.get(1).getUtcTime());
+		assertEquals(T0.plusSeconds(3), aggregates.get(3).getUtcTime());
+	}
+
+	private BinanceHistoryRecord record(LocalDateTime time, BinanceOperationType operation, String coin, String change) {
+		return new BinanceHistoryRecord("user", time, "Spot", operation, coin, new BigDecimal(change), null);
+	}
+}
@@ -0,0 +1,138 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+import binance.model.account.margin.TradeReconstructor;
+import binance.struct.BinanceHistoryRecord;
+import binance.struct.BinanceOperationType;
+import binance.struct.Operation;
+import binance.struct.UtcTimedRecordWithMovement;
+
+class TradeReconstructorTest {
+
+	private static final LocalDateTime T0 = LocalDateTime.of(2024, 5, 1, 12, 0);
+
+	@Test
+	void testSimultaneousTradesInAnyRowOrder() {
+		List<BinanceHistoryRecord> records = new ArrayList<BinanceHistoryRecord>();
+		records.add(record(T0, BinanceOperationType.TRANSFER_ACCOUNT, "USDT", "1000"));
+		// due trade nello stesso secondo: acquisto BTC con USDT, vendita ETH per USDC
+		records.add(record(T0.plusSeconds(1), BinanceOperationType.TRANSACTION_SPEND, "USDT", "-900"));
+		records.add(record(T0.plusSeconds(1), BinanceOperationType.TRANSACTION_BUY, "BTC", "0.01"));
+		records.add(record(T0.plusSeconds(1), BinanceOperationType.TRANSACTION_FEE, "BTC", "-0.00001"));
+		records.add(record(T0.plusSeconds(1), BinanceOperationType.TRANSACTION_SOLD, "ETH", "-0.5"));
+		records.add(record(T0.plusSeconds(1), BinanceOperationType.TRANSACTION_REVENUE, "USDC", "1500"));
+		records.add(record(T0.plusSeconds(1), BinanceOperationType.TRANSACTION_FEE, "USDC", "-1.5"));
+		records.add(record(T0.plusSeconds(1), BinanceOperationType.TRANSACTION_FEE, "BNB", "-0.001"));
+		Collections.shuffle(records, new Random(7));
+
+		TradeReconstructor tradeReconstructor = new TradeReconstructor();
+		List<UtcTimedRecordWithMovement> movements = tradeReconstructor.reconstruct(records);
+
+		assertEquals(2, tradeReconstructor.getTrades());
+		assertTrue(tradeReconstructor.getUnmatchedLegs().isEmpty());
+		assertFalse(movements.get(0).isSwap());
+		List<Operation> operations = operations(movements);
+		Operation btc = operations.stream().filter(o -> o.getCoinBought().equals("BTC")).findFirst().get();
+		assertEquals("USDT", btc.getCoinSold());
+		assertEquals(0, new BigDecimal("0.00999").compareTo(btc.getAmountBought()));
+		Operation usdc = operations.stream().filter(o -> o.getCoinBought().equals("USDC")).findFirst().get();
+		assertEquals("ETH", usdc.getCoinSold());
+		assertEquals(0, new BigDecimal("1498.5").compareTo(usdc.getAmountBought()));
+		// la fee in BNB non appartiene a nessun trade e resta un movimento
+		assertEquals(4, movements.size());
+	}
+
+	@Test
+	void testTwoBuysInTheSameSecondPairedByCoinAndPrice() {
+		List<BinanceHistoryRecord> records = new ArrayList<BinanceHistoryRecord>();
+		// prezzi di riferimento: BTC a 90000 USDC, ETH a 3600 USDC
+		records.add(record(T0, BinanceOperationType.TRANSACTION_SPEND, "USDC", "-9000"));
+		records.add(record(T0, BinanceOperationType.TRANSACTION_BUY, "BTC", "0.1"));
+		records.add(record(T0.plusSeconds(10), BinanceOperationType.TRANSACTION_SPEND, "USDC", "-3600"));
+		records.add(record(T0.plusSeconds(10), BinanceOperationType.TRANSACTION_BUY, "ETH", "1"));
+		// due acquisti con USDC nello stesso secondo: le monete non bastano a separarli
+		records.add(record(T0.plusSeconds(20), BinanceOperationType.TRANSACTION_SPEND, "USDC", "-1800"));
+		records.add(record(T0.plusSeconds(20), BinanceOperationType.TRANSACTION_SPEND, "USDC", "-910"));
+		records.add(record(T0.plusSeconds(20), BinanceOperationType.TRANSACTION_BUY, "BTC", "0.01"));
+		records.add(record(T0.plusSeconds(20), BinanceOperationType.TRANSACTION_BUY, "ETH", "0.5"));
+		Collections.shuffle(records, new Random(3));
+
+		TradeReconstructor tradeReconstructor = new TradeReconstructor();
+		List<Operation> operations = operations(tradeReconstructor.reconstruct(records));
+
+		assertEquals(4, tradeReconstructor.getTrades());
+		Operation btc = operations.get(2).getCoinBought().equals("BTC") ? operations.get(2) : operations.get(3);
+		Operation eth = operations.get(2).getCoinBought().equals("ETH") ? operations.get(2) : operations.get(3);
+		assertEquals(0, new BigDecimal("-910").compareTo(btc.getAmountSold()));
+		assertEquals(0, new BigDecimal("-1800").compareTo(eth.getAmountSold()));
+	}
+
+	@Test
+	void testAmbiguousLegsStopTheReconstruction() {
+		List<BinanceHistoryRecord> records = new ArrayList<BinanceHistoryRecord>();
+		// nessun trade precedente con cui confrontare i prezzi
+		records.add(record(T0, BinanceOperationType.TRANSACTION_SPEND, "USDC", "-1800"));
+		records.add(record(T0, BinanceOperationType.TRANSACTION_SPEND, "USDC", "-910"));
+		records.add(record(T0, BinanceOperationType.TRANSACTION_BUY, "BTC", "0.01"));
+		records.add(record(T0, BinanceOperationType.TRANSACTION_BUY, "ETH", "0.5"));
+
+		assertThrows(IllegalStateException.class, () -> new TradeReconstructor().reconstruct(records));
+
+		TradeReconstructor lenient = new TradeReconstructor(true);
+		assertTrue(lenient.reconstruct(records).isEmpty());
+		assertEquals(4, lenient.getUnmatchedLegs().size());
+	}
+
+	@Test
+	void testTradeSplitAcrossTwoSeconds() {
+		List<BinanceHistoryRecord> records = new ArrayList<BinanceHistoryRecord>();
+		records.add(record(T0, BinanceOperationType.TRANSACTION_SPEND, "USDT", "-900"));
+		records.add(record(T0, BinanceOperationType.TRANSACTION_SOLD, "ETH", "-0.5"));
+		records.add(record(T0, BinanceOperationType.TRANSACTION_REVENUE, "USDC", "1500"));
+		records.add(record(T0.plusSeconds(1), BinanceOperationType.TRANSACTION_BUY, "BTC", "0.01"));
+		records.add(record(T0.plusSeconds(1), BinanceOperationType.TRANSACTION_FEE, "BTC", "-0.00001"));
+		records.add(record(T0.plusSeconds(1), BinanceOperationType.MARGIN_LOAN, "USDT", "100"));
+
+		TradeReconstructor tradeReconstructor = new TradeReconstructor();
+		List<UtcTimedRecordWithMovement> movements = tradeReconstructor.reconstruct(records);
+
+		assertEquals(2, tradeReconstructor.getTrades());
+		assertEquals(3, movements.size());
+		assertEquals("USDC", ((Operation) movements.get(0)).getCoinBought());
+		// lo swap diviso esce nel secondo della gamba più recente, con l'ora di quella iniziale
+		Operation btc = operations(movements).get(1);
+		assertEquals("USDT", btc.getCoinSold());
+		assertEquals(T0, btc.getUtcTime());
+		assertEquals(0, new BigDecimal("0.00999").compareTo(btc.getAmountBought()));
+	}
+
+	@Test
+	void testLegWithoutCounterpartStopsTheReconstruction() {
+		List<BinanceHistoryRecord> records = new ArrayList<BinanceHistoryRecord>();
+		records.add(record(T0, BinanceOperationType.TRANSACTION_SPEND, "USDT", "-900"));
+		records.add(record(T0.plusSeconds(2), BinanceOperationType.TRANSACTION_BUY, "BTC", "0.01"));
+
+		assertThrows(IllegalStateException.class, () -> new TradeReconstructor().reconstruct(records));
+
+		TradeReconstructor lenient = new TradeReconstructor(true);
+		assertTrue(lenient.reconstruct(records).isEmpty());
+		assertEquals(2, lenient.getUnmatchedLegs().size());
+	}
+
+	private static List<Operation> operations(List<UtcTimedRecordWithMovement> movements) {
+		return movements.stream().filter(UtcTimedRecordWithMovement::isSwap).map(m -> (Operation) m).collect(Collectors.toList());
+	}
+
+	private BinanceHistoryRecord record(LocalDateTime time, BinanceOperationType operation, String coin, String change) {
+		return new BinanceHistoryRecord("", time, "Cross Margin", operation, coin, new BigDecimal(change), "");
+	}
+}
@@ -0,0 +1,116 @@
+package binance.model.account;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import binance.model.account.spot.SpotAccount;
+import binance.prices.PriceTable;
+import binance.prices.PriceTableRecord;
+import binance.struct.BinanceHistoryRecord;
+import binance.struct.BinanceOperationType;
+
+/**
+ * Time to build the daily equity curve of a spot account trading many coins over several years,
+ * against valuing every held coin of every day with a findPrice lookup.
+ * Run the main method (i.e. from the IDE or with the test classpath).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EquityCurveBenchmark {
+
+	private static final LocalDateTime START = LocalDateTime.of(2015, 1, 1, 0, 0);
+
+	@Param({"20", "200"})
+	int coins;
+
+	@Param({"3650"})
+	int days;
+
+	@Param({"1000000"})
+	int records;
+
+	private SpotAccount account;
+	private PriceTable priceTable;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Random random = new Random(42);
+		priceTable = new PriceTable();
+		priceTable.setPriceTableRecords(new ArrayList<PriceTableRecord>());
+		for (int c = 0; c < coins; c++) {
+			for (int d = 0; d < days; d++) {
+				PriceTableRecord record = new PriceTableRecord();
+				record.setSymbol("C" + c);
+				record.setTime(START.plusDays(d));
+				record.setPriceInEur(BigDecimal.valueOf(1 + random.nextInt(1000)));
+				priceTable.addPriceTableRecord(record);
+			}
+		}
+		priceTable.publishSnapshot();
+		account = new SpotAccount();
+		long step = (long) days * 86400 / records;
+		for (int i = 0; i < records; i++) {
+			account.addRecord(new BinanceHistoryRecord("1", START.plusSeconds(i * step), "Spot", BinanceOperationType.TRANSACTION_BUY,
+					"C" + random.nextInt(coins), BigDecimal.valueOf(1 + random.nextInt(100)), ""));
+		}
+	}
+
+	@Benchmark
+	public double sweep() {
+		EquityCurve curve = new EquityCurve(List.of(account), priceTable);
+		return curve.getTotal(curve.getDays() - 1);
+	}
+
+	@Benchmark
+	public double perDayLookups() {
+		// saldo corrente per moneta, valutato ogni giorno con una ricerca del prezzo
+		double[] balances = new double[coins];
+		double last = 0;
+		int next = 0;
+		List<BinanceHistoryRecord> sorted = account.getRecords();
+		for (int d = 0; d < days; d++) {
+			LocalDateTime endOfDay = START.plusDays(d + 1).minusSeconds(1);
+			while(next < sorted.size() && !sorted.get(next).getUtcTime().isAfter(endOfDay)) {
+				BinanceHistoryRecord r = sorted.get(next++);
+				balances[Integer.parseInt(r.getCoin().substring(1))] += r.getChange().doubleValue();
+			}
+			last = 0;
+			for (int c = 0; c < coins; c++) {
+				if(balances[c] != 0) {
+					last += balances[c] * priceTable.getPrice("C" + c, endOfDay).doubleValue();
+				}
+			}
+		}
+		return last;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder().include(EquityCurveBenchmark.class.getSimpleName()).build();
+		new Runner(options).run();
+	}
+}
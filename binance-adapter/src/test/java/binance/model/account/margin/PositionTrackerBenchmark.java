@@ -0,0 +1,89 @@
+package binance.model.account.margin;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import binance.model.costbasis.CostBasisMethod;
+
+/**
+ * Time to replay millions of buy and sell fills of one asset through PositionTracker, for each
+ * cost-basis method; run it with -prof gc to check that the matching allocates nothing.
+ * Run the main method (i.e. from the IDE or with the test classpath).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PositionTrackerBenchmark {
+
+	@Param({"1000000", "4000000"})
+	int events;
+
+	@Param({"FIFO", "LIFO", "HIFO", "AVERAGE"})
+	CostBasisMethod method;
+
+	private boolean[] buys;
+	private long[] quantities;
+	private long[] prices;
+	private long[] fees;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Random random = new Random(42);
+		buys = new boolean[events];
+		quantities = new long[events];
+		prices = new long[events];
+		fees = new long[events];
+		long price = 60000 * PositionTracker.SCALE;
+		long held = 0;
+		for (int i = 0; i < events; i++) {
+			price = Math.max(PositionTracker.SCALE, price + (long) (random.nextGaussian() * 50 * PositionTracker.SCALE));
+			long quantity = (1 + random.nextInt(100_000)) * 1000L;
+			// vendite un po' meno frequenti degli acquisti, così restano lotti aperti
+			buys[i] = held < quantity || random.nextInt(100) < 52;
+			held += buys[i] ? quantity : -quantity;
+			quantities[i] = quantity;
+			prices[i] = price;
+			fees[i] = quantity * (price / PositionTracker.SCALE) / 1000;
+		}
+	}
+
+	@Benchmark
+	public long replay() {
+		PositionTracker tracker = new PositionTracker("BTC", method);
+		for (int i = 0; i < events; i++) {
+			if (buys[i]) {
+				tracker.buy(quantities[i], prices[i], fees[i], "USDT");
+			} else {
+				tracker.sell(quantities[i], prices[i], fees[i]);
+			}
+		}
+		return tracker.getRealizedPnLFixed();
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder()
+				.include(PositionTrackerBenchmark.class.getSimpleName())
+				.build();
+		new Runner(options).run();
+	}
+}
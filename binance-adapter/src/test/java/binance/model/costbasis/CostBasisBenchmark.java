@@ -0,0 +1,101 @@
+package binance.model.costbasis;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import binance.model.CoinBalance.CoinBalanceEntry;
+
+/**
+ * Time to buy n lots and sell them all back in chunks of one lot and a half, the way computePL
+ * consumes the inventory, for each cost-basis method.
+ * Run the main method (i.e. from the IDE or with the test classpath).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CostBasisBenchmark {
+
+	private static final LocalDateTime START = LocalDateTime.of(2022, 1, 1, 0, 0);
+	private static final String[] COUNTER_VALUE_COINS = {"USDT", "USDC", "BTC"};
+
+	@Param({"10000", "100000", "1000000"})
+	int lots;
+
+	@Param({"FIFO", "LIFO", "HIFO", "AVERAGE"})
+	CostBasisMethod method;
+
+	private BigDecimal[] amounts;
+	private BigDecimal[] counterValues;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Random random = new Random(42);
+		amounts = new BigDecimal[lots];
+		counterValues = new BigDecimal[lots];
+		for (int i = 0; i < lots; i++) {
+			amounts[i] = BigDecimal.valueOf(1 + random.nextInt(100));
+			counterValues[i] = amounts[i].multiply(BigDecimal.valueOf(20000 + random.nextInt(40000)));
+		}
+	}
+
+	@Benchmark
+	public BigDecimal buyAndSell() {
+		LotInventory<CoinBalanceEntry> inventory = method.newInventory(CoinBalanceEntry.LOT_TYPE);
+		BigDecimal held = BigDecimal.ZERO;
+		for (int i = 0; i < lots; i++) {
+			inventory.push(new CoinBalanceEntry(START.plusSeconds(i), "BTC", amounts[i],
+					COUNTER_VALUE_COINS[i % COUNTER_VALUE_COINS.length], counterValues[i]));
+			held = held.add(amounts[i]);
+		}
+		BigDecimal cost = BigDecimal.ZERO;
+		int i = 0;
+		while(held.signum() > 0) {
+			BigDecimal toSell = held.min(amounts[i % lots].multiply(new BigDecimal("1.5")));
+			held = held.subtract(toSell);
+			i++;
+			Iterator<CoinBalanceEntry> iterator = inventory.iterator();
+			while(toSell.signum() > 0) {
+				CoinBalanceEntry lot = iterator.next();
+				BigDecimal used = toSell.min(lot.getAmount());
+				cost = cost.add(used.multiply(lot.getPriceOfIncomeCoin()));
+				toSell = toSell.subtract(used);
+				if(used.compareTo(lot.getAmount()) == 0) {
+					iterator.remove();
+				} else {
+					lot.consume(used);
+				}
+			}
+		}
+		return cost;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder()
+				.include(CostBasisBenchmark.class.getSimpleName())
+				.build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,103 @@
+package binance.prices;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Throughput of PriceTable.getPrice with 1..8 concurrent readers, compared with the same lookup
+ * serialized on a monitor as it was with the synchronized mapWithTime.
+ * Run the main method (i.e. from the IDE or with the test classpath).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PriceTableBenchmark {
+
+	private static final String[] SYMBOLS = {"BTC", "ETH", "BNB", "ATOM", "SOL", "USDC", "USDT"};
+	private static final LocalDateTime START = LocalDateTime.of(2022, 1, 1, 0, 0);
+	private static final int DAYS = 3 * 365;
+
+	private PriceTable priceTable;
+	private final Object monitor = new Object();
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		LocalDateTime[] times;
+		int next;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			times = new LocalDateTime[1024];
+			for (int i = 0; i < times.length; i++) {
+				times[i] = START.plusMinutes((long) (Math.random() * DAYS * 24 * 60));
+			}
+		}
+
+		LocalDateTime nextTime() {
+			return times[next++ & (times.length - 1)];
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		List<PriceTableRecord> records = new ArrayList<PriceTableRecord>();
+		for (String symbol : SYMBOLS) {
+			for (int day = 0; day < DAYS; day++) {
+				PriceTableRecord record = new PriceTableRecord();
+				record.setSymbol(symbol);
+				record.setTime(START.plusDays(day));
+				record.setPriceInEur(BigDecimal.valueOf(1000 + day));
+				records.add(record);
+			}
+		}
+		priceTable = new PriceTable();
+		priceTable.reload(records);
+	}
+
+	@Benchmark
+	public void snapshotGetPrice(Cursor cursor, Blackhole blackhole) {
+		LocalDateTime time = cursor.nextTime();
+		blackhole.consume(priceTable.getPrice(SYMBOLS[cursor.next % SYMBOLS.length], time));
+	}
+
+	@Benchmark
+	public void synchronizedGetPrice(Cursor cursor, Blackhole blackhole) {
+		LocalDateTime time = cursor.nextTime();
+		synchronized (monitor) {
+			blackhole.consume(priceTable.getPrice(SYMBOLS[cursor.next % SYMBOLS.length], time));
+		}
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		for (int threads : new int[] {1, 2, 4, 8}) {
+			Options options = new OptionsBuilder()
+					.include(PriceTableBenchmark.class.getSimpleName())
+					.threads(threads)
+					.build();
+			new Runner(options).run();
+		}
+	}
+}